@@ -0,0 +1,122 @@
+package es.us.lsi.dad.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import es.us.lsi.dad.CompactSensorStore;
+import es.us.lsi.dad.ConcurrentSensorStore;
+import es.us.lsi.dad.RestServer;
+import es.us.lsi.dad.SensorStore;
+import es.us.lsi.dad.Sensores;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+
+/**
+ * In-process {@link RestServer} used by the benchmarks. The store is filled
+ * with a fleet of sensors before the verticle is deployed, so the server does
+ * not add its synthetic data, and the server listens on a free port of
+ * localhost. The response cache, compression and admission control are off
+ * unless the config turns them on, so a change of their defaults does not
+ * change what the benchmarks measure, and no request is answered with 429.
+ */
+public class BenchServer {
+
+	public static final String HOST = "localhost";
+
+	private final Vertx vertx;
+	private final SensorStore store;
+	private final int port;
+
+	private BenchServer(Vertx vertx, SensorStore store, int port) {
+		this.vertx = vertx;
+		this.store = store;
+		this.port = port;
+	}
+
+	/**
+	 * Deploys the server and waits until it is listening
+	 *
+	 * @param vertx     Vert.x instance
+	 * @param fleetSize Number of sensors of the store
+	 * @param config    Verticle config, the port is added to it; storeType
+	 *                  compact uses a {@link CompactSensorStore}
+	 * @return Started server
+	 */
+	public static BenchServer start(Vertx vertx, int fleetSize, JsonObject config) {
+		JsonObject off = new JsonObject().put("enabled", false);
+		JsonObject pinned = new JsonObject().put("cache", off).put("compression", off).put("admission", off)
+				.mergeIn(config, true);
+		SensorStore store = "compact".equals(config.getString("storeType")) ? new CompactSensorStore()
+				: new ConcurrentSensorStore();
+		for (int i = 0; i < fleetSize; i++) {
+			store.put(sensor(i));
+		}
+		int port = freePort();
+		await(vertx.deployVerticle(new RestServer(store),
+				new DeploymentOptions().setConfig(pinned.put("port", port))));
+		return new BenchServer(vertx, store, port);
+	}
+
+	/**
+	 * Sensor of the fleet with the given id. Units go from 0 to 9, so a query by
+	 * unit returns about a tenth of the fleet, and devices from 0 to 99.
+	 */
+	public static Sensores sensor(int id) {
+		Sensores sensor = new Sensores(id, id % 10, id % 100, id % 2 == 0 ? "ON" : "OFF");
+		sensor.setNombre("sensor" + id);
+		sensor.setTipo("temperatura");
+		return sensor;
+	}
+
+	public Vertx getVertx() {
+		return vertx;
+	}
+
+	public SensorStore getStore() {
+		return store;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param response Response of the server
+	 * @param status   Status expected
+	 * @return Body of the response
+	 * @throws IllegalStateException If the status is another one, so an error
+	 *                               answer is not measured as a fast request
+	 */
+	public static Buffer expect(HttpResponse<Buffer> response, int status) {
+		if (response.statusCode() != status) {
+			throw new IllegalStateException("Expected status " + status + ", got " + response.statusCode());
+		}
+		return response.body();
+	}
+
+	/**
+	 * Waits for a Vert.x future from a benchmark thread, which is never an event
+	 * loop thread
+	 */
+	public static <T> T await(Future<T> future) {
+		try {
+			return future.toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int freePort() {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package es.us.lsi.dad.bench;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.us.lsi.dad.ClientProfile;
+import es.us.lsi.dad.Endpoint;
+import es.us.lsi.dad.RestClientUtil;
+import es.us.lsi.dad.Sensores;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Round trips of {@link RestClientUtil} against the in-process server,
+ * including the encoding of the request and the decoding of the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+	private static final int FLEET_SIZE = 1000;
+	private static final String HOST = "http://" + BenchServer.HOST;
+
+	private Vertx vertx;
+	private BenchServer server;
+	private RestClientUtil restClientUtil;
+	private Endpoint sensor;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		ClientProfile profile = ClientProfile.pooled();
+		vertx = Vertx.vertx(profile.vertxOptions());
+		server = BenchServer.start(vertx, FLEET_SIZE, new JsonObject());
+		restClientUtil = RestClientUtil.create(vertx, profile);
+		sensor = restClientUtil.endpoint(server.getPort(), HOST, "api/sensores/:id_sensor");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		restClientUtil.client.close();
+		BenchServer.await(vertx.close());
+	}
+
+	@Benchmark
+	public Sensores getRequest() {
+		Promise<Sensores> promise = Promise.promise();
+		restClientUtil.getRequest(server.getPort(), HOST, "api/sensores/" + next++ % FLEET_SIZE, Sensores.class,
+				promise);
+		return BenchServer.await(promise.future());
+	}
+
+	@Benchmark
+	public Sensores getRequestEndpoint() {
+		Promise<Sensores> promise = Promise.promise();
+		restClientUtil.getRequest(sensor, Sensores.class, promise, next++ % FLEET_SIZE);
+		return BenchServer.await(promise.future());
+	}
+
+	@Benchmark
+	public Sensores[] getRequestWithParams() {
+		Promise<Sensores[]> promise = Promise.promise();
+		restClientUtil.getRequestWithParams(server.getPort(), HOST, "api/sensores", Sensores[].class, promise,
+				Collections.singletonMap("id_device", String.valueOf(next++ % 100)));
+		return BenchServer.await(promise.future());
+	}
+
+	@Benchmark
+	public Sensores postRequest() {
+		Promise<Sensores> promise = Promise.promise();
+		restClientUtil.postRequest(server.getPort(), HOST, "api/sensores",
+				BenchServer.sensor(FLEET_SIZE + next++ % 1024), Sensores.class, promise);
+		return BenchServer.await(promise.future());
+	}
+
+}
@@ -0,0 +1,69 @@
+package es.us.lsi.dad.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import es.us.lsi.dad.Sensor;
+import es.us.lsi.dad.SensorCodec;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Gson encoding and decoding of one {@link Sensor}: plain Gson with reflection
+ * and a String, as the code before {@link SensorCodec}, against the codec
+ * adapters writing to and reading from a Buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	private final Gson reflective = new Gson();
+	private Sensor sensor;
+	private String json;
+	private Buffer buffer;
+
+	@Setup
+	public void setup() {
+		sensor = new Sensor(1234, 7, 42, "temperatura");
+		sensor.setNombre("sensor1234");
+		sensor.setId(1);
+		json = reflective.toJson(sensor);
+		buffer = Buffer.buffer(json);
+	}
+
+	@Benchmark
+	public String encodeReflective() {
+		return reflective.toJson(sensor);
+	}
+
+	@Benchmark
+	public Buffer encodeCodec() {
+		return SensorCodec.encode(sensor);
+	}
+
+	@Benchmark
+	public Sensor decodeReflective() {
+		return reflective.fromJson(json, Sensor.class);
+	}
+
+	@Benchmark
+	public Sensor decodeCodec() {
+		return SensorCodec.decode(buffer, Sensor.class);
+	}
+
+}
@@ -0,0 +1,100 @@
+package es.us.lsi.dad.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.us.lsi.dad.SensorCodec;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Throughput of the handlers of {@link es.us.lsi.dad.RestServer} over HTTP on
+ * localhost. Responses are read as raw buffers, so the cost measured is the one
+ * of the server and the HTTP round trip, not the decoding of the client, and
+ * any status other than the expected one fails the benchmark. Compression is
+ * off; the response cache only with cache=true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+	// Ids written by addOne, over the fleet so the fleet size does not change
+	private static final int WRITE_IDS = 1024;
+
+	@Param({ "100", "10000", "100000" })
+	public int fleetSize;
+
+	@Param({ "concurrent", "compact" })
+	public String storeType;
+
+	@Param({ "false", "true" })
+	public boolean cache;
+
+	private Vertx vertx;
+	private BenchServer server;
+	private WebClient client;
+	private Buffer[] bodies;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		vertx = Vertx.vertx();
+		server = BenchServer.start(vertx, fleetSize, new JsonObject().put("storeType", storeType)
+				.put("cache", new JsonObject().put("enabled", cache)));
+		client = WebClient.create(vertx);
+		bodies = new Buffer[WRITE_IDS];
+		for (int i = 0; i < WRITE_IDS; i++) {
+			bodies[i] = SensorCodec.encode(BenchServer.sensor(fleetSize + i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		BenchServer.await(vertx.close());
+	}
+
+	@Benchmark
+	public Buffer getOne() {
+		int id = next++ % fleetSize;
+		return BenchServer.expect(
+				BenchServer.await(client.get(server.getPort(), BenchServer.HOST, "/api/sensores/" + id).send()), 200);
+	}
+
+	/**
+	 * Sensors of one unit, about a tenth of the fleet
+	 */
+	@Benchmark
+	public Buffer getAllWithParams() {
+		String unit = String.valueOf(next++ % 10);
+		return BenchServer.expect(BenchServer.await(client.get(server.getPort(), BenchServer.HOST, "/api/sensores")
+				.addQueryParam("unit", unit).send()), 200);
+	}
+
+	@Benchmark
+	public Buffer addOne() {
+		Buffer body = bodies[next++ % WRITE_IDS];
+		return BenchServer.expect(BenchServer.await(client.post(server.getPort(), BenchServer.HOST, "/api/sensores")
+				.putHeader("content-type", SensorCodec.CONTENT_TYPE).sendBuffer(body)), 201);
+	}
+
+}
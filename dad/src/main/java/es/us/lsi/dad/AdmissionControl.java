@@ -0,0 +1,253 @@
+package es.us.lsi.dad;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Admission control of {@link RestServer}: requests over the limits are
+ * rejected at once, with an empty body and a Retry-After header, instead of
+ * queuing on the event loop.
+ * <ul>
+ * <li>{@link #rateLimit()}: a token bucket per client, refilled at perSecond
+ * tokens per second up to burst tokens. A list query takes listCost tokens
+ * and any other request one. Over the rate the answer is 429.</li>
+ * <li>{@link #limit(String)}: a limit of requests in flight per route, adapted
+ * with AIMD. Every request answered within the latency target of the route
+ * adds 1/limit to it while it is in use; a slower request or a 5xx multiplies
+ * it by backoff, at most once per latency target. Over the limit the answer
+ * is 503. Routes have separate limits, so slow list queries lower the limit
+ * of the lists and not that of getOne.</li>
+ * </ul>
+ *
+ * As the store, the limits are shared by every instance of the verticle.
+ */
+public class AdmissionControl implements Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.admission";
+
+	private final double perSecond;
+	private final double burst;
+	private final int listCost;
+	private final String clientHeader;
+	private final JsonObject concurrency;
+	private final SegmentedLru<TokenBucket> clients;
+	private final Map<String, RouteLimit> routes = new ConcurrentSkipListMap<String, RouteLimit>();
+	private final AtomicLong rateLimited = new AtomicLong();
+
+	/**
+	 * @param config "rate": perSecond per client (default 0, no rate limit),
+	 *               burst (default 2 * perSecond), listCost (default 10),
+	 *               clientHeader to identify clients by a header instead of
+	 *               their address and maxClients buckets kept (default
+	 *               10000, then the client seen least recently gets a new
+	 *               bucket when it comes back); "concurrency": initialLimit
+	 *               (default 256), minLimit (default 4), maxLimit (default
+	 *               4096), latencyTargetMs (default 100) and backoff (default
+	 *               0.9), which "routes" can override by route name
+	 */
+	public AdmissionControl(JsonObject config) {
+		JsonObject rate = config.getJsonObject("rate", new JsonObject());
+		this.perSecond = rate.getDouble("perSecond", 0.0);
+		this.burst = rate.getDouble("burst", 2 * perSecond);
+		this.listCost = rate.getInteger("listCost", 10);
+		this.clientHeader = rate.getString("clientHeader");
+		this.concurrency = config.getJsonObject("concurrency", new JsonObject());
+		// Solo cuenta el numero de clientes, no su tamano
+		this.clients = new SegmentedLru<TokenBucket>(rate.getInteger("maxClients", 10000), Long.MAX_VALUE,
+				(client, bucket) -> 0);
+	}
+
+	public static AdmissionControl shared(Vertx vertx, String name, JsonObject config) {
+		LocalMap<String, AdmissionControl> admissions = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return admissions.computeIfAbsent(name, key -> new AdmissionControl(config));
+	}
+
+	/**
+	 * Handler rejecting with 429 the requests of clients over their rate. It
+	 * must go before the body is read, so a rejected request costs no more
+	 * than reading its headers.
+	 *
+	 * @param shards Shards of the verticle instance, whose forwarded requests
+	 *               were already counted by the node that received them, or
+	 *               null if it is not sharded
+	 */
+	public Handler<RoutingContext> rateLimit(SensorShards shards) {
+		return routingContext -> {
+			HttpServerRequest request = routingContext.request();
+			if (perSecond <= 0 || (shards != null && shards.forwarded(request))) {
+				routingContext.next();
+				return;
+			}
+			String client = clientHeader != null ? request.getHeader(clientHeader) : null;
+			if (client == null) {
+				client = request.remoteAddress() != null ? request.remoteAddress().host() : "";
+			}
+			long waitNanos = clients.computeIfAbsent(client, key -> new TokenBucket(perSecond, burst))
+					.acquire(isList(request) ? listCost : 1);
+			if (waitNanos > 0) {
+				rateLimited.incrementAndGet();
+				reject(routingContext, 429, waitNanos);
+				return;
+			}
+			routingContext.next();
+		};
+	}
+
+	/**
+	 * Handler rejecting with 503 the requests over the concurrency limit of
+	 * the route. The request is counted in flight until its response ends or
+	 * its connection is closed.
+	 *
+	 * @param route Route name, as in the metrics
+	 */
+	public Handler<RoutingContext> limit(String route) {
+		RouteLimit limit = routes.computeIfAbsent(route,
+				key -> new RouteLimit(concurrency.copy().mergeIn(concurrency.getJsonObject("routes", new JsonObject())
+						.getJsonObject(key, new JsonObject()))));
+		return routingContext -> {
+			if (!limit.acquire()) {
+				reject(routingContext, 503, limit.latencyTarget);
+				return;
+			}
+			long start = System.nanoTime();
+			routingContext.addEndHandler(result -> limit.release(System.nanoTime() - start,
+					result.failed() || routingContext.response().getStatusCode() >= 500));
+			routingContext.next();
+		};
+	}
+
+	private static void reject(RoutingContext routingContext, int status, long waitNanos) {
+		// Retry-After va en segundos enteros, al menos 1
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+		routingContext.response().setStatusCode(status).putHeader("Retry-After", Long.toString(seconds)).end();
+	}
+
+	private static boolean isList(HttpServerRequest request) {
+		String path = request.path();
+		return request.method().name().equals("GET") && (path.equals("/api/sensores") || path.equals("/api/sensores/"));
+	}
+
+	public long getRateLimited() {
+		return rateLimited.get();
+	}
+
+	public void writePrometheus(StringBuilder out) {
+		out.append("# TYPE dad_admission_rate_limited_total counter\n");
+		out.append("dad_admission_rate_limited_total ").append(getRateLimited()).append('\n');
+		out.append("# TYPE dad_admission_clients gauge\n");
+		out.append("dad_admission_clients ").append(clients.size()).append('\n');
+		out.append("# TYPE dad_admission_limit gauge\n");
+		routes.forEach((name, limit) -> out.append("dad_admission_limit{route=\"").append(name).append("\"} ")
+				.append(limit.getLimit()).append('\n'));
+		out.append("# TYPE dad_admission_in_flight gauge\n");
+		routes.forEach((name, limit) -> out.append("dad_admission_in_flight{route=\"").append(name).append("\"} ")
+				.append(limit.inFlight.get()).append('\n'));
+		out.append("# TYPE dad_admission_rejected_total counter\n");
+		routes.forEach((name, limit) -> out.append("dad_admission_rejected_total{route=\"").append(name)
+				.append("\"} ").append(limit.rejected.get()).append('\n'));
+	}
+
+	/**
+	 * Tokens of one client, refilled lazily from the time of the last request
+	 */
+	static class TokenBucket {
+
+		private final double perNano;
+		private final double capacity;
+		private double tokens;
+		private long refilled;
+
+		TokenBucket(double perSecond, double capacity) {
+			this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+			this.capacity = Math.max(1, capacity);
+			this.tokens = this.capacity;
+			this.refilled = System.nanoTime();
+		}
+
+		/**
+		 * @return 0 if the tokens were taken, or the nanoseconds until there
+		 *         are enough
+		 */
+		synchronized long acquire(int cost) {
+			refill();
+			// Un coste mayor que la capacidad se cobra con el cubo lleno
+			double needed = Math.min(cost, capacity);
+			if (tokens >= needed) {
+				tokens -= needed;
+				return 0;
+			}
+			return (long) Math.ceil((needed - tokens) / perNano);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilled) * perNano);
+			refilled = now;
+		}
+
+	}
+
+	/**
+	 * AIMD concurrency limit of one route
+	 */
+	static class RouteLimit {
+
+		private final double minLimit;
+		private final double maxLimit;
+		private final long latencyTarget;
+		private final double backoff;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong rejected = new AtomicLong();
+		private volatile double limit;
+		private long lastDecrease = System.nanoTime();
+
+		RouteLimit(JsonObject config) {
+			this.minLimit = config.getInteger("minLimit", 4);
+			this.maxLimit = config.getInteger("maxLimit", 4096);
+			this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(config.getLong("latencyTargetMs", 100L));
+			this.backoff = config.getDouble("backoff", 0.9);
+			this.limit = Math.max(minLimit, Math.min(maxLimit, config.getInteger("initialLimit", 256)));
+		}
+
+		boolean acquire() {
+			if (inFlight.incrementAndGet() > (int) limit) {
+				inFlight.decrementAndGet();
+				rejected.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		synchronized void release(long latencyNanos, boolean failed) {
+			int used = inFlight.getAndDecrement();
+			if (failed || latencyNanos > latencyTarget) {
+				// Una sola reduccion por intervalo, no una por cada respuesta lenta de la misma rafaga
+				long now = System.nanoTime();
+				if (now - lastDecrease >= latencyTarget) {
+					limit = Math.max(minLimit, limit * backoff);
+					lastDecrease = now;
+				}
+			} else if (used * 2 >= limit) {
+				// Solo crece si se esta usando; un limite ocioso no dice nada de la capacidad
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+
+		int getLimit() {
+			return (int) limit;
+		}
+
+	}
+
+}
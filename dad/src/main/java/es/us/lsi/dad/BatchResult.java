@@ -0,0 +1,54 @@
+package es.us.lsi.dad;
+
+/**
+ * Result of one record of a batch sent to POST /api/sensores/batch
+ */
+public class BatchResult {
+
+	protected Integer index;
+	protected Integer id_sensor;
+	protected Integer status;
+	protected String error;
+
+	public BatchResult() {
+		super();
+	}
+
+	public BatchResult(Integer index, Integer id_sensor, Integer status, String error) {
+		super();
+		this.index = index;
+		this.id_sensor = id_sensor;
+		this.status = status;
+		this.error = error;
+	}
+
+	public Integer getIndex() {
+		return index;
+	}
+
+	public Integer getId_sensor() {
+		return id_sensor;
+	}
+
+	public Integer getStatus() {
+		return status;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return true if the record was stored
+	 */
+	public boolean succeeded() {
+		return status != null && status >= 200 && status < 300;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [index=" + index + ", id_sensor=" + id_sensor + ", status=" + status + ", error=" + error
+				+ "]";
+	}
+
+}
@@ -0,0 +1,175 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+
+/**
+ * Client streaming the changes of the sensors matching a filter, over a
+ * WebSocket or Server-Sent Events.
+ *
+ * Changes wait in a queue of at most maxQueued changes while the connection
+ * can not take more data. When the queue is full the oldest change is
+ * dropped, and the client gets an overflow event with the number of dropped
+ * changes before the next ones, so it knows it has to read the sensors again.
+ * A slow client thus costs a bounded amount of memory and never blocks the
+ * event loop.
+ *
+ * Only used from the event loop of the verticle that accepted the connection.
+ */
+public abstract class ChangeSubscriber {
+
+	private final SensorFilter filter;
+	private final int maxQueued;
+	private final ArrayDeque<SensorChange> queue = new ArrayDeque<SensorChange>();
+	private final SensorEvents.Stats stats;
+	// Cambios descartados desde el ultimo envio
+	private long dropped = 0;
+	private boolean waitingDrain = false;
+	private boolean closed = false;
+
+	protected ChangeSubscriber(SensorFilter filter, int maxQueued, SensorEvents.Stats stats) {
+		this.filter = filter;
+		this.maxQueued = maxQueued;
+		this.stats = stats;
+	}
+
+	/**
+	 * @param socket    Accepted WebSocket; each write is a text frame with a
+	 *                  JSON array of changes
+	 * @param filter    Filter of the sensors whose changes are sent
+	 * @param maxQueued Maximum changes waiting to be sent
+	 * @param stats     Stats of the server
+	 */
+	public static ChangeSubscriber webSocket(ServerWebSocket socket, SensorFilter filter, int maxQueued,
+			SensorEvents.Stats stats) {
+		return new ChangeSubscriber(filter, maxQueued, stats) {
+
+			@Override
+			protected boolean writeQueueFull() {
+				return socket.writeQueueFull();
+			}
+
+			@Override
+			protected void drainHandler(Handler<Void> handler) {
+				socket.drainHandler(handler);
+			}
+
+			@Override
+			protected void write(List<SensorChange> changes, long dropped) {
+				Buffer frame = Buffer.buffer(changes.size() * 160 + 2).appendString("[");
+				if (dropped > 0) {
+					frame.appendString("{\"type\":\"overflow\",\"dropped\":" + dropped + "}");
+				}
+				for (SensorChange change : changes) {
+					if (frame.length() > 1) {
+						frame.appendString(",");
+					}
+					frame.appendBuffer(change.getJson());
+				}
+				socket.writeFinalTextFrame(frame.appendString("]").toString());
+			}
+
+		};
+	}
+
+	/**
+	 * @param response  Response already sent with the headers of an event
+	 *                  stream; each change is an event named after its type
+	 * @param filter    Filter of the sensors whose changes are sent
+	 * @param maxQueued Maximum changes waiting to be sent
+	 * @param stats     Stats of the server
+	 */
+	public static ChangeSubscriber eventStream(HttpServerResponse response, SensorFilter filter, int maxQueued,
+			SensorEvents.Stats stats) {
+		return new ChangeSubscriber(filter, maxQueued, stats) {
+
+			@Override
+			protected boolean writeQueueFull() {
+				return response.writeQueueFull();
+			}
+
+			@Override
+			protected void drainHandler(Handler<Void> handler) {
+				response.drainHandler(handler);
+			}
+
+			@Override
+			protected void write(List<SensorChange> changes, long dropped) {
+				Buffer events = Buffer.buffer(changes.size() * 180 + 2);
+				if (dropped > 0) {
+					events.appendString("event: overflow\ndata: {\"dropped\":" + dropped + "}\n\n");
+				}
+				for (SensorChange change : changes) {
+					events.appendString("event: ").appendString(change.getType()).appendString("\ndata: ")
+							.appendBuffer(change.getJson()).appendString("\n\n");
+				}
+				response.write(events);
+			}
+
+		};
+	}
+
+	protected abstract boolean writeQueueFull();
+
+	protected abstract void drainHandler(Handler<Void> handler);
+
+	/**
+	 * Writes the changes in a single write
+	 *
+	 * @param changes Changes to send, in order
+	 * @param dropped Changes dropped before them, 0 if none
+	 */
+	protected abstract void write(List<SensorChange> changes, long dropped);
+
+	/**
+	 * Queues the changes matching the filter and sends them if the connection
+	 * can take them
+	 */
+	void offer(List<SensorChange> changes) {
+		if (closed) {
+			return;
+		}
+		for (SensorChange change : changes) {
+			if (filter.matches(change.getSensor())) {
+				if (queue.size() == maxQueued) {
+					queue.poll();
+					dropped++;
+					stats.dropped.incrementAndGet();
+				}
+				queue.add(change);
+			}
+		}
+		flush();
+	}
+
+	private void flush() {
+		if (closed || waitingDrain || (queue.isEmpty() && dropped == 0)) {
+			return;
+		}
+		if (writeQueueFull()) {
+			waitingDrain = true;
+			drainHandler(v -> {
+				waitingDrain = false;
+				flush();
+			});
+			return;
+		}
+		List<SensorChange> changes = new ArrayList<SensorChange>(queue);
+		queue.clear();
+		write(changes, dropped);
+		stats.delivered.addAndGet(changes.size());
+		dropped = 0;
+	}
+
+	void close() {
+		closed = true;
+		queue.clear();
+	}
+
+}
@@ -0,0 +1,221 @@
+package es.us.lsi.dad;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+
+/**
+ * Cache of GET response bodies of a {@link RestClientUtil}.
+ *
+ * Bodies are kept for the max-age of their Cache-Control header or, without
+ * it, for the default ttl; no-store responses are not kept and no-cache ones
+ * are revalidated on every request. Once expired, an entry with an ETag is
+ * revalidated with If-None-Match and reused if the server answers 304.
+ *
+ * Identical GETs sent while one is in flight wait for its response instead of
+ * sending their own request (single flight).
+ *
+ * Entries are evicted in LRU order when there are more than maxEntries or
+ * their bodies take more than maxBytes. As in {@link ResponseCache}, they are
+ * kept in a {@link SegmentedLru}, so a client used from several event loops
+ * does not serialize its GETs on one lock. Bodies are kept as bytes and
+ * decoded for every caller, so callers never share objects.
+ */
+public class ClientCache {
+
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final long ttlNanos;
+	private final SegmentedLru<Entry> entries;
+	// Peticiones enviadas y aun sin respuesta, por clave
+	private final Map<String, Future<HttpResponse<Buffer>>> inFlight = new ConcurrentHashMap<String, Future<HttpResponse<Buffer>>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidated = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * @param maxEntries Maximum number of entries
+	 * @param maxBytes   Maximum bytes of the cached bodies
+	 * @param ttlMs      Time a body is fresh when the response has no max-age
+	 */
+	public ClientCache(int maxEntries, long maxBytes, long ttlMs) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		entries = new SegmentedLru<Entry>(maxEntries, maxBytes, ClientCache::size);
+	}
+
+	/**
+	 * Gets a response from the cache, from the request in flight for the same
+	 * key, or by sending the request
+	 *
+	 * @param key     Absolute URI of the request, with its query params
+	 * @param request Request to send on a miss
+	 * @param send    Sends a request, counting it in the client stats
+	 * @return Response, with the cached body if it was fresh or not modified
+	 */
+	Future<HttpResponse<Buffer>> get(String key, HttpRequest<Buffer> request,
+			Function<HttpRequest<Buffer>, Future<HttpResponse<Buffer>>> send) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.isFresh()) {
+			hits.incrementAndGet();
+			return Future.succeededFuture(entry.response);
+		}
+		Promise<HttpResponse<Buffer>> promise = Promise.promise();
+		Future<HttpResponse<Buffer>> previous = inFlight.putIfAbsent(key, promise.future());
+		if (previous != null) {
+			coalesced.incrementAndGet();
+			return previous;
+		}
+		misses.incrementAndGet();
+		if (entry != null && entry.etag != null) {
+			request.putHeader("If-None-Match", entry.etag);
+		}
+		Entry stale = entry;
+		send.apply(request).onComplete(ar -> {
+			inFlight.remove(key);
+			if (ar.failed()) {
+				promise.fail(ar.cause());
+				return;
+			}
+			HttpResponse<Buffer> response = ar.result();
+			if (response.statusCode() == 304 && stale != null) {
+				revalidated.incrementAndGet();
+				store(key, stale.response, response);
+				promise.complete(stale.response);
+			} else {
+				if (response.statusCode() == 200) {
+					store(key, response, response);
+				}
+				promise.complete(response);
+			}
+		});
+		return promise.future();
+	}
+
+	/**
+	 * @param key      Cache key
+	 * @param response Response whose body is cached
+	 * @param headers  Response with the caching headers, the same one or a 304
+	 * @return Stored entry, or null if the response can not be cached
+	 */
+	private Entry store(String key, HttpResponse<Buffer> response, HttpResponse<Buffer> headers) {
+		String cacheControl = headers.getHeader("Cache-Control");
+		long freshNanos = ttlNanos;
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				String value = directive.trim().toLowerCase();
+				if (value.equals("no-store")) {
+					remove(key);
+					return null;
+				} else if (value.equals("no-cache")) {
+					freshNanos = 0;
+				} else if (value.startsWith("max-age=")) {
+					try {
+						freshNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(value.substring("max-age=".length())));
+					} catch (NumberFormatException e) {
+						freshNanos = 0;
+					}
+				}
+			}
+		}
+		String etag = headers.getHeader("ETag") != null ? headers.getHeader("ETag") : response.getHeader("ETag");
+		if (freshNanos == 0 && etag == null) {
+			// Sin ETag no se puede revalidar, no sirve de nada guardarla
+			remove(key);
+			return null;
+		}
+		Entry entry = new Entry(response, etag, System.nanoTime() + freshNanos);
+		return entries.put(key, entry) ? entry : null;
+	}
+
+	/**
+	 * Removes the entry of a key, for example after a write to the resource
+	 */
+	public void remove(String key) {
+		entries.remove(key);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	private static long size(String key, Entry entry) {
+		Buffer body = entry.response.body();
+		return ENTRY_OVERHEAD + 2L * key.length() + (body != null ? body.length() : 0);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getBytes() {
+		return entries.getBytes();
+	}
+
+	/**
+	 * @return Requests answered with a fresh entry, without a request
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Requests sent to the server, including revalidations
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Revalidations answered with 304
+	 */
+	public long getRevalidated() {
+		return revalidated.get();
+	}
+
+	/**
+	 * @return Requests that waited for an identical request in flight
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getEvictions() {
+		return entries.getEvictions();
+	}
+
+	public JsonObject toJson() {
+		return new JsonObject().put("entries", size()).put("bytes", getBytes()).put("hits", getHits())
+				.put("misses", getMisses()).put("revalidated", getRevalidated()).put("coalesced", getCoalesced())
+				.put("evictions", getEvictions());
+	}
+
+	private static class Entry {
+
+		private final HttpResponse<Buffer> response;
+		private final String etag;
+		private final long expiresNanos;
+
+		private Entry(HttpResponse<Buffer> response, String etag, long expiresNanos) {
+			this.response = response;
+			this.etag = etag;
+			this.expiresNanos = expiresNanos;
+		}
+
+		private boolean isFresh() {
+			return System.nanoTime() - expiresNanos < 0;
+		}
+
+	}
+
+}
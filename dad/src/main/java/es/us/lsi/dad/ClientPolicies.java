@@ -0,0 +1,368 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+
+/**
+ * The {@link ClientPolicy}s of {@link RestClientUtil}. Each one counts what
+ * it does in the {@link ClientStats} of the client. They are meant to be
+ * chained in the order of {@link #fromJson}:
+ * <ol>
+ * <li>{@link #deadline}: fails the request with a TimeoutException when it
+ * takes longer than timeoutMs, retries included.</li>
+ * <li>{@link #retry}: sends GET, PUT and DELETE again after a transport error
+ * or a 429, 502, 503 or 504 answer, waiting a random time up to
+ * baseBackoffMs * 2^attempt (full jitter), or the Retry-After of the answer
+ * if it is longer, while the deadline allows it.</li>
+ * <li>{@link #circuitBreaker}: after failureThreshold consecutive failures of
+ * a host (errors or 5xx), fails its requests at once with
+ * {@link CircuitOpenException} for openMs; then lets one request through and
+ * closes again if it succeeds.</li>
+ * <li>{@link #hedge}: when a GET has no answer after hedgeDelayMs, or after
+ * the given percentile of the latencies seen, sends it a second time and
+ * keeps the first answer. At most hedgeBudget of the GETs are hedged, so an
+ * overloaded server, where every request is slow, does not get twice the
+ * load.</li>
+ * </ol>
+ */
+public final class ClientPolicies {
+
+	private ClientPolicies() {
+	}
+
+	/**
+	 * Reads the policies from a JSON object with the fields timeoutMs,
+	 * maxRetries, baseBackoffMs (default 50), maxBackoffMs (default 2000),
+	 * failureThreshold, openMs (default 5000), hedgeDelayMs, hedgePercentile
+	 * and hedgeBudget (default 0.1). A policy is left out when its first field
+	 * is missing or 0.
+	 *
+	 * @param vertx Vert.x instance, for the timers
+	 * @param json  Policy settings
+	 * @return Policies in pipeline order
+	 */
+	public static List<ClientPolicy> fromJson(Vertx vertx, JsonObject json) {
+		List<ClientPolicy> policies = new ArrayList<ClientPolicy>();
+		if (json.getLong("timeoutMs", 0L) > 0) {
+			policies.add(deadline(vertx, json.getLong("timeoutMs")));
+		}
+		if (json.getInteger("maxRetries", 0) > 0) {
+			policies.add(retry(vertx, json.getInteger("maxRetries"), json.getLong("baseBackoffMs", 50L),
+					json.getLong("maxBackoffMs", 2000L)));
+		}
+		if (json.getInteger("failureThreshold", 0) > 0) {
+			policies.add(circuitBreaker(json.getInteger("failureThreshold"), json.getLong("openMs", 5000L)));
+		}
+		if (json.getLong("hedgeDelayMs", 0L) > 0) {
+			policies.add(hedge(vertx, json.getLong("hedgeDelayMs"), json.getDouble("hedgePercentile", 0.0),
+					json.getDouble("hedgeBudget", 0.1)));
+		}
+		return policies;
+	}
+
+	/**
+	 * @param timeoutMs Maximum time of the whole request, retries included
+	 */
+	public static ClientPolicy deadline(Vertx vertx, long timeoutMs) {
+		return (call, next) -> {
+			call.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+			Promise<HttpResponse<Buffer>> promise = Promise.promise();
+			long timer = vertx.setTimer(Math.max(1, call.remainingMs()), id -> {
+				if (promise.tryFail(new TimeoutException("No response in " + timeoutMs + " ms"))) {
+					call.getStats().timedOut();
+				}
+			});
+			next.get().onComplete(result -> {
+				vertx.cancelTimer(timer);
+				settle(promise, result);
+			});
+			return promise.future();
+		};
+	}
+
+	/**
+	 * @param maxRetries    Attempts after the first one
+	 * @param baseBackoffMs Maximum wait before the first retry, doubled for
+	 *                      each one
+	 * @param maxBackoffMs  Maximum wait before any retry
+	 */
+	public static ClientPolicy retry(Vertx vertx, int maxRetries, long baseBackoffMs, long maxBackoffMs) {
+		return (call, next) -> {
+			if (!call.isIdempotent()) {
+				return next.get();
+			}
+			Promise<HttpResponse<Buffer>> promise = Promise.promise();
+			attempt(vertx, call, next, promise, 0, maxRetries, baseBackoffMs, maxBackoffMs);
+			return promise.future();
+		};
+	}
+
+	private static void attempt(Vertx vertx, ClientPolicy.Call call, Supplier<Future<HttpResponse<Buffer>>> next,
+			Promise<HttpResponse<Buffer>> promise, int retry, int maxRetries, long baseBackoffMs, long maxBackoffMs) {
+		next.get().onComplete(result -> {
+			if (retry >= maxRetries || !retryable(result) || promise.future().isComplete()) {
+				settle(promise, result);
+				return;
+			}
+			long backoff = Math.min(maxBackoffMs, baseBackoffMs << Math.min(retry, 20));
+			long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+			if (result.succeeded()) {
+				delay = Math.max(delay, retryAfterMs(result.result()));
+			}
+			// Sin tiempo para otro intento se devuelve el ultimo resultado
+			if (delay >= call.remainingMs()) {
+				settle(promise, result);
+				return;
+			}
+			call.getStats().retried();
+			vertx.setTimer(Math.max(1, delay), id -> attempt(vertx, call, next, promise, retry + 1, maxRetries,
+					baseBackoffMs, maxBackoffMs));
+		});
+	}
+
+	private static boolean retryable(AsyncResult<HttpResponse<Buffer>> result) {
+		if (result.failed()) {
+			// Con el circuito abierto no se insiste
+			return !(result.cause() instanceof CircuitOpenException);
+		}
+		int status = result.result().statusCode();
+		return status == 429 || status == 502 || status == 503 || status == 504;
+	}
+
+	private static long retryAfterMs(HttpResponse<Buffer> response) {
+		Integer seconds = SensorValidation.parseInt(response.getHeader("Retry-After"));
+		return seconds != null && seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds) : 0;
+	}
+
+	/**
+	 * @param failureThreshold Consecutive failures that open the circuit of a
+	 *                         host
+	 * @param openMs           Time the circuit stays open
+	 */
+	public static ClientPolicy circuitBreaker(int failureThreshold, long openMs) {
+		Map<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+		return (call, next) -> {
+			Breaker breaker = breakers.computeIfAbsent(call.getHost(), host -> new Breaker(failureThreshold, openMs));
+			long permit = breaker.allow();
+			if (permit == Breaker.REJECTED) {
+				call.getStats().circuitRejected();
+				return Future.failedFuture(new CircuitOpenException(call.getHost()));
+			}
+			return next.get().onComplete(result -> {
+				if (breaker.record(permit, result.succeeded() && result.result().statusCode() < 500)) {
+					call.getStats().circuitOpened();
+				}
+			});
+		};
+	}
+
+	/**
+	 * @param hedgeDelayMs Time without answer before sending the GET again
+	 * @param percentile   If over 0, the hedge waits for this percentile of the
+	 *                     latencies seen instead, once there are 100 of them
+	 *                     and never less than hedgeDelayMs
+	 * @param budget       Maximum fraction of the GETs hedged
+	 */
+	public static ClientPolicy hedge(Vertx vertx, long hedgeDelayMs, double percentile, double budget) {
+		Histogram latencies = new Histogram(TimeUnit.MINUTES.toMicros(1), 2);
+		AtomicLong calls = new AtomicLong();
+		AtomicLong hedges = new AtomicLong();
+		return (call, next) -> {
+			if (call.getMethod() != HttpMethod.GET) {
+				return next.get();
+			}
+			long called = calls.incrementAndGet();
+			long delay = hedgeDelayMs;
+			if (percentile > 0) {
+				synchronized (latencies) {
+					if (latencies.getTotalCount() >= 100) {
+						delay = Math.max(delay, latencies.getValueAtPercentile(percentile) / 1000);
+					}
+				}
+			}
+			long start = System.nanoTime();
+			Promise<HttpResponse<Buffer>> promise = Promise.promise();
+			AtomicBoolean hedged = new AtomicBoolean();
+			// Solo cuenta como fallo si fallan los dos intentos
+			Attempts pending = new Attempts(2);
+			long timer = vertx.setTimer(Math.max(1, delay), id -> {
+				// Las primeras peticiones no tienen presupuesto aun; se permite una de margen
+				if (!promise.future().isComplete() && call.remainingMs() > 0
+						&& hedges.get() < budget * called + 1) {
+					hedges.incrementAndGet();
+					hedged.set(true);
+					call.getStats().hedged();
+					next.get().onComplete(result -> {
+						if (first(promise, result, pending) && result.succeeded()) {
+							call.getStats().hedgeWon();
+						}
+					});
+				} else {
+					pending.skip();
+				}
+			});
+			next.get().onComplete(result -> {
+				if (!hedged.get()) {
+					vertx.cancelTimer(timer);
+					pending.skip();
+				}
+				if (first(promise, result, pending) && result.succeeded()) {
+					synchronized (latencies) {
+						latencies.recordValue(Math.min(latencies.getHighestTrackableValue(),
+								TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+					}
+				}
+			});
+			return promise.future();
+		};
+	}
+
+	/**
+	 * @return true if the result completed the promise, false if it was already
+	 *         complete
+	 */
+	private static boolean settle(Promise<HttpResponse<Buffer>> promise, AsyncResult<HttpResponse<Buffer>> result) {
+		return result.succeeded() ? promise.tryComplete(result.result()) : promise.tryFail(result.cause());
+	}
+
+	/**
+	 * Completes the promise with a success, or with the last failure
+	 *
+	 * @return true if this result completed the promise
+	 */
+	private static boolean first(Promise<HttpResponse<Buffer>> promise, AsyncResult<HttpResponse<Buffer>> result,
+			Attempts pending) {
+		boolean last = pending.done();
+		if (result.succeeded() || last) {
+			return settle(promise, result);
+		}
+		return false;
+	}
+
+	/**
+	 * Attempts of a hedged request still to end
+	 */
+	private static class Attempts {
+
+		private int attempts;
+
+		private Attempts(int attempts) {
+			this.attempts = attempts;
+		}
+
+		private synchronized boolean done() {
+			return --attempts <= 0;
+		}
+
+		private synchronized void skip() {
+			attempts--;
+		}
+
+	}
+
+	/**
+	 * State of the circuit of one host. Every change between closed and open
+	 * starts a new generation, and only the results of requests let through in
+	 * the current one count: the late failures of requests sent before the
+	 * circuit opened do not open it again, and the requests sent before it
+	 * closed do not replace the probe.
+	 */
+	static class Breaker {
+
+		static final long REJECTED = -1;
+
+		private final int failureThreshold;
+		private final long openNanos;
+		private int failures = 0;
+		private long openUntil = 0;
+		private boolean probing = false;
+		private long generation = 0;
+
+		Breaker(int failureThreshold, long openMs) {
+			this.failureThreshold = failureThreshold;
+			this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+		}
+
+		/**
+		 * @return Permit to pass to {@link #record} if the request can be
+		 *         sent: closed circuit, or the single probe of a circuit whose
+		 *         open time has passed; {@link #REJECTED} otherwise
+		 */
+		synchronized long allow() {
+			if (failures < failureThreshold) {
+				return generation << 1;
+			}
+			if (probing || System.nanoTime() < openUntil) {
+				return REJECTED;
+			}
+			probing = true;
+			return generation << 1 | 1;
+		}
+
+		/**
+		 * @param permit  Returned by {@link #allow()} for the request
+		 * @param success If the request succeeded
+		 * @return true if this failure opened a closed circuit
+		 */
+		synchronized boolean record(long permit, boolean success) {
+			if (permit >>> 1 != generation) {
+				return false;
+			}
+			if ((permit & 1) != 0) {
+				probing = false;
+				if (success) {
+					failures = 0;
+					generation++;
+				} else {
+					openUntil = System.nanoTime() + openNanos;
+				}
+				return false;
+			}
+			if (success) {
+				failures = 0;
+				return false;
+			}
+			if (++failures < failureThreshold) {
+				return false;
+			}
+			openUntil = System.nanoTime() + openNanos;
+			generation++;
+			return true;
+		}
+
+	}
+
+	/**
+	 * Request not sent because the circuit of its host is open. Created
+	 * without stack trace, as failing fast is its purpose.
+	 */
+	public static class CircuitOpenException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String host) {
+			super("Circuit open for " + host, null, false, false);
+		}
+
+	}
+
+}
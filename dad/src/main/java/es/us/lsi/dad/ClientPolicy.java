@@ -0,0 +1,89 @@
+package es.us.lsi.dad;
+
+import java.util.function.Supplier;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.client.HttpResponse;
+
+/**
+ * Step of the pipeline every request of a {@link RestClientUtil} goes through:
+ * a deadline, retries, hedging or a circuit breaker, see
+ * {@link ClientPolicies}. A policy runs the rest of the pipeline calling
+ * next.get(), as many times as it needs, and returns the response it
+ * chooses; the last step sends the request once.
+ */
+@FunctionalInterface
+public interface ClientPolicy {
+
+	/**
+	 * @param call Request being sent
+	 * @param next Runs the rest of the pipeline, each call is a new attempt
+	 * @return Response of the request
+	 */
+	Future<HttpResponse<Buffer>> apply(Call call, Supplier<Future<HttpResponse<Buffer>>> next);
+
+	/**
+	 * A request going through the policies, shared by all its attempts
+	 */
+	class Call {
+
+		private final HttpMethod method;
+		private final String host;
+		private final ClientStats stats;
+		private long deadline = Long.MAX_VALUE;
+
+		/**
+		 * @param method Method of the request
+		 * @param host   Scheme, host and port of the request, the circuit
+		 *               breakers are kept by this key
+		 * @param stats  Counters of the client
+		 */
+		public Call(HttpMethod method, String host, ClientStats stats) {
+			this.method = method;
+			this.host = host;
+			this.stats = stats;
+		}
+
+		public HttpMethod getMethod() {
+			return method;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public ClientStats getStats() {
+			return stats;
+		}
+
+		/**
+		 * GET, PUT and DELETE can be sent again without changing the result
+		 */
+		public boolean isIdempotent() {
+			return method == HttpMethod.GET || method == HttpMethod.PUT || method == HttpMethod.DELETE;
+		}
+
+		/**
+		 * @param deadline System.nanoTime() by which the request must end; an
+		 *                 earlier deadline already set is kept
+		 */
+		public void setDeadline(long deadline) {
+			this.deadline = Math.min(this.deadline, deadline);
+		}
+
+		public boolean hasDeadline() {
+			return deadline != Long.MAX_VALUE;
+		}
+
+		/**
+		 * @return Milliseconds until the deadline, Long.MAX_VALUE without one
+		 */
+		public long remainingMs() {
+			return hasDeadline() ? (deadline - System.nanoTime()) / 1000000L : Long.MAX_VALUE;
+		}
+
+	}
+
+}
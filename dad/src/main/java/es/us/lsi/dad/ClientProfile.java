@@ -0,0 +1,265 @@
+package es.us.lsi.dad;
+
+import io.vertx.core.VertxOptions;
+import io.vertx.core.dns.AddressResolverOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClientOptions;
+
+/**
+ * Tunable connection settings of the web client used by
+ * {@link RestClientUtil}: keep-alive, pool size, wait queue, HTTP/1.1
+ * pipelining, HTTP/2 and response compression.
+ *
+ * With compression enabled the client sends Accept-Encoding: deflate, gzip
+ * and decompresses the responses before they reach {@link RestClientUtil}.
+ *
+ * With http2 enabled the client negotiates HTTP/2 with ALPN on TLS connections
+ * and with the h2c upgrade on clear text ones, falling back to HTTP/1.1 when
+ * the server does not support it.
+ *
+ * Host names are resolved by the Vert.x instance, not by the client, so the
+ * DNS cache TTLs only apply when the Vert.x instance is created with
+ * {@link #vertxOptions()}.
+ */
+public class ClientProfile {
+
+	private String userAgent = "RestClientApp/2.0.2.1";
+	private boolean keepAlive = true;
+	private int keepAliveTimeout = 60;
+	private int maxPoolSize = 16;
+	private int maxWaitQueueSize = 1024;
+	private boolean pipelining = false;
+	private int pipeliningLimit = 10;
+	private boolean http2 = false;
+	private int http2MaxPoolSize = 2;
+	private int http2MultiplexingLimit = 100;
+	private int connectTimeout = 5000;
+	private boolean compression = true;
+	private int dnsCacheMinTtl = 30;
+	private int dnsCacheMaxTtl = 300;
+	private int dnsCacheNegativeTtl = 5;
+
+	/**
+	 * @return Pooled keep-alive HTTP/1.1 connections
+	 */
+	public static ClientProfile pooled() {
+		return new ClientProfile();
+	}
+
+	/**
+	 * @return Pooled keep-alive connections using HTTP/2 when the server
+	 *         supports it
+	 */
+	public static ClientProfile multiplexed() {
+		return new ClientProfile().setHttp2(true);
+	}
+
+	/**
+	 * Reads the profile from a JSON object with the same field names. Missing
+	 * fields keep the values of {@link #pooled()}.
+	 */
+	public static ClientProfile fromJson(JsonObject json) {
+		ClientProfile profile = new ClientProfile();
+		profile.userAgent = json.getString("userAgent", profile.userAgent);
+		profile.keepAlive = json.getBoolean("keepAlive", profile.keepAlive);
+		profile.keepAliveTimeout = json.getInteger("keepAliveTimeout", profile.keepAliveTimeout);
+		profile.maxPoolSize = json.getInteger("maxPoolSize", profile.maxPoolSize);
+		profile.maxWaitQueueSize = json.getInteger("maxWaitQueueSize", profile.maxWaitQueueSize);
+		profile.pipelining = json.getBoolean("pipelining", profile.pipelining);
+		profile.pipeliningLimit = json.getInteger("pipeliningLimit", profile.pipeliningLimit);
+		profile.http2 = json.getBoolean("http2", profile.http2);
+		profile.http2MaxPoolSize = json.getInteger("http2MaxPoolSize", profile.http2MaxPoolSize);
+		profile.http2MultiplexingLimit = json.getInteger("http2MultiplexingLimit", profile.http2MultiplexingLimit);
+		profile.connectTimeout = json.getInteger("connectTimeout", profile.connectTimeout);
+		profile.compression = json.getBoolean("compression", profile.compression);
+		profile.dnsCacheMinTtl = json.getInteger("dnsCacheMinTtl", profile.dnsCacheMinTtl);
+		profile.dnsCacheMaxTtl = json.getInteger("dnsCacheMaxTtl", profile.dnsCacheMaxTtl);
+		profile.dnsCacheNegativeTtl = json.getInteger("dnsCacheNegativeTtl", profile.dnsCacheNegativeTtl);
+		return profile;
+	}
+
+	public WebClientOptions toOptions() {
+		WebClientOptions options = new WebClientOptions().setUserAgent(userAgent);
+		options.setKeepAlive(keepAlive);
+		options.setKeepAliveTimeout(keepAliveTimeout);
+		options.setMaxPoolSize(maxPoolSize);
+		options.setMaxWaitQueueSize(maxWaitQueueSize);
+		options.setPipelining(pipelining);
+		options.setPipeliningLimit(pipeliningLimit);
+		options.setConnectTimeout(connectTimeout);
+		options.setTryUseCompression(compression);
+		if (http2) {
+			options.setProtocolVersion(HttpVersion.HTTP_2);
+			options.setUseAlpn(true);
+			options.setHttp2ClearTextUpgrade(true);
+			options.setHttp2MaxPoolSize(http2MaxPoolSize);
+			options.setHttp2MultiplexingLimit(http2MultiplexingLimit);
+		}
+		return options;
+	}
+
+	/**
+	 * @return Resolver options caching DNS answers for at least dnsCacheMinTtl
+	 *         and at most dnsCacheMaxTtl seconds, whatever TTL they have
+	 */
+	public AddressResolverOptions addressResolverOptions() {
+		return new AddressResolverOptions().setCacheMinTimeToLive(dnsCacheMinTtl)
+				.setCacheMaxTimeToLive(dnsCacheMaxTtl).setCacheNegativeTimeToLive(dnsCacheNegativeTtl);
+	}
+
+	/**
+	 * @return Options to create the Vert.x instance of the client with the DNS
+	 *         cache of this profile
+	 */
+	public VertxOptions vertxOptions() {
+		return new VertxOptions().setAddressResolverOptions(addressResolverOptions());
+	}
+
+	/**
+	 * @return Requests that can be in flight at the same time on the
+	 *         connections of one host before new ones have to wait
+	 */
+	public int capacityPerHost() {
+		if (http2) {
+			return http2MaxPoolSize * http2MultiplexingLimit;
+		}
+		return maxPoolSize * (pipelining ? pipeliningLimit : 1);
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	public ClientProfile setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
+		return this;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public ClientProfile setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public ClientProfile setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+		return this;
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public ClientProfile setMaxPoolSize(int maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+		return this;
+	}
+
+	public int getMaxWaitQueueSize() {
+		return maxWaitQueueSize;
+	}
+
+	public ClientProfile setMaxWaitQueueSize(int maxWaitQueueSize) {
+		this.maxWaitQueueSize = maxWaitQueueSize;
+		return this;
+	}
+
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	public ClientProfile setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+		return this;
+	}
+
+	public int getPipeliningLimit() {
+		return pipeliningLimit;
+	}
+
+	public ClientProfile setPipeliningLimit(int pipeliningLimit) {
+		this.pipeliningLimit = pipeliningLimit;
+		return this;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public ClientProfile setHttp2(boolean http2) {
+		this.http2 = http2;
+		return this;
+	}
+
+	public int getHttp2MaxPoolSize() {
+		return http2MaxPoolSize;
+	}
+
+	public ClientProfile setHttp2MaxPoolSize(int http2MaxPoolSize) {
+		this.http2MaxPoolSize = http2MaxPoolSize;
+		return this;
+	}
+
+	public int getHttp2MultiplexingLimit() {
+		return http2MultiplexingLimit;
+	}
+
+	public ClientProfile setHttp2MultiplexingLimit(int http2MultiplexingLimit) {
+		this.http2MultiplexingLimit = http2MultiplexingLimit;
+		return this;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public ClientProfile setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public ClientProfile setCompression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public int getDnsCacheMinTtl() {
+		return dnsCacheMinTtl;
+	}
+
+	public ClientProfile setDnsCacheMinTtl(int dnsCacheMinTtl) {
+		this.dnsCacheMinTtl = dnsCacheMinTtl;
+		return this;
+	}
+
+	public int getDnsCacheMaxTtl() {
+		return dnsCacheMaxTtl;
+	}
+
+	public ClientProfile setDnsCacheMaxTtl(int dnsCacheMaxTtl) {
+		this.dnsCacheMaxTtl = dnsCacheMaxTtl;
+		return this;
+	}
+
+	public int getDnsCacheNegativeTtl() {
+		return dnsCacheNegativeTtl;
+	}
+
+	public ClientProfile setDnsCacheNegativeTtl(int dnsCacheNegativeTtl) {
+		this.dnsCacheNegativeTtl = dnsCacheNegativeTtl;
+		return this;
+	}
+
+}
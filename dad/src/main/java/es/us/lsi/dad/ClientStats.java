@@ -0,0 +1,150 @@
+package es.us.lsi.dad;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Connection pool usage of a {@link RestClientUtil}, to size its
+ * {@link ClientProfile} under load.
+ *
+ * waiting is an estimation: the requests in flight above the capacity of the
+ * pool, which Vert.x keeps in the wait queue until a connection is free.
+ * The rest of the counters are those of the {@link ClientPolicies} of the
+ * client.
+ */
+public class ClientStats {
+
+	private final int capacity;
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong totalConnections = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final AtomicLong totalRequests = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong circuitRejected = new AtomicLong();
+	private final AtomicLong circuitOpened = new AtomicLong();
+
+	public ClientStats(int capacity) {
+		this.capacity = capacity;
+	}
+
+	void connectionOpened() {
+		openConnections.incrementAndGet();
+		totalConnections.incrementAndGet();
+	}
+
+	void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	void requestStarted() {
+		totalRequests.incrementAndGet();
+		int current = inFlight.incrementAndGet();
+		maxInFlight.accumulateAndGet(current, Math::max);
+	}
+
+	void requestEnded(boolean succeeded) {
+		inFlight.decrementAndGet();
+		if (!succeeded) {
+			failedRequests.incrementAndGet();
+		}
+	}
+
+	void timedOut() {
+		timeouts.incrementAndGet();
+	}
+
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	void hedged() {
+		hedges.incrementAndGet();
+	}
+
+	void hedgeWon() {
+		hedgeWins.incrementAndGet();
+	}
+
+	void circuitRejected() {
+		circuitRejected.incrementAndGet();
+	}
+
+	void circuitOpened() {
+		circuitOpened.incrementAndGet();
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public long getTotalConnections() {
+		return totalConnections.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public int getWaiting() {
+		return Math.max(0, inFlight.get() - capacity);
+	}
+
+	public long getTotalRequests() {
+		return totalRequests.get();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	public long getCircuitRejected() {
+		return circuitRejected.get();
+	}
+
+	public long getCircuitOpened() {
+		return circuitOpened.get();
+	}
+
+	public JsonObject toJson() {
+		return new JsonObject().put("openConnections", getOpenConnections())
+				.put("totalConnections", getTotalConnections()).put("inFlight", getInFlight())
+				.put("maxInFlight", getMaxInFlight()).put("waiting", getWaiting())
+				.put("totalRequests", getTotalRequests()).put("failedRequests", getFailedRequests())
+				.put("timeouts", getTimeouts()).put("retries", getRetries()).put("hedges", getHedges())
+				.put("hedgeWins", getHedgeWins()).put("circuitRejected", getCircuitRejected())
+				.put("circuitOpened", getCircuitOpened());
+	}
+
+	@Override
+	public String toString() {
+		return "ClientStats " + toJson().encode();
+	}
+
+}
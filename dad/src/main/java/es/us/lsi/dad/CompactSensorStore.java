@@ -0,0 +1,641 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * {@link SensorStore} for large fleets that keeps sensors in columns instead of
+ * objects: one int array per numeric field, tipo and status encoded as codes
+ * of a dictionary of distinct values, and an open addressing table from
+ * id_sensor to row with int slots, without boxed keys or entry objects. The
+ * dictionaries hold at most {@link #MAX_VALUES} values each; a row whose value
+ * does not fit keeps its own String instead.
+ *
+ * Rows are kept dense: removing a sensor moves the last row into its place, so
+ * queries scan the columns from 0 to size without gaps. Queries compare the
+ * int columns and dictionary codes directly and only build a {@link Sensores}
+ * for the rows that match, when the stream reaches them.
+ *
+ * Writes take a write lock. Reads of a single sensor are optimistic and only
+ * take the read lock if a write happened meanwhile; queries copy the matching
+ * ids under the read lock and read each sensor afterwards, so they see a
+ * sensor as it is when the stream reaches it, or skip it if it was removed.
+ */
+public class CompactSensorStore implements SensorStore, Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.compactStores";
+
+	// Bits de flags: campos Integer que no son null
+	private static final byte HAS_ID = 1;
+	private static final byte HAS_UNIT = 2;
+	private static final byte HAS_DEVICE = 4;
+	// Codigo de diccionario de un String null
+	private static final int NULL_CODE = 0;
+	// Codigo de un valor que no cabe en el diccionario, guardado en la fila
+	private static final int RAW_CODE = -1;
+	/**
+	 * Maximum distinct values of a dictionary
+	 */
+	public static final int MAX_VALUES = 1024;
+
+	private final StampedLock lock = new StampedLock();
+
+	// Tabla hash de direccionamiento abierto: fila + 1, 0 es un hueco libre
+	private int[] table = new int[16];
+	private int size = 0;
+
+	private int[] idSensor = new int[8];
+	private int[] id = new int[8];
+	private int[] unit = new int[8];
+	private int[] idDevice = new int[8];
+	private byte[] flags = new byte[8];
+	private int[] tipo = new int[8];
+	private int[] status = new int[8];
+	private String[] nombre = new String[8];
+	private String[] rawTipo = new String[8];
+	private String[] rawStatus = new String[8];
+
+	private final Dictionary tipos = new Dictionary();
+	private final Dictionary statuses = new Dictionary();
+
+	/**
+	 * Gets the store registered with the given name in the Vert.x instance,
+	 * creating it if needed
+	 *
+	 * @param vertx Vert.x instance
+	 * @param name  Store name
+	 * @return Shared store
+	 */
+	public static CompactSensorStore shared(Vertx vertx, String name) {
+		LocalMap<String, CompactSensorStore> stores = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return stores.computeIfAbsent(name, key -> new CompactSensorStore());
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return Slot of the key, or the free slot where it would go
+	 */
+	private int slot(int key) {
+		int mask = table.length - 1;
+		int i = hash(key) & mask;
+		// Acotado por la longitud para que una lectura optimista no pueda ciclar
+		for (int n = 0; n < table.length; n++) {
+			int row = table[i] - 1;
+			if (row < 0 || idSensor[row] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int row(int key) {
+		int slot = slot(key);
+		return slot < 0 ? -1 : table[slot] - 1;
+	}
+
+	@Override
+	public Sensores get(int id_sensor) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				int row = row(id_sensor);
+				Sensores sensor = row >= 0 ? read(row) : null;
+				if (lock.validate(stamp)) {
+					return sensor;
+				}
+			} catch (RuntimeException e) {
+				// Columnas cambiando durante la lectura optimista, se repite con el lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			int row = row(id_sensor);
+			return row >= 0 ? read(row) : null;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public boolean contains(int id_sensor) {
+		return get(id_sensor) != null;
+	}
+
+	@Override
+	public Sensores put(Sensores sensor) {
+		Objects.requireNonNull(sensor.getId_sensor(), "id_sensor");
+		long stamp = lock.writeLock();
+		try {
+			int key = sensor.getId_sensor();
+			int slot = slot(key);
+			int row = table[slot] - 1;
+			Sensores old = null;
+			if (row >= 0) {
+				old = read(row);
+			} else {
+				if (size == idSensor.length) {
+					growColumns();
+				}
+				row = size++;
+				table[slot] = row + 1;
+			}
+			write(row, sensor);
+			if (size * 2 > table.length) {
+				rehash(table.length * 2);
+			}
+			return old;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public Sensores update(int id_sensor, UnaryOperator<Sensores> update) {
+		long stamp = lock.writeLock();
+		try {
+			int row = row(id_sensor);
+			if (row < 0) {
+				return null;
+			}
+			Sensores sensor = update.apply(read(row));
+			sensor.setId_sensor(id_sensor);
+			write(row, sensor);
+			return sensor;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public Sensores remove(int id_sensor) {
+		long stamp = lock.writeLock();
+		try {
+			int slot = slot(id_sensor);
+			int row = table[slot] - 1;
+			if (row < 0) {
+				return null;
+			}
+			Sensores old = read(row);
+			deleteSlot(slot);
+			int last = size - 1;
+			if (row != last) {
+				// La ultima fila ocupa el hueco para que las filas sigan contiguas
+				table[slot(idSensor[last])] = row + 1;
+				copyRow(last, row);
+			}
+			nombre[last] = null;
+			rawTipo[last] = null;
+			rawStatus[last] = null;
+			size--;
+			return old;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Linear probing deletion: moves back the following entries of the cluster
+	 * that would not be found across the freed slot
+	 */
+	private void deleteSlot(int slot) {
+		int mask = table.length - 1;
+		int hole = slot;
+		int i = (slot + 1) & mask;
+		while (table[i] != 0) {
+			int home = hash(idSensor[table[i] - 1]) & mask;
+			// La entrada puede ir al hueco si su posicion ideal no esta entre el hueco e i
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				table[hole] = table[i];
+				hole = i;
+			}
+			i = (i + 1) & mask;
+		}
+		table[hole] = 0;
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public Stream<Sensores> all() {
+		return sensors(ids(null, null, false, 0));
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter) {
+		if (filter.isEmpty()) {
+			return Stream.empty();
+		}
+		return sensors(ids(filter, null, false, 0)).filter(filter::matches);
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter, Integer after) {
+		if (filter.isEmpty()) {
+			return Stream.empty();
+		}
+		return sensors(ids(filter, after, true, 0)).filter(filter::matches);
+	}
+
+	/**
+	 * Selects the limit smallest matching ids after the given one while
+	 * scanning, instead of sorting every match, so a page costs a scan however
+	 * deep it is
+	 */
+	@Override
+	public Stream<Sensores> query(SensorFilter filter, Integer after, int limit) {
+		if (filter.isEmpty() || limit <= 0) {
+			return Stream.empty();
+		}
+		List<Sensores> page = new ArrayList<Sensores>(Math.min(limit, 1024));
+		Integer from = after;
+		while (page.size() < limit) {
+			int wanted = limit - page.size();
+			int[] ids = ids(filter, from, true, wanted);
+			for (int id_sensor : ids) {
+				Sensores sensor = get(id_sensor);
+				// Borrado o cambiado tras la lectura de ids: se completa la pagina con los siguientes
+				if (sensor != null && filter.matches(sensor)) {
+					page.add(sensor);
+				}
+			}
+			if (ids.length < wanted) {
+				break;
+			}
+			from = ids[ids.length - 1];
+		}
+		return page.stream();
+	}
+
+	private Stream<Sensores> sensors(int[] ids) {
+		return IntStream.of(ids).mapToObj(this::get).filter(Objects::nonNull);
+	}
+
+	/**
+	 * Scans the columns under the read lock
+	 *
+	 * @param filter Filter, or null for every sensor
+	 * @param after  Only ids greater than this one, or null
+	 * @param sorted Sort the ids
+	 * @param limit  Keep only the limit smallest ids, or 0 to keep all
+	 * @return ids of the matching rows
+	 */
+	private int[] ids(SensorFilter filter, Integer after, boolean sorted, int limit) {
+		long stamp = lock.readLock();
+		int[] res;
+		int count = 0;
+		SmallestIds smallest = null;
+		try {
+			boolean byUnit = filter != null && filter.getUnit() != null;
+			boolean byDevice = filter != null && filter.getId_device() != null;
+			boolean byStatus = filter != null && filter.getStatus() != null;
+			int unitValue = byUnit ? filter.getUnit() : 0;
+			int deviceValue = byDevice ? filter.getId_device() : 0;
+			int statusCode = byStatus ? statuses.code(filter.getStatus()) : NULL_CODE;
+			if (byStatus && statusCode == NULL_CODE) {
+				if (!statuses.isFull()) {
+					return new int[0];
+				}
+				// Un valor fuera del diccionario solo puede estar en las filas
+				statusCode = RAW_CODE;
+			}
+			if (limit > 0) {
+				smallest = new SmallestIds(limit);
+			}
+			res = smallest != null ? null : new int[size];
+			for (int row = 0; row < size; row++) {
+				if ((byUnit && ((flags[row] & HAS_UNIT) == 0 || unit[row] != unitValue))
+						|| (byDevice && ((flags[row] & HAS_DEVICE) == 0 || idDevice[row] != deviceValue))
+						|| (byStatus && (status[row] != statusCode
+								|| (statusCode == RAW_CODE && !filter.getStatus().equals(rawStatus[row]))))
+						|| (after != null && idSensor[row] <= after)) {
+					continue;
+				}
+				if (smallest != null) {
+					smallest.offer(idSensor[row]);
+				} else {
+					res[count++] = idSensor[row];
+				}
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		if (smallest != null) {
+			res = smallest.toArray();
+		} else if (count < res.length) {
+			res = Arrays.copyOf(res, count);
+		}
+		if (sorted) {
+			Arrays.sort(res);
+		}
+		return res;
+	}
+
+	private Sensores read(int row) {
+		Sensores sensor = new Sensores();
+		sensor.setId_sensor(idSensor[row]);
+		byte f = flags[row];
+		sensor.setId((f & HAS_ID) != 0 ? id[row] : null);
+		sensor.setUnit((f & HAS_UNIT) != 0 ? unit[row] : null);
+		sensor.setId_device((f & HAS_DEVICE) != 0 ? idDevice[row] : null);
+		sensor.setTipo(tipo[row] == RAW_CODE ? rawTipo[row] : tipos.value(tipo[row]));
+		sensor.setStatus(status[row] == RAW_CODE ? rawStatus[row] : statuses.value(status[row]));
+		sensor.setNombre(nombre[row]);
+		return sensor;
+	}
+
+	private void write(int row, Sensores sensor) {
+		idSensor[row] = sensor.getId_sensor();
+		byte f = 0;
+		if (sensor.getId() != null) {
+			f |= HAS_ID;
+			id[row] = sensor.getId();
+		}
+		if (sensor.getUnit() != null) {
+			f |= HAS_UNIT;
+			unit[row] = sensor.getUnit();
+		}
+		if (sensor.getId_device() != null) {
+			f |= HAS_DEVICE;
+			idDevice[row] = sensor.getId_device();
+		}
+		flags[row] = f;
+		tipo[row] = tipos.encode(sensor.getTipo());
+		rawTipo[row] = tipo[row] == RAW_CODE ? sensor.getTipo() : null;
+		status[row] = statuses.encode(sensor.getStatus());
+		rawStatus[row] = status[row] == RAW_CODE ? sensor.getStatus() : null;
+		nombre[row] = sensor.getNombre();
+	}
+
+	private void copyRow(int from, int to) {
+		idSensor[to] = idSensor[from];
+		id[to] = id[from];
+		unit[to] = unit[from];
+		idDevice[to] = idDevice[from];
+		flags[to] = flags[from];
+		tipo[to] = tipo[from];
+		status[to] = status[from];
+		nombre[to] = nombre[from];
+		rawTipo[to] = rawTipo[from];
+		rawStatus[to] = rawStatus[from];
+	}
+
+	private void growColumns() {
+		int capacity = Math.max(8, idSensor.length * 2);
+		idSensor = Arrays.copyOf(idSensor, capacity);
+		id = Arrays.copyOf(id, capacity);
+		unit = Arrays.copyOf(unit, capacity);
+		idDevice = Arrays.copyOf(idDevice, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		tipo = Arrays.copyOf(tipo, capacity);
+		status = Arrays.copyOf(status, capacity);
+		nombre = Arrays.copyOf(nombre, capacity);
+		rawTipo = Arrays.copyOf(rawTipo, capacity);
+		rawStatus = Arrays.copyOf(rawStatus, capacity);
+	}
+
+	private void rehash(int capacity) {
+		int[] newTable = new int[capacity];
+		int mask = capacity - 1;
+		for (int row = 0; row < size; row++) {
+			int i = hash(idSensor[row]) & mask;
+			while (newTable[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			newTable[i] = row + 1;
+		}
+		table = newTable;
+	}
+
+	/**
+	 * Copies the columns, for a snapshot. Writes wait while they are copied,
+	 * which only takes a few array copies.
+	 *
+	 * @return Copy of the rows, the id table and the dictionaries
+	 */
+	Columns columns() {
+		long stamp = lock.readLock();
+		try {
+			Columns columns = new Columns();
+			columns.size = size;
+			columns.table = table.clone();
+			columns.idSensor = Arrays.copyOf(idSensor, size);
+			columns.id = Arrays.copyOf(id, size);
+			columns.unit = Arrays.copyOf(unit, size);
+			columns.idDevice = Arrays.copyOf(idDevice, size);
+			columns.flags = Arrays.copyOf(flags, size);
+			columns.tipo = Arrays.copyOf(tipo, size);
+			columns.status = Arrays.copyOf(status, size);
+			columns.nombre = Arrays.copyOf(nombre, size);
+			columns.rawTipo = Arrays.copyOf(rawTipo, size);
+			columns.rawStatus = Arrays.copyOf(rawStatus, size);
+			columns.tipos = tipos.values();
+			columns.statuses = statuses.values();
+			return columns;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Replaces the content of the store with the columns of a snapshot. The
+	 * arrays are used as they are, without copying them.
+	 */
+	void load(Columns columns) {
+		long stamp = lock.writeLock();
+		try {
+			size = columns.size;
+			table = columns.table;
+			idSensor = columns.idSensor;
+			id = columns.id;
+			unit = columns.unit;
+			idDevice = columns.idDevice;
+			flags = columns.flags;
+			tipo = columns.tipo;
+			status = columns.status;
+			nombre = columns.nombre;
+			rawTipo = columns.rawTipo;
+			rawStatus = columns.rawStatus;
+			tipos.load(columns.tipos);
+			statuses.load(columns.statuses);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Raw columns of the store, see {@link SensorSnapshot}. Dictionary values
+	 * start at index 1, index 0 is null. rawTipo and rawStatus hold the values
+	 * of the rows with code -1, which did not fit in the dictionary.
+	 */
+	static class Columns {
+		int size;
+		int[] table;
+		int[] idSensor;
+		int[] id;
+		int[] unit;
+		int[] idDevice;
+		byte[] flags;
+		int[] tipo;
+		int[] status;
+		String[] nombre;
+		String[] rawTipo;
+		String[] rawStatus;
+		String[] tipos;
+		String[] statuses;
+	}
+
+	/**
+	 * Bounded max-heap keeping the limit smallest ids offered, so selecting a
+	 * page of n rows costs n log(limit) and limit ints instead of sorting all of
+	 * them
+	 */
+	private static class SmallestIds {
+
+		private final int[] heap;
+		private int size = 0;
+
+		private SmallestIds(int limit) {
+			heap = new int[limit];
+		}
+
+		private void offer(int value) {
+			int limit = heap.length;
+			if (size < limit) {
+				heap[size] = value;
+				siftUp(size++);
+			} else if (value < heap[0]) {
+				heap[0] = value;
+				siftDown(0);
+			}
+		}
+
+		private void siftUp(int i) {
+			int value = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (heap[parent] >= value) {
+					break;
+				}
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = value;
+		}
+
+		private void siftDown(int i) {
+			int value = heap[i];
+			int half = size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && heap[child + 1] > heap[child]) {
+					child++;
+				}
+				if (value >= heap[child]) {
+					break;
+				}
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = value;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(heap, size);
+		}
+
+	}
+
+	/**
+	 * Distinct values of a String column. Codes start at 1, 0 is null. Values
+	 * are never removed, so there are at most {@link #MAX_VALUES}: tipo and
+	 * status usually take a few values, but a client sending a new one on
+	 * every write must not grow the dictionary without bound.
+	 */
+	private static class Dictionary {
+
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private String[] values = new String[8];
+
+		/**
+		 * Only called with the write lock
+		 *
+		 * @return Code of the value, or -1 if it is new and the dictionary is
+		 *         full
+		 */
+		private int encode(String value) {
+			if (value == null) {
+				return NULL_CODE;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				if (isFull()) {
+					return RAW_CODE;
+				}
+				code = codes.size() + 1;
+				if (code == values.length) {
+					values = Arrays.copyOf(values, values.length * 2);
+				}
+				values[code] = value;
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		private boolean isFull() {
+			return codes.size() >= MAX_VALUES;
+		}
+
+		/**
+		 * Only called with the read lock
+		 *
+		 * @return Code of the value, or 0 if it is not in the dictionary
+		 */
+		private int code(String value) {
+			Integer code = codes.get(value);
+			return code != null ? code : NULL_CODE;
+		}
+
+		private String value(int code) {
+			return values[code];
+		}
+
+		private String[] values() {
+			return Arrays.copyOf(values, codes.size() + 1);
+		}
+
+		private void load(String[] loaded) {
+			codes.clear();
+			values = Arrays.copyOf(loaded, Math.max(8, Integer.highestOneBit(loaded.length) * 2));
+			for (int code = 1; code < loaded.length; code++) {
+				codes.put(loaded[code], code);
+			}
+		}
+
+	}
+
+}
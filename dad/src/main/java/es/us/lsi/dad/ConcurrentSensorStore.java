@@ -0,0 +1,145 @@
+package es.us.lsi.dad;
+
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * In-memory {@link SensorStore} that can be shared by several verticle
+ * instances.
+ *
+ * Reads are lock-free on a {@link ConcurrentHashMap}. Writes take one of a
+ * fixed set of striped locks, chosen by id_sensor, so the map and the
+ * {@link SensorIndex} are updated together for a given sensor while writes to
+ * different sensors proceed in parallel.
+ *
+ * A sorted set of every id_sensor backs the keyset pagination of unfiltered
+ * queries; filtered ones use the sorted posting sets of the index.
+ */
+public class ConcurrentSensorStore implements SensorStore, Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.stores";
+	private static final int STRIPES = 64;
+
+	private final ConcurrentHashMap<Integer, Sensores> sensores = new ConcurrentHashMap<Integer, Sensores>();
+	private final ConcurrentSkipListSet<Integer> ids = new ConcurrentSkipListSet<Integer>();
+	private final SensorIndex index = new SensorIndex();
+	private final Object[] locks = new Object[STRIPES];
+
+	public ConcurrentSensorStore() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Gets the store registered with the given name in the Vert.x instance,
+	 * creating it if needed. Every verticle instance asking for the same name
+	 * gets the same store.
+	 *
+	 * @param vertx Vert.x instance
+	 * @param name  Store name
+	 * @return Shared store
+	 */
+	public static ConcurrentSensorStore shared(Vertx vertx, String name) {
+		LocalMap<String, ConcurrentSensorStore> stores = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return stores.computeIfAbsent(name, key -> new ConcurrentSensorStore());
+	}
+
+	private Object lockFor(int id_sensor) {
+		int h = id_sensor * 0x9E3779B9;
+		return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public Sensores get(int id_sensor) {
+		return sensores.get(id_sensor);
+	}
+
+	@Override
+	public boolean contains(int id_sensor) {
+		return sensores.containsKey(id_sensor);
+	}
+
+	@Override
+	public Sensores put(Sensores sensor) {
+		Objects.requireNonNull(sensor.getId_sensor(), "id_sensor");
+		synchronized (lockFor(sensor.getId_sensor())) {
+			Sensores old = sensores.put(sensor.getId_sensor(), sensor);
+			if (old != null) {
+				index.remove(old);
+			} else {
+				ids.add(sensor.getId_sensor());
+			}
+			index.add(sensor);
+			return old;
+		}
+	}
+
+	@Override
+	public Sensores update(int id_sensor, UnaryOperator<Sensores> update) {
+		synchronized (lockFor(id_sensor)) {
+			Sensores old = sensores.get(id_sensor);
+			if (old == null) {
+				return null;
+			}
+			Sensores sensor = update.apply(old);
+			sensor.setId_sensor(id_sensor);
+			sensores.put(id_sensor, sensor);
+			index.remove(old);
+			index.add(sensor);
+			return sensor;
+		}
+	}
+
+	@Override
+	public Sensores remove(int id_sensor) {
+		synchronized (lockFor(id_sensor)) {
+			Sensores old = sensores.remove(id_sensor);
+			if (old != null) {
+				index.remove(old);
+				ids.remove(id_sensor);
+			}
+			return old;
+		}
+	}
+
+	@Override
+	public int size() {
+		return sensores.size();
+	}
+
+	@Override
+	public Stream<Sensores> all() {
+		return sensores.values().stream();
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter) {
+		if (filter.isAll()) {
+			return all();
+		}
+		// The index may be ahead of or behind the map for sensors being written
+		return index.query(filter).map(sensores::get).filter(sensor -> sensor != null && filter.matches(sensor));
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter, Integer after) {
+		Stream<Integer> matching;
+		if (filter.isAll()) {
+			NavigableSet<Integer> tail = after != null ? ids.tailSet(after, false) : ids;
+			matching = tail.stream();
+		} else {
+			matching = index.query(filter, after);
+		}
+		return matching.map(sensores::get).filter(sensor -> sensor != null && filter.matches(sensor));
+	}
+
+}
@@ -0,0 +1,193 @@
+package es.us.lsi.dad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Request template for one REST resource. Scheme, host, port, path template
+ * and default headers are resolved once, when the endpoint is created; each
+ * request only binds the path variables and adds its query params, without
+ * building and parsing an absolute URL.
+ *
+ * Path templates use the same syntax as the routes of {@link RestServer}, for
+ * example api/sensores/:id_sensor. Variables are bound in order of appearance
+ * and each value is percent-encoded as one path segment, so a value with /, ?
+ * or # can not change the resource requested.
+ */
+public class Endpoint {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final boolean ssl;
+	private final String host;
+	private final int port;
+	private final String template;
+	// Literal parts of the path; a variable goes between each pair of them
+	private final String[] literals;
+	private final String[] variables;
+	// Path of templates without variables, built once
+	private final String fixedPath;
+	private final MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+
+	private Endpoint(boolean ssl, String host, int port, String template, String[] literals, String[] variables) {
+		this.ssl = ssl;
+		this.host = host;
+		this.port = port;
+		this.template = template;
+		this.literals = literals;
+		this.variables = variables;
+		this.fixedPath = variables.length == 0 ? literals[0] : null;
+	}
+
+	/**
+	 * @param port         Port
+	 * @param host         Host address, optionally with http:// or https://
+	 *                     scheme as in the other {@link RestClientUtil} methods
+	 * @param pathTemplate Path of the resource, with :name variables
+	 * @return Endpoint for the resource
+	 */
+	public static Endpoint of(Integer port, String host, String pathTemplate) {
+		boolean ssl = false;
+		String hostName = host;
+		if (host.startsWith("https://")) {
+			ssl = true;
+			hostName = host.substring("https://".length());
+		} else if (host.startsWith("http://")) {
+			hostName = host.substring("http://".length());
+		}
+		if (hostName.endsWith("/")) {
+			hostName = hostName.substring(0, hostName.length() - 1);
+		}
+		String path = pathTemplate.startsWith("/") ? pathTemplate : "/" + pathTemplate;
+
+		List<String> literals = new ArrayList<String>();
+		List<String> variables = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		for (String segment : path.substring(1).split("/", -1)) {
+			literal.append('/');
+			if (segment.startsWith(":")) {
+				literals.add(literal.toString());
+				variables.add(segment.substring(1));
+				literal.setLength(0);
+			} else {
+				literal.append(segment);
+			}
+		}
+		literals.add(literal.toString());
+		return new Endpoint(ssl, hostName, port, path, literals.toArray(new String[0]),
+				variables.toArray(new String[0]));
+	}
+
+	/**
+	 * Adds a header sent with every request of this endpoint
+	 *
+	 * @return This endpoint
+	 */
+	public Endpoint header(String name, String value) {
+		headers.add(name, value);
+		return this;
+	}
+
+	/**
+	 * @param values Values of the path variables, in order
+	 * @return Path with the variables bound, percent-encoded
+	 */
+	public String path(Object... values) {
+		if (values.length != variables.length) {
+			throw new IllegalArgumentException(
+					"Endpoint " + template + " expects " + variables.length + " path values, got " + values.length);
+		}
+		if (fixedPath != null) {
+			return fixedPath;
+		}
+		StringBuilder path = new StringBuilder(template.length() + 16);
+		for (int i = 0; i < variables.length; i++) {
+			path.append(literals[i]);
+			appendSegment(path, values[i]);
+		}
+		return path.append(literals[variables.length]).toString();
+	}
+
+	/**
+	 * Appends a value as a path segment, percent-encoding its UTF-8 bytes except
+	 * the unreserved characters of RFC 3986
+	 */
+	private static void appendSegment(StringBuilder path, Object value) {
+		if (value instanceof Integer || value instanceof Long) {
+			// Digitos y signo no se codifican
+			path.append(value);
+			return;
+		}
+		String segment = String.valueOf(value);
+		for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+			int c = b & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+					|| c == '_' || c == '~') {
+				path.append((char) c);
+			} else {
+				path.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+			}
+		}
+	}
+
+	/**
+	 * @param values Values of the path variables, in order
+	 * @return Absolute URI with the variables bound
+	 */
+	public String uri(Object... values) {
+		return (ssl ? "https://" : "http://") + host + ":" + port + path(values);
+	}
+
+	/**
+	 * Creates a request to this endpoint
+	 *
+	 * @param client Web client
+	 * @param method HTTP method
+	 * @param values Values of the path variables, in order
+	 * @return Request with the default headers of the endpoint
+	 */
+	public HttpRequest<Buffer> request(WebClient client, HttpMethod method, Object... values) {
+		HttpRequest<Buffer> request = client.request(method, port, host, path(values)).ssl(ssl);
+		if (!headers.isEmpty()) {
+			request.putHeaders(headers);
+		}
+		return request;
+	}
+
+	/**
+	 * @return Scheme, host and port of the endpoint, as
+	 *         {@link RestClientUtil#authority(String)}
+	 */
+	String authority() {
+		return (ssl ? "https://" : "http://") + host + ":" + port;
+	}
+
+	public boolean isSsl() {
+		return ssl;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	@Override
+	public String toString() {
+		return (ssl ? "https://" : "http://") + host + ":" + port + template;
+	}
+
+}
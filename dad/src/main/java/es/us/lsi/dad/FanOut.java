@@ -0,0 +1,324 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Sends one request per input with at most concurrency of them in flight, and
+ * returns their results in the order of the inputs. Created with
+ * {@link RestClientUtil#fanOut}.
+ *
+ * Results are kept in a window until the ones before them arrive, and a
+ * request is only sent when there is room in the window, so a slow request or
+ * a paused consumer stops the sending instead of filling the memory or the
+ * server. The results can be read as a {@link ReadStream}, with
+ * pause/resume/fetch, or all at once with {@link #all()} or
+ * {@link #settle()}.
+ *
+ * With failFast the first failed request, in any position, ends the fan-out:
+ * the exception handler gets its cause and no more requests are sent; the ones
+ * in flight are left to finish unread. Otherwise every request is sent and
+ * each {@link Outcome} tells if it failed.
+ *
+ * Not thread safe: it must be used from the context that created it, as the
+ * event loop of a verticle.
+ *
+ * @param <I> Type of the inputs
+ * @param <R> Type of the results
+ */
+public class FanOut<I, R> implements ReadStream<FanOut.Outcome<I, R>> {
+
+	private final Context context;
+	private final Iterator<I> inputs;
+	private final BiConsumer<I, Promise<R>> call;
+	private int concurrency = 32;
+	private boolean failFast = false;
+
+	// Peticiones enviadas y aun no entregadas, en orden de entrada
+	private final ArrayDeque<Outcome<I, R>> window = new ArrayDeque<Outcome<I, R>>();
+	private Handler<Outcome<I, R>> handler;
+	private Handler<Throwable> exceptionHandler;
+	private Handler<Void> endHandler;
+	private long demand = Long.MAX_VALUE;
+	private int sent = 0;
+	private boolean started = false;
+	private boolean exhausted = false;
+	private boolean ended = false;
+	private boolean draining = false;
+	private boolean again = false;
+
+	/**
+	 * @param vertx  Vert.x instance, results are handled on its current context
+	 * @param inputs Inputs, read one by one as there is room in the window
+	 * @param call   Sends the request of an input and completes the promise
+	 *               with its result, as the methods of {@link RestClientUtil}
+	 */
+	public FanOut(Vertx vertx, Iterator<I> inputs, BiConsumer<I, Promise<R>> call) {
+		this.context = vertx.getOrCreateContext();
+		this.inputs = inputs;
+		this.call = call;
+	}
+
+	/**
+	 * @param concurrency Maximum requests sent and not yet read, 32 by default.
+	 *                    More than the connections of the client only makes
+	 *                    them wait in its queue.
+	 * @return This instance
+	 */
+	public FanOut<I, R> concurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1, got " + concurrency);
+		}
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * @param failFast true to stop at the first failed request
+	 * @return This instance
+	 */
+	public FanOut<I, R> failFast(boolean failFast) {
+		this.failFast = failFast;
+		return this;
+	}
+
+	/**
+	 * Sends every request, stopping at the first failure
+	 *
+	 * @return Results in the order of the inputs, or the first failure
+	 */
+	public Future<List<R>> all() {
+		failFast(true);
+		return settle().map(outcomes -> {
+			List<R> results = new ArrayList<R>(outcomes.size());
+			outcomes.forEach(outcome -> results.add(outcome.result()));
+			return results;
+		});
+	}
+
+	/**
+	 * Sends every request, failed or not, unless failFast is set
+	 *
+	 * @return Outcomes in the order of the inputs
+	 */
+	public Future<List<Outcome<I, R>>> settle() {
+		Promise<List<Outcome<I, R>>> promise = Promise.promise();
+		List<Outcome<I, R>> outcomes = new ArrayList<Outcome<I, R>>();
+		exceptionHandler(promise::tryFail);
+		endHandler(v -> promise.tryComplete(outcomes));
+		handler(outcomes::add);
+		return promise.future();
+	}
+
+	@Override
+	public FanOut<I, R> exceptionHandler(Handler<Throwable> handler) {
+		this.exceptionHandler = handler;
+		return this;
+	}
+
+	/**
+	 * Sets the handler of the results and starts sending the requests
+	 */
+	@Override
+	public FanOut<I, R> handler(Handler<Outcome<I, R>> handler) {
+		this.handler = handler;
+		if (handler != null && !started) {
+			started = true;
+			context.runOnContext(v -> drain());
+		}
+		return this;
+	}
+
+	@Override
+	public FanOut<I, R> pause() {
+		demand = 0;
+		return this;
+	}
+
+	@Override
+	public FanOut<I, R> resume() {
+		return fetch(Long.MAX_VALUE);
+	}
+
+	@Override
+	public FanOut<I, R> fetch(long amount) {
+		if (amount > 0) {
+			demand = demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+			if (started) {
+				context.runOnContext(v -> drain());
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public FanOut<I, R> endHandler(Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+	/**
+	 * Delivers the results at the head of the window and sends requests while
+	 * there is room, until neither is possible
+	 */
+	private void drain() {
+		// Una respuesta puede llegar durante el envio; se repite la vuelta en lugar de entrar otra vez
+		if (draining) {
+			again = true;
+			return;
+		}
+		draining = true;
+		try {
+			do {
+				again = false;
+				deliver();
+				send();
+			} while (again && !ended);
+			if (exhausted && window.isEmpty() && !ended) {
+				ended = true;
+				if (endHandler != null) {
+					endHandler.handle(null);
+				}
+			}
+		} finally {
+			draining = false;
+		}
+	}
+
+	private void deliver() {
+		// Sin handler los resultados esperan en la ventana, como en pausa
+		while (!ended && handler != null && demand > 0 && !window.isEmpty() && window.peek().done) {
+			Outcome<I, R> outcome = window.poll();
+			if (demand != Long.MAX_VALUE) {
+				demand--;
+			}
+			handler.handle(outcome);
+		}
+	}
+
+	private void send() {
+		while (!ended && !exhausted && window.size() < concurrency) {
+			I input;
+			try {
+				if (!inputs.hasNext()) {
+					exhausted = true;
+					return;
+				}
+				input = inputs.next();
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			Outcome<I, R> outcome = new Outcome<I, R>(sent++, input);
+			window.add(outcome);
+			Promise<R> promise = Promise.promise();
+			promise.future().onComplete(result -> {
+				if (Vertx.currentContext() == context) {
+					complete(outcome, result);
+				} else {
+					context.runOnContext(v -> complete(outcome, result));
+				}
+			});
+			try {
+				call.accept(input, promise);
+			} catch (RuntimeException e) {
+				promise.tryFail(e);
+			}
+		}
+	}
+
+	private void complete(Outcome<I, R> outcome, AsyncResult<R> result) {
+		outcome.done = true;
+		outcome.result = result.result();
+		outcome.cause = result.cause();
+		if (ended) {
+			return;
+		}
+		if (failFast && result.failed()) {
+			fail(result.cause());
+			return;
+		}
+		// Solo el primero de la ventana deja entregar y enviar mas
+		if (outcome == window.peek()) {
+			drain();
+		}
+	}
+
+	private void fail(Throwable cause) {
+		ended = true;
+		window.clear();
+		if (exceptionHandler != null) {
+			exceptionHandler.handle(cause);
+		}
+	}
+
+	/**
+	 * Result of the request of one input
+	 *
+	 * @param <I> Type of the input
+	 * @param <R> Type of the result
+	 */
+	public static class Outcome<I, R> implements AsyncResult<R> {
+
+		private final int index;
+		private final I input;
+		private boolean done = false;
+		private R result;
+		private Throwable cause;
+
+		private Outcome(int index, I input) {
+			this.index = index;
+			this.input = input;
+		}
+
+		/**
+		 * @return Position of the input, from 0
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public I getInput() {
+			return input;
+		}
+
+		@Override
+		public R result() {
+			return result;
+		}
+
+		@Override
+		public Throwable cause() {
+			return cause;
+		}
+
+		@Override
+		public boolean succeeded() {
+			return done && cause == null;
+		}
+
+		@Override
+		public boolean failed() {
+			return cause != null;
+		}
+
+		@Override
+		public String toString() {
+			return "Outcome [index=" + index + ", input=" + input + ", "
+					+ (failed() ? "cause=" + cause : "result=" + result) + "]";
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+package es.us.lsi.dad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with fixed buckets, as the ones of a Prometheus
+ * histogram. Recording only increments atomic counters, so it can be shared by
+ * every event loop and does not allocate.
+ */
+public class LatencyHistogram {
+
+	// Limites superiores de los buckets, de 50us a 10s
+	private static final long[] BOUNDS = { us(50), us(100), us(250), us(500), ms(1), ms(2), ms(5), ms(10), ms(25),
+			ms(50), ms(100), ms(250), ms(500), ms(1000), ms(2500), ms(10000) };
+
+	// Un bucket por limite y uno mas para +Inf
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong sumNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	private static long us(long micros) {
+		return TimeUnit.MICROSECONDS.toNanos(micros);
+	}
+
+	private static long ms(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		sumNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	public long getSumNanos() {
+		return sumNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Appends the histogram in Prometheus text format, with cumulative buckets
+	 * and durations in seconds
+	 *
+	 * @param out    Output
+	 * @param name   Metric name, without the _bucket, _sum and _count suffixes
+	 * @param labels Labels of the metric, such as route="getOne", or empty
+	 */
+	public void writePrometheus(StringBuilder out, String name, String labels) {
+		String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += buckets.get(i);
+			out.append(name).append("_bucket").append(prefix).append("le=\"").append(seconds(BOUNDS[i]))
+					.append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += buckets.get(BOUNDS.length);
+		out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+		String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(suffix).append(' ').append(seconds(sumNanos.get())).append('\n');
+		out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+	}
+
+	static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+}
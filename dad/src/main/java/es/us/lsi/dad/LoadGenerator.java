@@ -0,0 +1,365 @@
+package es.us.lsi.dad;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Load generator for {@link RestServer}, built on {@link RestClientUtil}.
+ * Sends a weighted mix of getOne, getAll, addOne, putOne and deleteOne
+ * requests and reports latency percentiles and throughput per operation.
+ *
+ * With a target rate (open model) requests are scheduled at fixed intervals,
+ * whether or not the previous ones have finished. When concurrency requests
+ * are already in flight the next ones wait, and their latency is measured
+ * from the time they should have been sent, not from the time they were sent,
+ * so a stalled server is not hidden by the generator slowing down
+ * (coordinated omission). The service time, from the actual send, is reported
+ * too. With rate 0 (closed model) concurrency requests are kept in flight and
+ * both times are the same.
+ *
+ * Config, all optional:
+ *
+ * <pre>
+ * { "host": "http://localhost", "port": 8080, "rate": 1000, "concurrency": 64,
+ *   "duration": 30, "warmup": 5, "fleetSize": 1000,
+ *   "mix": { "getOne": 70, "getAll": 10, "addOne": 10, "putOne": 5, "deleteOne": 5 },
+ *   "client": { ClientProfile }, "resilience": { ClientPolicies }, "output": "load-report.json" }
+ * </pre>
+ *
+ * rate is in requests per second, duration and warmup in seconds. Requests
+ * scheduled during the warmup are not recorded. The report is printed when the
+ * run ends and, with output, also written as JSON.
+ */
+public class LoadGenerator extends AbstractVerticle {
+
+	// Latencias en microsegundos, hasta un minuto, con 3 cifras significativas
+	private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(1);
+
+	private static final String GET_ONE = "getOne";
+	private static final String GET_ALL = "getAll";
+	private static final String ADD_ONE = "addOne";
+	private static final String PUT_ONE = "putOne";
+	private static final String DELETE_ONE = "deleteOne";
+	private static final List<String> OPERATIONS = Arrays.asList(GET_ONE, GET_ALL, ADD_ONE, PUT_ONE, DELETE_ONE);
+
+	private RestClientUtil restClientUtil;
+	private Endpoint all;
+	private Endpoint one;
+	private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+	private Operation[] mix;
+	private int[] cumulativeWeights;
+	private int totalWeight;
+
+	private long intervalNanos;
+	private int concurrency;
+	private int fleetSize;
+	private long startNanos;
+	private long measureStartNanos;
+	private long endNanos;
+	// Open model: requests are numbered, request n should start at
+	// startNanos + n * intervalNanos; scheduled n are due, sent n have been sent
+	private long scheduled = 0;
+	private long sent = 0;
+	private int inFlight = 0;
+	private boolean finished = false;
+	private long timer = -1;
+	private Promise<JsonObject> done;
+
+	/**
+	 * Runs the load generator with the config of the JSON file given as first
+	 * argument, or the default config, and exits when it finishes. The Vert.x
+	 * instance is created with the DNS cache of the client profile.
+	 */
+	public static void main(String[] args) throws IOException {
+		JsonObject config = args.length > 0
+				? new JsonObject(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8))
+				: new JsonObject();
+		Vertx vertx = Vertx.vertx(
+				ClientProfile.fromJson(config.getJsonObject("client", new JsonObject())).vertxOptions());
+		vertx.deployVerticle(new LoadGenerator(), new DeploymentOptions().setConfig(config), deploy -> {
+			if (deploy.failed()) {
+				System.out.println("Error deploying verticle");
+				deploy.cause().printStackTrace();
+			}
+			vertx.close();
+		});
+	}
+
+	/**
+	 * The verticle is deployed once the run has finished and the report has been
+	 * printed
+	 */
+	public void start(Promise<Void> startFuture) {
+		JsonObject config = config();
+		String host = config.getString("host", "http://localhost");
+		int port = config.getInteger("port", 8080);
+		restClientUtil = RestClientUtil.create(vertx,
+				ClientProfile.fromJson(config.getJsonObject("client", new JsonObject())));
+		restClientUtil
+				.setPolicies(ClientPolicies.fromJson(vertx, config.getJsonObject("resilience", new JsonObject())));
+		all = restClientUtil.endpoint(port, host, "api/sensores");
+		one = restClientUtil.endpoint(port, host, "api/sensores/:id_sensor");
+
+		double rate = config.getDouble("rate", 1000.0);
+		intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+		concurrency = config.getInteger("concurrency", 64);
+		fleetSize = config.getInteger("fleetSize", 1000);
+		JsonObject weights = config.getJsonObject("mix", new JsonObject().put("getOne", 70).put("getAll", 10)
+				.put("addOne", 10).put("putOne", 5).put("deleteOne", 5));
+		try {
+			buildMix(weights);
+		} catch (IllegalArgumentException e) {
+			startFuture.fail(e);
+			return;
+		}
+
+		startNanos = System.nanoTime();
+		measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getLong("warmup", 5L));
+		endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(config.getLong("duration", 30L));
+		done = Promise.promise();
+		if (intervalNanos > 0) {
+			timer = vertx.setPeriodic(1, id -> tick());
+		} else {
+			for (int i = 0; i < concurrency; i++) {
+				send(System.nanoTime());
+			}
+		}
+
+		String output = config.getString("output");
+		done.future().compose(report -> {
+			System.out.println(format(report));
+			return output != null ? vertx.fileSystem().writeFile(output, Buffer.buffer(report.encodePrettily()))
+					: Future.<Void>succeededFuture();
+		}).onComplete(startFuture);
+	}
+
+	@Override
+	public void stop() {
+		if (restClientUtil != null) {
+			restClientUtil.client.close();
+		}
+	}
+
+	private void buildMix(JsonObject weights) {
+		for (String name : weights.fieldNames()) {
+			if (!OPERATIONS.contains(name)) {
+				throw new IllegalArgumentException("Unknown operation in mix: " + name);
+			}
+			int weight = weights.getInteger(name);
+			if (weight > 0) {
+				operations.put(name, new Operation(name));
+			}
+		}
+		if (operations.isEmpty()) {
+			throw new IllegalArgumentException("Empty request mix");
+		}
+		mix = operations.values().toArray(new Operation[0]);
+		cumulativeWeights = new int[mix.length];
+		for (int i = 0; i < mix.length; i++) {
+			totalWeight += weights.getInteger(mix[i].name);
+			cumulativeWeights[i] = totalWeight;
+		}
+	}
+
+	/**
+	 * Open model: marks as due every request whose start time has passed and
+	 * sends as many of them as the concurrency allows
+	 */
+	private void tick() {
+		long now = System.nanoTime();
+		if (now >= endNanos) {
+			vertx.cancelTimer(timer);
+			// Last request is the one due before the end
+			scheduled = (endNanos - startNanos - 1) / intervalNanos + 1;
+		} else {
+			scheduled = (now - startNanos) / intervalNanos + 1;
+		}
+		sendDue();
+		finishIfDone(now);
+	}
+
+	private void sendDue() {
+		while (inFlight < concurrency && sent < scheduled) {
+			send(startNanos + sent * intervalNanos);
+			sent++;
+		}
+	}
+
+	/**
+	 * @param intended Time the request should start at, in nanoTime
+	 */
+	private void send(long intended) {
+		Operation operation = pick();
+		long sendNanos = System.nanoTime();
+		inFlight++;
+		operation.run().onComplete(ar -> {
+			inFlight--;
+			long now = System.nanoTime();
+			if (intended >= measureStartNanos && intended < endNanos) {
+				operation.record(ar.succeeded(), now - intended, now - sendNanos);
+			}
+			if (intervalNanos > 0) {
+				sendDue();
+			} else if (now < endNanos) {
+				send(now);
+			}
+			finishIfDone(now);
+		});
+	}
+
+	private Operation pick() {
+		int value = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (value < cumulativeWeights[i]) {
+				return mix[i];
+			}
+		}
+		return mix[mix.length - 1];
+	}
+
+	private void finishIfDone(long now) {
+		boolean allSent = intervalNanos == 0 || (now >= endNanos && sent >= scheduled);
+		if (!finished && now >= endNanos && allSent && inFlight == 0) {
+			finished = true;
+			done.complete(report(TimeUnit.NANOSECONDS.toMillis(endNanos - measureStartNanos)));
+		}
+	}
+
+	private JsonObject report(long durationMs) {
+		JsonObject report = new JsonObject().put("durationMs", durationMs)
+				.put("targetRate", intervalNanos > 0 ? TimeUnit.SECONDS.toNanos(1) / intervalNanos : 0)
+				.put("concurrency", concurrency).put("client", restClientUtil.stats().toJson());
+		JsonArray list = new JsonArray();
+		Histogram total = new Histogram(MAX_LATENCY_US, 3);
+		Histogram totalService = new Histogram(MAX_LATENCY_US, 3);
+		long errors = 0;
+		for (Operation operation : operations.values()) {
+			list.add(operation.toJson(durationMs));
+			total.add(operation.latency);
+			totalService.add(operation.service);
+			errors += operation.errors;
+		}
+		report.put("operations", list);
+		report.put("total", summary("total", total, totalService, errors, durationMs));
+		return report;
+	}
+
+	private static JsonObject summary(String name, Histogram latency, Histogram service, long errors,
+			long durationMs) {
+		return new JsonObject().put("operation", name).put("requests", latency.getTotalCount()).put("errors", errors)
+				.put("throughput", durationMs > 0 ? latency.getTotalCount() * 1000.0 / durationMs : 0)
+				.put("latencyUs", percentiles(latency)).put("serviceTimeUs", percentiles(service));
+	}
+
+	private static JsonObject percentiles(Histogram histogram) {
+		return new JsonObject().put("p50", histogram.getValueAtPercentile(50))
+				.put("p90", histogram.getValueAtPercentile(90)).put("p99", histogram.getValueAtPercentile(99))
+				.put("p999", histogram.getValueAtPercentile(99.9)).put("max", histogram.getMaxValue())
+				.put("mean", histogram.getMean());
+	}
+
+	private static String format(JsonObject report) {
+		StringBuilder res = new StringBuilder();
+		res.append(String.format("Target rate %s req/s, concurrency %s, measured %s ms%n",
+				report.getLong("targetRate") > 0 ? report.getLong("targetRate") : "max", report.getInteger("concurrency"),
+				report.getLong("durationMs")));
+		res.append(String.format("%-10s %9s %7s %10s %9s %9s %9s %9s %9s %9s%n", "operation", "requests", "errors",
+				"req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99"));
+		for (Object operation : report.getJsonArray("operations").add(report.getJsonObject("total"))) {
+			JsonObject row = (JsonObject) operation;
+			JsonObject latency = row.getJsonObject("latencyUs");
+			res.append(String.format("%-10s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+					row.getString("operation"), row.getLong("requests"), row.getLong("errors"),
+					row.getDouble("throughput"), latency.getLong("p50") / 1000.0, latency.getLong("p90") / 1000.0,
+					latency.getLong("p99") / 1000.0, latency.getLong("p999") / 1000.0,
+					latency.getLong("max") / 1000.0, row.getJsonObject("serviceTimeUs").getLong("p99") / 1000.0));
+		}
+		return res.toString();
+	}
+
+	/**
+	 * One kind of request of the mix and its histograms. Only used from the
+	 * event loop of the verticle.
+	 */
+	private class Operation {
+
+		private final String name;
+		private final Histogram latency = new Histogram(MAX_LATENCY_US, 3);
+		private final Histogram service = new Histogram(MAX_LATENCY_US, 3);
+		private long errors = 0;
+
+		private Operation(String name) {
+			this.name = name;
+		}
+
+		private Future<?> run() {
+			int id = ThreadLocalRandom.current().nextInt(fleetSize);
+			switch (name) {
+			case GET_ONE: {
+				Promise<Sensores> promise = Promise.promise();
+				restClientUtil.getRequest(one, Sensores.class, promise, id);
+				return promise.future();
+			}
+			case GET_ALL: {
+				Promise<Sensores[]> promise = Promise.promise();
+				restClientUtil.getRequestWithParams(all, Sensores[].class, promise,
+						Collections.singletonMap("unit", String.valueOf(id % 10)));
+				return promise.future();
+			}
+			case ADD_ONE: {
+				Promise<Sensores> promise = Promise.promise();
+				restClientUtil.postRequest(all, sensor(id), Sensores.class, promise);
+				return promise.future();
+			}
+			case PUT_ONE: {
+				Promise<Sensores> promise = Promise.promise();
+				restClientUtil.putRequest(one, sensor(id), Sensores.class, promise, id);
+				return promise.future();
+			}
+			default: {
+				Promise<String> promise = Promise.promise();
+				restClientUtil.deleteRequest(one, promise, id);
+				return promise.future();
+			}
+			}
+		}
+
+		private Sensores sensor(int id) {
+			return new Sensores(id, id % 10, id % 100, id % 2 == 0 ? "ON" : "OFF");
+		}
+
+		private void record(boolean succeeded, long latencyNanos, long serviceNanos) {
+			if (!succeeded) {
+				errors++;
+			}
+			latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), MAX_LATENCY_US));
+			service.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(serviceNanos), MAX_LATENCY_US));
+		}
+
+		private JsonObject toJson(long durationMs) {
+			return summary(name, latency, service, errors, durationMs);
+		}
+
+	}
+
+}
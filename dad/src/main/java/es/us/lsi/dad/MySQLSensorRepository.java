@@ -0,0 +1,133 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Persistence of {@link Sensores} in a MySQL table through a pooled
+ * {@link MySQLPool}.
+ *
+ * Every statement is a prepared statement. The connect options enable the
+ * per-connection prepared statement cache, so each pooled connection prepares
+ * a statement once and then only sends its parameters.
+ */
+public class MySQLSensorRepository {
+
+	private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS sensores ("
+			+ "id_sensor INT NOT NULL PRIMARY KEY, nombre VARCHAR(255), tipo VARCHAR(255), id INT, unit INT, "
+			+ "id_device INT, status VARCHAR(255))";
+	private static final String SELECT_ALL = "SELECT id_sensor, nombre, tipo, id, unit, id_device, status FROM sensores";
+	private static final String UPSERT = "INSERT INTO sensores (id_sensor, nombre, tipo, id, unit, id_device, status) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE nombre = VALUES(nombre), tipo = VALUES(tipo), "
+			+ "id = VALUES(id), unit = VALUES(unit), id_device = VALUES(id_device), status = VALUES(status)";
+	private static final String DELETE = "DELETE FROM sensores WHERE id_sensor = ?";
+
+	private final MySQLPool pool;
+	private final int batchSize;
+
+	public MySQLSensorRepository(MySQLPool pool, int batchSize) {
+		this.pool = pool;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Creates the repository from the "mysql" object of the verticle config:
+	 * host, port, database, user, password, poolSize, preparedStatementCacheSize
+	 * and batchSize.
+	 *
+	 * @param vertx  Vert.x instance
+	 * @param config MySQL config
+	 * @return Repository using a new pool
+	 */
+	public static MySQLSensorRepository create(Vertx vertx, JsonObject config) {
+		MySQLConnectOptions connectOptions = new MySQLConnectOptions()
+				.setHost(config.getString("host", "localhost"))
+				.setPort(config.getInteger("port", 3306))
+				.setDatabase(config.getString("database", "dad"))
+				.setUser(config.getString("user", "root"))
+				.setPassword(config.getString("password", ""));
+		connectOptions.setCachePreparedStatements(true);
+		connectOptions.setPreparedStatementCacheMaxSize(config.getInteger("preparedStatementCacheSize", 32));
+		PoolOptions poolOptions = new PoolOptions().setMaxSize(config.getInteger("poolSize", 8));
+		return new MySQLSensorRepository(MySQLPool.pool(vertx, connectOptions, poolOptions),
+				config.getInteger("batchSize", 500));
+	}
+
+	public Future<Void> createSchema() {
+		return pool.query(CREATE_TABLE).execute().mapEmpty();
+	}
+
+	/**
+	 * @return Every sensor stored in the table
+	 */
+	public Future<List<Sensores>> loadAll() {
+		return pool.preparedQuery(SELECT_ALL).execute().map(rows -> {
+			List<Sensores> res = new ArrayList<Sensores>(rows.size());
+			for (Row row : rows) {
+				res.add(fromRow(row));
+			}
+			return res;
+		});
+	}
+
+	/**
+	 * Inserts or replaces a sensor
+	 */
+	public Future<Void> save(Sensores sensor) {
+		return pool.preparedQuery(UPSERT).execute(toTuple(sensor)).mapEmpty();
+	}
+
+	/**
+	 * Inserts or replaces several sensors, sending them in batches of batchSize
+	 * rows on the same prepared statement.
+	 */
+	public Future<Void> saveAll(List<Sensores> sensors) {
+		Future<Void> res = Future.succeededFuture();
+		for (int from = 0; from < sensors.size(); from += batchSize) {
+			List<Tuple> batch = new ArrayList<Tuple>(Math.min(batchSize, sensors.size() - from));
+			for (Sensores sensor : sensors.subList(from, Math.min(from + batchSize, sensors.size()))) {
+				batch.add(toTuple(sensor));
+			}
+			res = res.compose(v -> pool.preparedQuery(UPSERT).executeBatch(batch).mapEmpty());
+		}
+		return res;
+	}
+
+	/**
+	 * @return true if a row was deleted
+	 */
+	public Future<Boolean> delete(int id_sensor) {
+		return pool.preparedQuery(DELETE).execute(Tuple.of(id_sensor)).map(rows -> rows.rowCount() > 0);
+	}
+
+	public Future<Void> close() {
+		Promise<Void> promise = Promise.promise();
+		pool.close(promise);
+		return promise.future();
+	}
+
+	private static Tuple toTuple(Sensores sensor) {
+		return Tuple.of(sensor.getId_sensor(), sensor.getNombre(), sensor.getTipo(), sensor.getId(),
+				sensor.getUnit(), sensor.getId_device(), sensor.getStatus());
+	}
+
+	private static Sensores fromRow(Row row) {
+		Sensores sensor = new Sensores(row.getInteger("id_sensor"), row.getInteger("unit"),
+				row.getInteger("id_device"), row.getString("status"));
+		sensor.setNombre(row.getString("nombre"));
+		sensor.setTipo(row.getString("tipo"));
+		sensor.setId(row.getInteger("id"));
+		return sensor;
+	}
+
+}
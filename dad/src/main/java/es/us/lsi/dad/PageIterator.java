@@ -0,0 +1,88 @@
+package es.us.lsi.dad;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.client.HttpRequest;
+
+/**
+ * Lazy iterator over the pages of a resource using keyset pagination, such as
+ * GET /api/sensores. Each call to {@link #next(Promise)} requests one page with
+ * the cursor returned by the previous one. Create it with
+ * {@link RestClientUtil#getPages}.
+ *
+ * @param <T> Type of the page, an array of the listed resource
+ */
+public class PageIterator<T> {
+
+	private final RestClientUtil restClientUtil;
+	private final String uri;
+	private final Class<T> classType;
+	private final Map<String, String> params;
+	private String cursor;
+	private boolean done = false;
+	private boolean fetching = false;
+
+	PageIterator(RestClientUtil restClientUtil, String uri, Class<T> classType, Map<String, String> params,
+			int limit) {
+		this.restClientUtil = restClientUtil;
+		this.uri = uri;
+		this.classType = classType;
+		this.params = new HashMap<String, String>(params);
+		this.params.put("limit", Integer.toString(limit));
+	}
+
+	/**
+	 * @return true until a page without next cursor has been read
+	 */
+	public boolean hasNext() {
+		return !done;
+	}
+
+	/**
+	 * Requests the next page. Must not be called again until the promise is
+	 * completed.
+	 * 
+	 * @param promise Promise completed with the page
+	 */
+	public void next(Promise<T> promise) {
+		if (done) {
+			promise.fail(new IllegalStateException("No more pages"));
+			return;
+		}
+		if (fetching) {
+			promise.fail(new IllegalStateException("A page is already being fetched"));
+			return;
+		}
+		fetching = true;
+		HttpRequest<Buffer> httpRequest = restClientUtil.negotiated(restClientUtil.client.getAbs(uri));
+		params.forEach(httpRequest::addQueryParam);
+		if (cursor != null) {
+			httpRequest.addQueryParam("cursor", cursor);
+		}
+		restClientUtil.execute(HttpMethod.GET, RestClientUtil.authority(uri), httpRequest, null).onComplete(elem -> {
+			fetching = false;
+			if (elem.succeeded() && elem.result().statusCode() == 200) {
+				T page;
+				try {
+					page = restClientUtil.decode(elem.result(), classType);
+				} catch (RuntimeException e) {
+					// Sin avanzar el cursor, next vuelve a pedir la misma pagina
+					promise.fail(e);
+					return;
+				}
+				cursor = elem.result().getHeader(SensorCursor.HEADER);
+				done = cursor == null;
+				promise.complete(page);
+			} else if (elem.succeeded()) {
+				promise.fail(new IllegalStateException("Page request failed with status " + elem.result().statusCode()));
+			} else {
+				promise.fail(elem.cause());
+			}
+		});
+	}
+
+}
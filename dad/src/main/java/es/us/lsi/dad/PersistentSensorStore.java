@@ -0,0 +1,319 @@
+package es.us.lsi.dad;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * {@link CompactSensorStore} that survives restarts. The store is written
+ * periodically to a {@link SensorSnapshot} and every write in between is
+ * appended to a {@link SensorChangeLog}; on start the snapshot is mapped and
+ * copied into the columns and the logs after it are replayed, so a restart
+ * costs a few bulk copies plus the writes since the last snapshot instead of
+ * reloading the fleet.
+ *
+ * Logs are numbered by generation. Taking a snapshot switches the writes to a
+ * new log, writes the columns tagged with that generation and then deletes the
+ * older logs, so a crash at any point leaves a snapshot and the logs needed to
+ * bring it up to date.
+ */
+public class PersistentSensorStore implements SensorStore, Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.persistentStores";
+	private static final String SNAPSHOT = "sensores.snapshot";
+	private static final String LOG_PREFIX = "changes-";
+	private static final String LOG_SUFFIX = ".log";
+
+	private final CompactSensorStore store = new CompactSensorStore();
+	private final Path dir;
+	private final long snapshotIntervalMs;
+	private final long fsyncIntervalMs;
+
+	private Future<Void> opened;
+	private SensorChangeLog log;
+	private long generation;
+	private boolean changed = false;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param dir                Directory of the snapshot and the logs
+	 * @param snapshotIntervalMs Time between snapshots, only taken if there were
+	 *                           writes
+	 * @param fsyncIntervalMs    Time between forcing the log to disk, the writes
+	 *                           that can be lost on a crash
+	 */
+	public PersistentSensorStore(Path dir, long snapshotIntervalMs, long fsyncIntervalMs) {
+		this.dir = dir;
+		this.snapshotIntervalMs = snapshotIntervalMs;
+		this.fsyncIntervalMs = fsyncIntervalMs;
+	}
+
+	/**
+	 * Gets the store registered with the given name in the Vert.x instance,
+	 * creating it if needed. The store is empty until {@link #open(Vertx)}
+	 * completes.
+	 *
+	 * @param vertx  Vert.x instance
+	 * @param name   Store name
+	 * @param config dir (default data), snapshotIntervalMs (default 60000) and
+	 *               fsyncIntervalMs (default 1000)
+	 * @return Shared store
+	 */
+	public static PersistentSensorStore shared(Vertx vertx, String name, JsonObject config) {
+		LocalMap<String, PersistentSensorStore> stores = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return stores.computeIfAbsent(name,
+				key -> new PersistentSensorStore(Paths.get(config.getString("dir", "data")),
+						config.getLong("snapshotIntervalMs", 60000L), config.getLong("fsyncIntervalMs", 1000L)));
+	}
+
+	/**
+	 * Loads the snapshot and replays the logs in a worker thread, then starts
+	 * logging the writes. Only the first call loads, the rest get the same
+	 * future.
+	 *
+	 * @param vertx Vert.x instance
+	 * @return Future completed when the store can be used
+	 */
+	public synchronized Future<Void> open(Vertx vertx) {
+		if (opened == null) {
+			opened = vertx.executeBlocking(promise -> {
+				try {
+					recover();
+					promise.complete();
+				} catch (IOException e) {
+					promise.fail(e);
+				}
+			}, false);
+		}
+		return opened;
+	}
+
+	private synchronized void recover() throws IOException {
+		Files.createDirectories(dir);
+		long start = System.nanoTime();
+		Path snapshot = dir.resolve(SNAPSHOT);
+		long first = 0;
+		if (Files.exists(snapshot)) {
+			CompactSensorStore.Columns columns = new CompactSensorStore.Columns();
+			first = SensorSnapshot.read(snapshot, columns);
+			store.load(columns);
+		}
+		generation = first;
+		int replayed = 0;
+		for (long logGeneration : logGenerations()) {
+			if (logGeneration >= first) {
+				replayed += SensorChangeLog.replay(logFile(logGeneration), store);
+				generation = logGeneration;
+			}
+		}
+		// Se sigue escribiendo al final del ultimo log, ya sin el registro a medias
+		changed = replayed > 0;
+		log = new SensorChangeLog(logFile(generation));
+		System.out.println("Loaded " + store.size() + " sensors from " + dir + " (" + replayed + " changes) in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sensor-persistence");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::sync, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotIntervalMs, snapshotIntervalMs,
+				TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::sync));
+	}
+
+	private List<Long> logGenerations() throws IOException {
+		List<Long> generations = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					generations.add(Long.parseLong(
+							name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// No es un log de este almacen
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	private Path logFile(long generation) {
+		return dir.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+	}
+
+	/**
+	 * Forces the log to disk. Only the check of pending records takes the lock
+	 * of the writes; the fsync runs outside it, so writes go on meanwhile.
+	 */
+	public void sync() {
+		SensorChangeLog syncing;
+		synchronized (this) {
+			if (log == null || !log.takeDirty()) {
+				return;
+			}
+			syncing = log;
+		}
+		try {
+			syncing.force();
+		} catch (ClosedChannelException e) {
+			// Lo cerro un snapshot o close, que ya fuerzan el log al cerrarlo
+		} catch (IOException e) {
+			System.err.println("Error syncing the sensor log: " + e.getMessage());
+		}
+	}
+
+	private void snapshotIfChanged() {
+		try {
+			snapshot();
+		} catch (IOException e) {
+			System.err.println("Error writing the sensor snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a snapshot if there were writes since the last one. Writes only
+	 * wait while the columns are copied and the log is switched, not while the
+	 * snapshot is written.
+	 */
+	public void snapshot() throws IOException {
+		CompactSensorStore.Columns columns;
+		long snapshotGeneration;
+		synchronized (this) {
+			if (!changed || log == null) {
+				return;
+			}
+			columns = store.columns();
+			log.close();
+			snapshotGeneration = ++generation;
+			log = new SensorChangeLog(logFile(snapshotGeneration));
+			changed = false;
+		}
+		SensorSnapshot.write(dir.resolve(SNAPSHOT), columns, snapshotGeneration);
+		for (long logGeneration : logGenerations()) {
+			if (logGeneration < snapshotGeneration) {
+				Files.deleteIfExists(logFile(logGeneration));
+			}
+		}
+	}
+
+	/**
+	 * Stops the periodic snapshots and closes the log
+	 */
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		try {
+			if (log != null) {
+				log.close();
+				log = null;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void logPut(Sensores sensor) {
+		changed = true;
+		try {
+			if (log != null) {
+				log.put(sensor);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void logDelete(int id_sensor) {
+		changed = true;
+		try {
+			if (log != null) {
+				log.delete(id_sensor);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public Sensores get(int id_sensor) {
+		return store.get(id_sensor);
+	}
+
+	@Override
+	public boolean contains(int id_sensor) {
+		return store.contains(id_sensor);
+	}
+
+	@Override
+	public synchronized Sensores put(Sensores sensor) {
+		Sensores old = store.put(sensor);
+		logPut(sensor);
+		return old;
+	}
+
+	@Override
+	public synchronized Sensores update(int id_sensor, UnaryOperator<Sensores> update) {
+		Sensores sensor = store.update(id_sensor, update);
+		if (sensor != null) {
+			logPut(sensor);
+		}
+		return sensor;
+	}
+
+	@Override
+	public synchronized Sensores remove(int id_sensor) {
+		Sensores old = store.remove(id_sensor);
+		if (old != null) {
+			logDelete(id_sensor);
+		}
+		return old;
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Stream<Sensores> all() {
+		return store.all();
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter) {
+		return store.query(filter);
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter, Integer after) {
+		return store.query(filter, after);
+	}
+
+	@Override
+	public Stream<Sensores> query(SensorFilter filter, Integer after, int limit) {
+		return store.query(filter, after, limit);
+	}
+
+}
@@ -0,0 +1,257 @@
+package es.us.lsi.dad;
+
+import java.util.Arrays;
+
+/**
+ * Immutable block of readings of one sensor compressed as in Gorilla:
+ * timestamps as deltas of deltas, which are 0 for readings sent at a fixed
+ * rate and take one bit, and values as the XOR with the previous value, which
+ * is 0 or has few meaningful bits for values that change slowly.
+ *
+ * The chunk keeps the min, max and sum of its values, so a query whose bucket
+ * covers the whole chunk does not need to decompress it.
+ */
+public class ReadingChunk {
+
+	private final long[] bits;
+	private final int count;
+	private final long first;
+	private final long last;
+	private final double min;
+	private final double max;
+	private final double sum;
+
+	private ReadingChunk(long[] bits, int count, long first, long last, double min, double max, double sum) {
+		this.bits = bits;
+		this.count = count;
+		this.first = first;
+		this.last = last;
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+	}
+
+	/**
+	 * @param timestamps Timestamps in ms, in ascending order
+	 * @param values     Values of the readings
+	 * @param count      Number of readings to compress, at least 1
+	 * @return Compressed chunk
+	 */
+	public static ReadingChunk encode(long[] timestamps, double[] values, int count) {
+		BitWriter out = new BitWriter(count);
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+
+		out.write(timestamps[0], 64);
+		out.write(Double.doubleToRawLongBits(values[0]), 64);
+		long previousDelta = 0;
+		long previousBits = Double.doubleToRawLongBits(values[0]);
+		int previousLeading = Integer.MAX_VALUE;
+		int previousTrailing = 0;
+		for (int i = 0; i < count; i++) {
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+			sum += values[i];
+			if (i == 0) {
+				continue;
+			}
+
+			long delta = timestamps[i] - timestamps[i - 1];
+			long deltaOfDelta = delta - previousDelta;
+			previousDelta = delta;
+			if (deltaOfDelta == 0) {
+				out.write(0, 1);
+			} else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+				out.write(0b10, 2);
+				out.write(deltaOfDelta, 7);
+			} else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+				out.write(0b110, 3);
+				out.write(deltaOfDelta, 9);
+			} else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+				out.write(0b1110, 4);
+				out.write(deltaOfDelta, 12);
+			} else {
+				out.write(0b1111, 4);
+				out.write(deltaOfDelta, 64);
+			}
+
+			long valueBits = Double.doubleToRawLongBits(values[i]);
+			long xor = valueBits ^ previousBits;
+			previousBits = valueBits;
+			if (xor == 0) {
+				out.write(0, 1);
+				continue;
+			}
+			int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (leading >= previousLeading && trailing >= previousTrailing) {
+				// Los bits significativos caben en la ventana del valor anterior
+				out.write(0b10, 2);
+				out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+			} else {
+				int meaningful = 64 - leading - trailing;
+				out.write(0b11, 2);
+				out.write(leading, 5);
+				out.write(meaningful - 1, 6);
+				out.write(xor >>> trailing, meaningful);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+		}
+		return new ReadingChunk(out.toArray(), count, timestamps[0], timestamps[count - 1], min, max, sum);
+	}
+
+	/**
+	 * Decompresses the readings in order
+	 */
+	public void forEach(ReadingConsumer consumer) {
+		BitReader in = new BitReader(bits);
+		long timestamp = in.read(64);
+		long valueBits = in.read(64);
+		consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+		long delta = 0;
+		int leading = 0;
+		int trailing = 0;
+		for (int i = 1; i < count; i++) {
+			if (in.read(1) == 1) {
+				if (in.read(1) == 0) {
+					delta += in.readSigned(7);
+				} else if (in.read(1) == 0) {
+					delta += in.readSigned(9);
+				} else if (in.read(1) == 0) {
+					delta += in.readSigned(12);
+				} else {
+					delta += in.read(64);
+				}
+			}
+			timestamp += delta;
+
+			if (in.read(1) == 1) {
+				if (in.read(1) == 1) {
+					leading = (int) in.read(5);
+					int meaningful = (int) in.read(6) + 1;
+					trailing = 64 - leading - meaningful;
+				}
+				valueBits ^= in.read(64 - leading - trailing) << trailing;
+			}
+			consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Timestamp of the first reading
+	 */
+	public long getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return Timestamp of the last reading
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return Approximate bytes taken by the chunk
+	 */
+	public long sizeInBytes() {
+		return 64 + 8L * bits.length;
+	}
+
+	/**
+	 * Receives the readings of a chunk
+	 */
+	@FunctionalInterface
+	public interface ReadingConsumer {
+		void accept(long timestamp, double value);
+	}
+
+	private static class BitWriter {
+
+		private long[] words;
+		private int position = 0;
+
+		private BitWriter(int count) {
+			// Unos 2 bytes por lectura en series regulares
+			words = new long[Math.max(4, count / 4)];
+		}
+
+		/**
+		 * Writes the lowest bits of value, most significant first
+		 */
+		private void write(long value, int bits) {
+			if (bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+			int word = position >>> 6;
+			if (word + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+			int offset = position & 63;
+			int free = 64 - offset;
+			if (bits <= free) {
+				words[word] |= value << (free - bits);
+			} else {
+				words[word] |= value >>> (bits - free);
+				words[word + 1] |= value << (64 - (bits - free));
+			}
+			position += bits;
+		}
+
+		private long[] toArray() {
+			return Arrays.copyOf(words, (position + 63) >>> 6);
+		}
+
+	}
+
+	private static class BitReader {
+
+		private final long[] words;
+		private int position = 0;
+
+		private BitReader(long[] words) {
+			this.words = words;
+		}
+
+		private long read(int bits) {
+			int word = position >>> 6;
+			int offset = position & 63;
+			int available = 64 - offset;
+			long value;
+			if (bits <= available) {
+				value = words[word] << offset >>> (64 - bits);
+			} else {
+				int rest = bits - available;
+				value = (words[word] << offset >>> offset) << rest | words[word + 1] >>> (64 - rest);
+			}
+			position += bits;
+			return value;
+		}
+
+		private long readSigned(int bits) {
+			long value = read(bits);
+			// Extension de signo del complemento a dos de bits bits
+			return value << (64 - bits) >> (64 - bits);
+		}
+
+	}
+
+}
@@ -0,0 +1,290 @@
+package es.us.lsi.dad;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Cache of the serialized bodies of GET /api/sensores/:id_sensor and of the
+ * filtered lists of GET /api/sensores, with the ETag of each body and of its
+ * gzip.
+ *
+ * Every write to the store must call {@link #invalidate(int)}, which removes
+ * the entry of the sensor and increments the version counter. List entries
+ * are only valid while the version is the one they were built with, as any
+ * write can change a list. An entry is only stored if the version did not
+ * change while it was being built, so a response built from a sensor read
+ * before a write is never cached after it.
+ *
+ * Each {@link SensorFormat} of a body is a separate entry, see
+ * {@link #variant}.
+ *
+ * Entries are evicted in LRU order when there are more than maxEntries or
+ * their bodies take more than maxBytes. The entries are kept in a
+ * {@link SegmentedLru}, so the event loops of the instances, which share the
+ * cache as they share the store, do not wait for each other on every GET.
+ */
+public class ResponseCache implements Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.caches";
+	// Tamano aproximado de una entrada sin contar el cuerpo
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final AtomicLong version = new AtomicLong();
+	private final SegmentedLru<Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+
+	public ResponseCache(int maxEntries, long maxBytes) {
+		entries = new SegmentedLru<Entry>(maxEntries, maxBytes, ResponseCache::size);
+	}
+
+	/**
+	 * Gets the cache registered with the given name in the Vert.x instance,
+	 * creating it with the given config if needed
+	 *
+	 * @param vertx  Vert.x instance
+	 * @param name   Cache name, usually the name of the store
+	 * @param config "cache" object of the verticle config: maxEntries and
+	 *               maxBytes
+	 * @return Shared cache
+	 */
+	public static ResponseCache shared(Vertx vertx, String name, JsonObject config) {
+		LocalMap<String, ResponseCache> caches = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return caches.computeIfAbsent(name, key -> new ResponseCache(config.getInteger("maxEntries", 10000),
+				config.getLong("maxBytes", 64L * 1024 * 1024)));
+	}
+
+	public static String sensorKey(int id_sensor) {
+		return "sensor:" + id_sensor;
+	}
+
+	/**
+	 * @param key    Key of a sensor or list
+	 * @param format Format of the body
+	 * @return Key of the body in that format
+	 */
+	public static String variant(String key, SensorFormat format) {
+		return format == SensorFormat.JSON ? key : key + "|" + format;
+	}
+
+	/**
+	 * @param filter Filter of the list; its attributes are already parsed, so
+	 *               equivalent queries get the same key
+	 */
+	public static String listKey(SensorFilter filter) {
+		return "list:" + filter;
+	}
+
+	/**
+	 * @return Current version, to pass to {@link #put} once the body is built
+	 */
+	public long version() {
+		return version.get();
+	}
+
+	/**
+	 * @param key Cache key
+	 * @return Valid entry of the key, or null
+	 */
+	public Entry get(String key) {
+		Entry entry = entries.get(key, this::isValid);
+		(entry != null ? hits : misses).incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Stores a body, unless the version changed since it was read
+	 *
+	 * @param key       Cache key
+	 * @param body      Serialized body, it must not be modified afterwards
+	 * @param version   Version read before reading the store
+	 * @param versioned true if any write invalidates the entry (lists), false
+	 *                  if only writes to its sensor do
+	 * @return Entry with the body and its ETag, stored or not
+	 */
+	public Entry put(String key, Buffer body, long version, boolean versioned) {
+		return put(key, body, null, version, versioned);
+	}
+
+	/**
+	 * Same as {@link #put(String, Buffer, long, boolean)}, keeping the gzip of
+	 * the body too
+	 *
+	 * @param gzipped Compressed body, or null; it gets the ETag of the body with
+	 *                a -gzip suffix, as it is a different representation
+	 */
+	public Entry put(String key, Buffer body, Buffer gzipped, long version, boolean versioned) {
+		String etag = etag(body);
+		Entry entry = new Entry(body, gzipped, etag, gzipped != null ? gzipEtag(etag) : null, version, versioned);
+		// Con el cerrojo del segmento: o ve la version nueva, o invalidate quita la entrada despues
+		entries.put(key, entry, () -> this.version.get() == version);
+		return entry;
+	}
+
+	/**
+	 * Invalidates the entry of a sensor and every list. Must be called after
+	 * the sensor is written to the store.
+	 *
+	 * @param id_sensor Sensor written
+	 */
+	public void invalidate(int id_sensor) {
+		String key = sensorKey(id_sensor);
+		// Antes de quitar las entradas: un put posterior en su segmento ya ve la version nueva
+		version.incrementAndGet();
+		for (SensorFormat format : SensorFormat.values()) {
+			String variant = variant(key, format);
+			entries.remove(variant);
+		}
+	}
+
+	/**
+	 * Counts a request answered with 304
+	 */
+	public void notModified() {
+		notModified.incrementAndGet();
+	}
+
+	private boolean isValid(Entry entry) {
+		return !entry.versioned || entry.version == version.get();
+	}
+
+	private static long size(String key, Entry entry) {
+		return ENTRY_OVERHEAD + 2L * key.length() + entry.body.length()
+				+ (entry.gzipped != null ? entry.gzipped.length() + entry.gzipEtag.length() : 0)
+				+ entry.etag.length();
+	}
+
+	/**
+	 * Strong ETag from a 64 bit FNV-1a hash of the body
+	 */
+	private static String etag(Buffer body) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < body.length(); i++) {
+			hash ^= body.getByte(i) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return "\"" + Long.toHexString(hash) + "\"";
+	}
+
+	private static String gzipEtag(String etag) {
+		return etag.substring(0, etag.length() - 1) + "-gzip\"";
+	}
+
+	/**
+	 * @param ifNoneMatch Value of the If-None-Match header, may be null
+	 * @param etag        ETag of the current body
+	 * @return true if the client already has the current body
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			String value = tag.trim();
+			// Comparacion debil, como pide RFC 7232 para If-None-Match
+			if (value.startsWith("W/")) {
+				value = value.substring(2);
+			}
+			if (value.equals("*") || value.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getBytes() {
+		return entries.getBytes();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return entries.getEvictions();
+	}
+
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	/**
+	 * Appends the cache counters in Prometheus text format
+	 */
+	public void writePrometheus(StringBuilder out) {
+		out.append("# TYPE dad_response_cache_hits_total counter\n");
+		out.append("dad_response_cache_hits_total ").append(getHits()).append('\n');
+		out.append("# TYPE dad_response_cache_misses_total counter\n");
+		out.append("dad_response_cache_misses_total ").append(getMisses()).append('\n');
+		out.append("# TYPE dad_response_cache_evictions_total counter\n");
+		out.append("dad_response_cache_evictions_total ").append(getEvictions()).append('\n');
+		out.append("# TYPE dad_response_cache_not_modified_total counter\n");
+		out.append("dad_response_cache_not_modified_total ").append(getNotModified()).append('\n');
+		out.append("# TYPE dad_response_cache_entries gauge\n");
+		out.append("dad_response_cache_entries ").append(size()).append('\n');
+		out.append("# TYPE dad_response_cache_bytes gauge\n");
+		out.append("dad_response_cache_bytes ").append(getBytes()).append('\n');
+	}
+
+	/**
+	 * Serialized body with its ETag, and its gzip if it was compressed
+	 */
+	public static class Entry {
+
+		private final Buffer body;
+		private final Buffer gzipped;
+		private final String etag;
+		private final String gzipEtag;
+		private final long version;
+		private final boolean versioned;
+
+		private Entry(Buffer body, Buffer gzipped, String etag, String gzipEtag, long version,
+				boolean versioned) {
+			this.body = body;
+			this.gzipped = gzipped;
+			this.etag = etag;
+			this.gzipEtag = gzipEtag;
+			this.version = version;
+			this.versioned = versioned;
+		}
+
+		public Buffer getBody() {
+			return body;
+		}
+
+		/**
+		 * @return gzip of the body, or null
+		 */
+		public Buffer getGzipped() {
+			return gzipped;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return ETag of the gzip of the body, or null
+		 */
+		public String getGzipEtag() {
+			return gzipEtag;
+		}
+
+	}
+
+}
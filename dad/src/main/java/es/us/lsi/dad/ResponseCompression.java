@@ -0,0 +1,141 @@
+package es.us.lsi.dad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * gzip and deflate compression of the responses of {@link RestServer}.
+ *
+ * Responses are compressed by the HTTP server as they are written, chunked
+ * lists included, when the client sends Accept-Encoding. Bodies shorter than
+ * minSize are sent with Content-Encoding identity, which the server leaves
+ * alone, as compressing a single sensor costs more CPU than the bytes it
+ * saves. Cached bodies can be compressed once with {@link #gzip} and sent as
+ * they are with {@link #end(HttpServerRequest, HttpServerResponse, Buffer, Buffer)},
+ * so a cache hit does no compression work.
+ */
+public class ResponseCompression {
+
+	private final boolean enabled;
+	private final int level;
+	private final int minSize;
+
+	/**
+	 * @param enabled false to send every response uncompressed
+	 * @param level   Compression level, 1 (fastest) to 9 (smallest)
+	 * @param minSize Minimum body size in bytes to compress it
+	 */
+	public ResponseCompression(boolean enabled, int level, int minSize) {
+		this.enabled = enabled;
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @return Options with the compression settings, to create the server
+	 */
+	public HttpServerOptions apply(HttpServerOptions options) {
+		return options.setCompressionSupported(enabled).setCompressionLevel(level);
+	}
+
+	/**
+	 * Ends the response, uncompressed if the body is under minSize
+	 */
+	public void end(HttpServerResponse response, Buffer body) {
+		if (enabled && body.length() < minSize) {
+			response.putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+		}
+		response.end(body);
+	}
+
+	/**
+	 * Ends the response with the gzip body if {@link #sendsGzip} is true, so
+	 * the server does not compress it again. Otherwise the body is sent
+	 * uncompressed, as the ETag of a cached body names only these two
+	 * representations.
+	 *
+	 * @param body    Uncompressed body
+	 * @param gzipped Result of {@link #gzip} for the body, may be null
+	 */
+	public void end(HttpServerRequest request, HttpServerResponse response, Buffer body, Buffer gzipped) {
+		if (sendsGzip(request, gzipped)) {
+			response.putHeader(HttpHeaders.CONTENT_ENCODING, "gzip").end(gzipped);
+		} else if (gzipped != null) {
+			response.putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY).end(body);
+		} else {
+			end(response, body);
+		}
+	}
+
+	/**
+	 * @param gzipped Result of {@link #gzip} for the body, may be null
+	 * @return true if there is a gzip body and the client accepts it
+	 */
+	public boolean sendsGzip(HttpServerRequest request, Buffer gzipped) {
+		return gzipped != null && acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+	}
+
+	/**
+	 * @param body Body to compress, not modified
+	 * @return gzip of the body, or null if it is under minSize or compression
+	 *         is disabled
+	 */
+	public Buffer gzip(Buffer body) {
+		if (!enabled || body.length() < minSize) {
+			return null;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() / 4 + 64);
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes, 8192) {
+			{
+				def.setLevel(level);
+			}
+		}) {
+			out.write(body.getBytes());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return Buffer.buffer(bytes.toByteArray());
+	}
+
+	/**
+	 * @param acceptEncoding Accept-Encoding header, may be null
+	 * @return true if gzip is listed, or matched by *, without q=0
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		// gzip explicito manda sobre el comodin
+		Boolean gzip = null;
+		boolean any = false;
+		for (String coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+			boolean accepted = semicolon < 0
+					|| !coding.substring(semicolon + 1).replace(" ", "").matches("q=0(\\.0*)?");
+			if (name.equalsIgnoreCase("gzip")) {
+				gzip = accepted;
+			} else if (name.equals("*")) {
+				any = accepted;
+			}
+		}
+		return gzip != null ? gzip : any;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+}
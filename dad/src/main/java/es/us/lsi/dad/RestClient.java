@@ -7,17 +7,26 @@ import java.util.stream.Stream;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Promise;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.core.json.JsonObject;
 
 public class RestClient extends AbstractVerticle {
 
 	public RestClientUtil restClientUtil;
 
 	public void start(Promise<Void> startFuture) {
-		WebClientOptions options = new WebClientOptions().setUserAgent("RestClientApp/2.0.2.1");
-		options.setKeepAlive(false);
-		restClientUtil = new RestClientUtil(WebClient.create(vertx, options));
+		// Conexiones persistentes y HTTP/2 (ALPN) contra el servidor TLS de mockapi
+		ClientProfile profile = config().containsKey("client")
+				? ClientProfile.fromJson(config().getJsonObject("client"))
+				: ClientProfile.multiplexed();
+		restClientUtil = RestClientUtil.create(vertx, profile);
+		// Plazo, reintentos y circuito por host contra un servicio remoto que puede fallar
+		JsonObject resilience = config().getJsonObject("resilience",
+				new JsonObject().put("timeoutMs", 5000).put("maxRetries", 2).put("failureThreshold", 5));
+		restClientUtil.setPolicies(ClientPolicies.fromJson(vertx, resilience));
+
+		// Plantilla del recurso, resuelta una sola vez
+		Endpoint sens = restClientUtil.endpoint(443, "https://67d144b8825945773eb3a6f7.mockapi.io",
+				"api/v1/Sens/:id");
 
 		/* --------------- GET many request --------------- */
 
@@ -48,8 +57,7 @@ public class RestClient extends AbstractVerticle {
 			}
 		});
 
-		restClientUtil.getRequest(443, "https://67d144b8825945773eb3a6f7.mockapi.io", "api/v1/Sens/8", 
-				Sensor.class, res);
+		restClientUtil.getRequest(sens, Sensor.class, res, 8);
 
 		/* --------------- GET request con parámetros--------------- */
 
@@ -108,9 +116,7 @@ public class RestClient extends AbstractVerticle {
 		birthdate2.set(Calendar.MONDAY, Calendar.JULY);
 		birthdate2.set(Calendar.DAY_OF_MONTH, 4);
 
-		restClientUtil.putRequest(443, "https://67d144b8825945773eb3a6f7.mockapi.io", "api/v1/Sens/1",
-				new Sensor(300, 777,  23,"reparado"),
-				Sensor.class, resPut);
+		restClientUtil.putRequest(sens, new Sensor(300, 777,  23,"reparado"), Sensor.class, resPut, 1);
 
 		/* --------------- REMOVE request --------------- */
 
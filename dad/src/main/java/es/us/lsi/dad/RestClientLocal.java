@@ -1,16 +1,14 @@
 package es.us.lsi.dad;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.AsyncResult;
-import io.vertx.core.CompositeFuture;
-import io.vertx.core.Handler;
 import io.vertx.core.Promise;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.core.json.JsonObject;
 
 public class RestClientLocal extends AbstractVerticle {
 
@@ -18,11 +16,9 @@ public class RestClientLocal extends AbstractVerticle {
 	private RestClientUtil restClientUtil;
 
 	public void start(Promise<Void> startFuture) {
-		WebClientOptions options = new WebClientOptions().setUserAgent("RestClientApp/2.0.2.1");
-		
-		// Optimization for servlet-based connection (state-less)
-		options.setKeepAlive(false);
-		restClientUtil = new RestClientUtil(WebClient.create(vertx, options));
+		// Pooled keep-alive connections, tunable with the "client" config object
+		ClientProfile profile = ClientProfile.fromJson(config().getJsonObject("client", new JsonObject()));
+		restClientUtil = RestClientUtil.create(vertx, profile);
 
 		/*
 		 * Get resource list operation
@@ -159,34 +155,19 @@ public class RestClientLocal extends AbstractVerticle {
 		restClientUtil.deleteRequest(8080, "http://localhost", "api/users/3", resDelete);
 
 		/*
-		 * Combining several promises
+		 * Several requests at once, a few in flight at a time, results in order
 		 */
-	/*	Promise<Sensores> resPost2 = Promise.promise();
-		Promise<Sensores> resPost3 = Promise.promise();
-		Promise<Sensores> resPost4 = Promise.promise();
-		restClientUtil.postRequest(8080, "http://localhost", "api/users",
-				new Sensores(3, "Nuevo3", "Usuario3", Calendar.getInstance().getTimeInMillis(), "nuevo_usuario3", "pass"),
-				Sensores.class, resPost2);
-		restClientUtil.postRequest(8080, "http://localhost", "api/users",
-				new Sensores(4, "Nuevo4", "Usuario4", Calendar.getInstance().getTimeInMillis(), "nuevo_usuario4", "pass"),
-				Sensores.class, resPost3);
-		restClientUtil.postRequest(8080, "http://localhost", "api/users",
-				new Sensores(5, "Nuevo5", "Usuario5", Calendar.getInstance().getTimeInMillis(), "nuevo_usuario5", "pass"),
-				Sensores.class, resPost4);
-
-		CompositeFuture.all(resPost2.future(), resPost3.future(), resPost4.future())
-				.onComplete(new Handler<AsyncResult<CompositeFuture>>() {
-
-					@Override
-					public void handle(AsyncResult<CompositeFuture> event) {
-						System.out.println("-----------------------------------------------------------");
-						System.out.println("Composite futures");
-						System.out.println(resPost2.future().result());
-						System.out.println(resPost3.future().result());
-						System.out.println(resPost4.future().result());
-
-					}
-				});*/
+		List<Sensores> fleet = new ArrayList<Sensores>();
+		for (int i = 3; i <= 5; i++) {
+			fleet.add(new Sensores(i, 0, i, "Nuevo" + i));
+		}
+		restClientUtil.fanOut(fleet, (Sensores sensor, Promise<Sensores> promise) -> restClientUtil
+				.postRequest(8080, "http://localhost", "api/users", sensor, Sensores.class, promise))
+				.concurrency(2).settle().onSuccess(outcomes -> {
+					System.out.println("-----------------------------------------------------------");
+					System.out.println("Fan-out");
+					outcomes.forEach(System.out::println);
+				});
 
 	}
 
@@ -1,25 +1,294 @@
 package es.us.lsi.dad;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 import com.google.gson.Gson;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
 
 public class RestClientUtil {
 	
 	public WebClient client;
 	private Gson gson;
+	private Vertx vertx;
+	private ClientStats stats = new ClientStats(Integer.MAX_VALUE);
+	
+	// Batching of postBatch records, grouped by target URI
+	private final Map<String, PendingBatch> batches = new HashMap<String, PendingBatch>();
+	private int maxBatchRecords = 500;
+	private int maxBatchBytes = 1024 * 1024;
+	private long batchLingerMs = 20;
+	// Cache de las respuestas GET, null si no se ha activado
+	private ClientCache cache;
+	// Formato de los sensores enviados y pedidos al servidor
+	private SensorFormat format = SensorFormat.JSON;
+	// Politicas por las que pasa cada peticion, en orden
+	private List<ClientPolicy> policies = Collections.emptyList();
 	
 	public RestClientUtil(WebClient client) {
-		gson = new Gson();
+		gson = SensorCodec.gson();
 		this.client = client;
 	}
 
+	/**
+	 * @param vertx  Vert.x instance, needed by postBatch to flush batches on time
+	 * @param client Web client
+	 */
+	public RestClientUtil(Vertx vertx, WebClient client) {
+		this(client);
+		this.vertx = vertx;
+	}
+
+	/**
+	 * Creates the web client with the connection settings of the profile. The
+	 * returned instance keeps track of the connections opened by the client in
+	 * {@link #stats()}.
+	 * 
+	 * @param vertx   Vert.x instance
+	 * @param profile Connection settings
+	 * @return Client utility using pooled connections
+	 */
+	public static RestClientUtil create(Vertx vertx, ClientProfile profile) {
+		WebClientOptions options = profile.toOptions();
+		ClientStats stats = new ClientStats(profile.capacityPerHost());
+		HttpClient httpClient = vertx.createHttpClient(options);
+		httpClient.connectionHandler(connection -> {
+			stats.connectionOpened();
+			connection.closeHandler(v -> stats.connectionClosed());
+		});
+		RestClientUtil restClientUtil = new RestClientUtil(vertx, WebClient.wrap(httpClient, options));
+		restClientUtil.stats = stats;
+		return restClientUtil;
+	}
+
+	/**
+	 * @return Connection and request counters of this client
+	 */
+	public ClientStats stats() {
+		return stats;
+	}
+
+	Gson gson() {
+		return gson;
+	}
+
+	/**
+	 * Counts a request as in flight until its response handler is called
+	 */
+	<R> Handler<AsyncResult<R>> tracked(Handler<AsyncResult<R>> handler) {
+		stats.requestStarted();
+		return elem -> {
+			stats.requestEnded(elem.succeeded());
+			handler.handle(elem);
+		};
+	}
+
+	/**
+	 * Enables the cache of GET responses, see {@link ClientCache}. Identical
+	 * GETs in flight at the same time are then sent only once. PUT and DELETE
+	 * requests sent through this instance remove the entry of their URI.
+	 * 
+	 * @param maxEntries Maximum number of cached responses
+	 * @param maxBytes   Maximum bytes of the cached bodies
+	 * @param ttlMs      Time a response is reused when it has no Cache-Control
+	 *                   max-age
+	 * @return This instance
+	 */
+	public RestClientUtil setCache(int maxEntries, long maxBytes, long ttlMs) {
+		this.cache = new ClientCache(maxEntries, maxBytes, ttlMs);
+		return this;
+	}
+
+	/**
+	 * @return Cache of GET responses with its hit and miss counters, or null if
+	 *         it is not enabled
+	 */
+	public ClientCache cache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the format of the sensors sent in request bodies and asked for in
+	 * the Accept header. Responses are decoded by their Content-Type, so a
+	 * server answering in JSON is still understood.
+	 * 
+	 * @param format Wire format, JSON by default
+	 * @return This instance
+	 */
+	public RestClientUtil setFormat(SensorFormat format) {
+		this.format = format;
+		return this;
+	}
+
+	/**
+	 * Sets the policies every request goes through, first to last, see
+	 * {@link ClientPolicies}. Without policies each request is sent once and
+	 * waits for its response as long as the idle timeout of the client allows.
+	 * 
+	 * @param policies Policies in pipeline order, usually those of
+	 *                 {@link ClientPolicies#fromJson}
+	 * @return This instance
+	 */
+	public RestClientUtil setPolicies(List<ClientPolicy> policies) {
+		this.policies = new ArrayList<ClientPolicy>(policies);
+		return this;
+	}
+
+	/**
+	 * Sends a request through the policies of this client. Each attempt sends
+	 * the same request again, with the time left until the deadline as its
+	 * timeout.
+	 * 
+	 * @param method  Method of the request, policies as retry depend on it
+	 * @param host    Scheme, host and port of the request, see
+	 *                {@link #authority(String)}
+	 * @param request Request to send
+	 * @param body    Body of the request, null to send none
+	 * @return Response of the request
+	 */
+	Future<HttpResponse<Buffer>> execute(HttpMethod method, String host, HttpRequest<Buffer> request, Buffer body) {
+		if (policies.isEmpty()) {
+			return attempt(null, request, body);
+		}
+		return proceed(new ClientPolicy.Call(method, host, stats), 0, request, body);
+	}
+
+	private Future<HttpResponse<Buffer>> proceed(ClientPolicy.Call call, int index, HttpRequest<Buffer> request,
+			Buffer body) {
+		if (index == policies.size()) {
+			return attempt(call, request, body);
+		}
+		return policies.get(index).apply(call, () -> proceed(call, index + 1, request, body));
+	}
+
+	private Future<HttpResponse<Buffer>> attempt(ClientPolicy.Call call, HttpRequest<Buffer> request, Buffer body) {
+		if (call != null && call.hasDeadline()) {
+			long remaining = call.remainingMs();
+			if (remaining <= 0) {
+				return Future.failedFuture(new TimeoutException("Deadline exceeded"));
+			}
+			// La conexion no se corta sola al vencer el plazo; el timeout de la peticion si lo hace
+			request.timeout(remaining);
+		}
+		Promise<HttpResponse<Buffer>> promise = Promise.promise();
+		if (body == null) {
+			request.send(tracked(promise));
+		} else {
+			request.sendBuffer(body, tracked(promise));
+		}
+		return promise.future();
+	}
+
+	/**
+	 * @param uri Absolute URI, with or without scheme
+	 * @return Scheme, host and port of the URI, the key of its circuit breaker
+	 */
+	static String authority(String uri) {
+		int start = uri.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = uri.indexOf('/', start);
+		String authority = end < 0 ? uri : uri.substring(0, end);
+		return start == 0 ? "http://" + authority : authority;
+	}
+
+	/**
+	 * Adds the Accept header of the format, if it is not the default
+	 */
+	<R> HttpRequest<R> negotiated(HttpRequest<R> request) {
+		if (format != SensorFormat.JSON) {
+			request.putHeader("Accept", format.contentType());
+		}
+		return request;
+	}
+
+	/**
+	 * Sends a body in the format of this client, or in JSON if it is not made of
+	 * sensors
+	 */
+	private void sendBody(HttpMethod method, String host, HttpRequest<Buffer> request, Object body,
+			Handler<AsyncResult<HttpResponse<Buffer>>> handler) {
+		SensorFormat bodyFormat = SensorCbor.canEncode(body) ? format : SensorFormat.JSON;
+		negotiated(request).putHeader("content-type", bodyFormat.contentType());
+		execute(method, host, request, bodyFormat.encode(gson, body, Buffer.buffer())).onComplete(handler);
+	}
+
+	/**
+	 * Decodes a response body in the format of its Content-Type
+	 */
+	<T> T decode(HttpResponse<Buffer> response, Class<T> classType) {
+		return SensorFormat.of(response.getHeader("content-type")).decode(gson, response.body(), classType);
+	}
+
+	/**
+	 * Sends a GET request, through the cache if it is enabled
+	 * 
+	 * @param request GET request
+	 * @param host    Scheme, host and port of the request
+	 * @param uri     Absolute URI of the request, without query params
+	 * @param params  Query params of the request
+	 */
+	private Future<HttpResponse<Buffer>> get(HttpRequest<Buffer> request, String host, String uri,
+			Map<String, String> params) {
+		if (cache == null) {
+			return execute(HttpMethod.GET, host, request, null);
+		}
+		return cache.get(cacheKey(uri, params), request, sent -> execute(HttpMethod.GET, host, sent, null));
+	}
+
+	private static String cacheKey(String uri, Map<String, String> params) {
+		if (params.isEmpty()) {
+			return uri;
+		}
+		// Mismas params en distinto orden, misma clave
+		StringBuilder key = new StringBuilder(uri).append('?');
+		new TreeMap<String, String>(params).forEach((name, value) -> key.append(name).append('=').append(value)
+				.append('&'));
+		return key.toString();
+	}
+
+	private void uncache(String uri) {
+		if (cache != null) {
+			cache.remove(uri);
+		}
+	}
+
+	/**
+	 * Configures how postBatch groups records. A batch is sent when it has
+	 * maxRecords records, when it reaches maxBytes bytes or lingerMs
+	 * milliseconds after its first record, whatever happens first.
+	 * 
+	 * @param maxRecords Maximum records per batch
+	 * @param maxBytes   Maximum body size of a batch
+	 * @param lingerMs   Maximum time a record waits for its batch to be sent
+	 * @return This instance
+	 */
+	public RestClientUtil setBatching(int maxRecords, int maxBytes, long lingerMs) {
+		this.maxBatchRecords = maxRecords;
+		this.maxBatchBytes = maxBytes;
+		this.batchLingerMs = lingerMs;
+		return this;
+	}
+
 	/**
 	 * Get request utility
 	 * 
@@ -31,13 +300,9 @@ public class RestClientUtil {
 	 * @param promise   Promise to be executed on call finish
 	 */
 	public <T> void getRequest(Integer port, String host, String resource, Class<T> classType, Promise<T> promise) {
-		client.getAbs(host + ":" + port + "/" + resource).send(elem -> {
-			if (elem.succeeded()) {
-				promise.complete(gson.fromJson(elem.result().bodyAsString(), classType));
-			} else {
-				promise.fail(elem.cause());
-			}
-		});
+		String uri = host + ":" + port + "/" + resource;
+		get(negotiated(client.getAbs(uri)), authority(uri), uri, Collections.<String, String>emptyMap())
+				.onComplete(decoding(classType, promise));
 
 	}
 
@@ -54,22 +319,35 @@ public class RestClientUtil {
 	 */
 	public <T> void getRequestWithParams(Integer port, String host, String resource, Class<T> classType,
 			Promise<T> promise, Map<String, String> params) {
-		HttpRequest<Buffer> httpRequest = client.getAbs(host + ":" + port + "/" + resource);
+		String uri = host + ":" + port + "/" + resource;
+		HttpRequest<Buffer> httpRequest = negotiated(client.getAbs(uri));
 
 		params.forEach((key, value) -> {
 			httpRequest.addQueryParam(key, value);
 		});
 
-		httpRequest.send(elem -> {
-			if (elem.succeeded()) {
-				promise.complete(gson.fromJson(elem.result().bodyAsString(), classType));
-			} else {
-				promise.fail(elem.cause());
-			}
-		});
+		get(httpRequest, authority(uri), uri, params).onComplete(decoding(classType, promise));
 
 	}
 
+	/**
+	 * Paged get request utility. Pages are requested lazily, one for each call
+	 * to {@link PageIterator#next(Promise)}.
+	 * 
+	 * @param <T>       Type of each page enveloped in JSON response
+	 * @param port      Port
+	 * @param host      Host address
+	 * @param resource  URI where resource is provided
+	 * @param classType Type of each page enveloped in JSON response
+	 * @param params    Map with key-value entries for call parameters
+	 * @param limit     Page size
+	 * @return Iterator over the pages
+	 */
+	public <T> PageIterator<T> getPages(Integer port, String host, String resource, Class<T> classType,
+			Map<String, String> params, int limit) {
+		return new PageIterator<T>(this, host + ":" + port + "/" + resource, classType, params, limit);
+	}
+
 	/**
 	 * Post request utility
 	 * 
@@ -83,15 +361,8 @@ public class RestClientUtil {
 	 */
 	public <B, T> void postRequest(Integer port, String host, String resource, Object body, Class<T> classType,
 			Promise<T> promise) {
-		JsonObject jsonBody = new JsonObject(gson.toJson(body));
-		client.postAbs(host + ":" + port + "/" + resource).sendJsonObject(jsonBody, elem -> {
-			if (elem.succeeded()) {
-				Gson gson = new Gson();
-				promise.complete(gson.fromJson(elem.result().bodyAsString(), classType));
-			} else {
-				promise.fail(elem.cause());
-			}
-		});
+		String uri = host + ":" + port + "/" + resource;
+		sendBody(HttpMethod.POST, authority(uri), client.postAbs(uri), body, decoding(classType, promise));
 	}
 
 	/**
@@ -107,15 +378,208 @@ public class RestClientUtil {
 	 */
 	public <B, T> void putRequest(Integer port, String host, String resource, Object body, Class<T> classType,
 			Promise<T> promise) {
-		JsonObject jsonBody = new JsonObject(gson.toJson(body));
-		client.putAbs(host + ":" + port + "/" + resource).sendJsonObject(jsonBody, elem -> {
-			if (elem.succeeded()) {
-				Gson gson = new Gson();
-				promise.complete(gson.fromJson(elem.result().bodyAsString(), classType));
+		String uri = host + ":" + port + "/" + resource;
+		uncache(uri);
+		sendBody(HttpMethod.PUT, authority(uri), client.putAbs(uri), body, decoding(classType, promise));
+	}
+
+	/**
+	 * @param port         Port
+	 * @param host         Host address
+	 * @param pathTemplate Path of the resource, with :name variables
+	 * @return Request template to use with the endpoint based methods
+	 */
+	public Endpoint endpoint(Integer port, String host, String pathTemplate) {
+		return Endpoint.of(port, host, pathTemplate);
+	}
+
+	/**
+	 * Get request utility for a request template
+	 * 
+	 * @param <T>        Type of result enveloped in JSON response
+	 * @param endpoint   Request template
+	 * @param classType  Type of result enveloped in JSON response
+	 * @param promise    Promise to be executed on call finish
+	 * @param pathValues Values of the path variables of the endpoint
+	 */
+	public <T> void getRequest(Endpoint endpoint, Class<T> classType, Promise<T> promise, Object... pathValues) {
+		HttpRequest<Buffer> httpRequest = negotiated(endpoint.request(client, HttpMethod.GET, pathValues));
+		get(httpRequest, endpoint.authority(), cache != null ? endpoint.uri(pathValues) : null,
+				Collections.<String, String>emptyMap())
+				.onComplete(decoding(classType, promise));
+	}
+
+	/**
+	 * Get request utility for a request template
+	 * 
+	 * @param <T>        Type of result enveloped in JSON response
+	 * @param endpoint   Request template
+	 * @param classType  Type of result enveloped in JSON response
+	 * @param promise    Promise to be executed on call finish
+	 * @param params     Map with key-value entries for call parameters
+	 * @param pathValues Values of the path variables of the endpoint
+	 */
+	public <T> void getRequestWithParams(Endpoint endpoint, Class<T> classType, Promise<T> promise,
+			Map<String, String> params, Object... pathValues) {
+		HttpRequest<Buffer> httpRequest = negotiated(endpoint.request(client, HttpMethod.GET, pathValues));
+		params.forEach(httpRequest::addQueryParam);
+		get(httpRequest, endpoint.authority(), cache != null ? endpoint.uri(pathValues) : null, params)
+				.onComplete(decoding(classType, promise));
+	}
+
+	/**
+	 * Post request utility for a request template
+	 * 
+	 * @param <T>        Type of result enveloped in JSON response
+	 * @param endpoint   Request template
+	 * @param body       Body of the request
+	 * @param classType  Type of result enveloped in JSON response
+	 * @param promise    Promise to be executed on call finish
+	 * @param pathValues Values of the path variables of the endpoint
+	 */
+	public <T> void postRequest(Endpoint endpoint, Object body, Class<T> classType, Promise<T> promise,
+			Object... pathValues) {
+		sendBody(HttpMethod.POST, endpoint.authority(), endpoint.request(client, HttpMethod.POST, pathValues), body,
+				decoding(classType, promise));
+	}
+
+	/**
+	 * Put request utility for a request template
+	 * 
+	 * @param <T>        Type of result enveloped in JSON response
+	 * @param endpoint   Request template
+	 * @param body       Body of the request
+	 * @param classType  Type of result enveloped in JSON response
+	 * @param promise    Promise to be executed on call finish
+	 * @param pathValues Values of the path variables of the endpoint
+	 */
+	public <T> void putRequest(Endpoint endpoint, Object body, Class<T> classType, Promise<T> promise,
+			Object... pathValues) {
+		if (cache != null) {
+			uncache(endpoint.uri(pathValues));
+		}
+		sendBody(HttpMethod.PUT, endpoint.authority(), endpoint.request(client, HttpMethod.PUT, pathValues), body,
+				decoding(classType, promise));
+	}
+
+	/**
+	 * Delete request utility for a request template
+	 * 
+	 * @param endpoint   Request template
+	 * @param promise    Promise to be executed on call finish
+	 * @param pathValues Values of the path variables of the endpoint
+	 */
+	public void deleteRequest(Endpoint endpoint, Promise<String> promise, Object... pathValues) {
+		if (cache != null) {
+			uncache(endpoint.uri(pathValues));
+		}
+		execute(HttpMethod.DELETE, endpoint.authority(), endpoint.request(client, HttpMethod.DELETE, pathValues), null)
+				.onComplete(elem -> {
+					if (elem.failed()) {
+						promise.fail(elem.cause());
+					} else if (!successful(elem.result())) {
+						promise.fail(statusError(elem.result()));
+					} else {
+						promise.complete(elem.result().bodyAsString());
+					}
+				});
+	}
+
+	/**
+	 * @return true for 2xx responses. A 204 is a success with an empty result,
+	 *         as the missing sensors of /api/sensores/:id_sensor.
+	 */
+	private static boolean successful(HttpResponse<Buffer> response) {
+		return response.statusCode() >= 200 && response.statusCode() < 300;
+	}
+
+	private static IllegalStateException statusError(HttpResponse<Buffer> response) {
+		return new IllegalStateException("Request failed with status " + response.statusCode());
+	}
+
+	private <T> Handler<AsyncResult<HttpResponse<Buffer>>> decoding(Class<T> classType, Promise<T> promise) {
+		return elem -> {
+			if (elem.succeeded() && !successful(elem.result())) {
+				// Un error sin cuerpo se decodificaria como null, igual que un 204
+				promise.fail(statusError(elem.result()));
+			} else if (elem.succeeded()) {
+				// Error pages are not JSON; the promise fails instead of never completing
+				T result;
+				try {
+					result = decode(elem.result(), classType);
+				} catch (RuntimeException e) {
+					promise.fail(e);
+					return;
+				}
+				promise.complete(result);
 			} else {
 				promise.fail(elem.cause());
 			}
-		});
+		};
+	}
+
+	/**
+	 * Batched post request utility. The body is queued with the other records
+	 * for the same resource and sent as NDJSON to a batch endpoint such as
+	 * /api/sensores/batch. Must be called from the event loop that created
+	 * this instance, and requires the Vert.x instance.
+	 * 
+	 * @param port     Port
+	 * @param host     Host address
+	 * @param resource URI of the batch endpoint
+	 * @param body     Record to send
+	 * @param promise  Promise completed with the result of this record
+	 */
+	public void postBatch(Integer port, String host, String resource, Object body, Promise<BatchResult> promise) {
+		if (vertx == null) {
+			throw new IllegalStateException("postBatch requires a RestClientUtil created with a Vertx instance");
+		}
+		String uri = host + ":" + port + "/" + resource;
+		batches.computeIfAbsent(uri, PendingBatch::new).add(gson.toJson(body), promise);
+	}
+
+	/**
+	 * Fan-out of requests, one per input, with a bounded number in flight and
+	 * the results in the order of the inputs, see {@link FanOut}. Requires the
+	 * Vert.x instance. For example, to update a fleet of sensors 64 at a time:
+	 * 
+	 * <pre>
+	 * restClientUtil.fanOut(sensors, (Sensor sensor, Promise&lt;Sensor&gt; promise) -&gt; restClientUtil
+	 * 		.putRequest(endpoint, sensor, Sensor.class, promise, sensor.getId_sensor())).concurrency(64).settle();
+	 * </pre>
+	 * 
+	 * @param <I>    Type of the inputs
+	 * @param <R>    Type of the results
+	 * @param inputs Inputs, read as requests are sent
+	 * @param call   Sends the request of an input with one of the methods of
+	 *               this class
+	 * @return Fan-out, started when its results are asked for
+	 */
+	public <I, R> FanOut<I, R> fanOut(Iterable<I> inputs, BiConsumer<I, Promise<R>> call) {
+		return fanOut(inputs.iterator(), call);
+	}
+
+	/**
+	 * Fan-out of requests over a stream of inputs, see
+	 * {@link #fanOut(Iterable, BiConsumer)}. The stream is consumed lazily.
+	 */
+	public <I, R> FanOut<I, R> fanOut(Stream<I> inputs, BiConsumer<I, Promise<R>> call) {
+		return fanOut(inputs.iterator(), call);
+	}
+
+	private <I, R> FanOut<I, R> fanOut(Iterator<I> inputs, BiConsumer<I, Promise<R>> call) {
+		if (vertx == null) {
+			throw new IllegalStateException("fanOut requires a RestClientUtil created with a Vertx instance");
+		}
+		return new FanOut<I, R>(vertx, inputs, call);
+	}
+
+	/**
+	 * Sends the pending records of every batch without waiting for the linger
+	 * time
+	 */
+	public void flushBatches() {
+		batches.values().forEach(PendingBatch::flush);
 	}
 
 	/**
@@ -127,13 +591,87 @@ public class RestClientUtil {
 	 * @param promise   Promise to be executed on call finish
 	 */
 	public void deleteRequest(Integer port, String host, String resource, Promise<String> promise) {
-		client.deleteAbs(host + ":" + port + "/" + resource).send(elem -> {
-			if (elem.succeeded()) {
-				promise.complete(elem.result().bodyAsString());
-			} else {
+		String uri = host + ":" + port + "/" + resource;
+		uncache(uri);
+		execute(HttpMethod.DELETE, authority(uri), client.deleteAbs(uri), null).onComplete(elem -> {
+			if (elem.failed()) {
 				promise.fail(elem.cause());
+			} else if (!successful(elem.result())) {
+				promise.fail(statusError(elem.result()));
+			} else {
+				promise.complete(elem.result().bodyAsString());
 			}
 		});
 
 	}
+
+	/**
+	 * Records waiting to be sent to one batch endpoint
+	 */
+	private class PendingBatch {
+
+		private final String uri;
+		private Buffer body = Buffer.buffer();
+		private List<Promise<BatchResult>> promises = new ArrayList<Promise<BatchResult>>();
+		private long timer = -1;
+
+		private PendingBatch(String uri) {
+			this.uri = uri;
+		}
+
+		private void add(String record, Promise<BatchResult> promise) {
+			body.appendString(record).appendString("\n");
+			promises.add(promise);
+			if (promises.size() >= maxBatchRecords || body.length() >= maxBatchBytes) {
+				flush();
+			} else if (timer == -1) {
+				timer = vertx.setTimer(batchLingerMs, id -> {
+					timer = -1;
+					flush();
+				});
+			}
+		}
+
+		private void flush() {
+			if (timer != -1) {
+				vertx.cancelTimer(timer);
+				timer = -1;
+			}
+			if (promises.isEmpty()) {
+				return;
+			}
+			Buffer sent = body;
+			List<Promise<BatchResult>> waiting = promises;
+			body = Buffer.buffer();
+			promises = new ArrayList<Promise<BatchResult>>();
+			HttpRequest<Buffer> request = client.postAbs(uri).putHeader("content-type", SensorBatchHandler.NDJSON);
+			execute(HttpMethod.POST, authority(uri), request, sent).onComplete(elem -> {
+				if (elem.failed()) {
+					waiting.forEach(promise -> promise.fail(elem.cause()));
+				} else if (elem.result().statusCode() != 200) {
+					IllegalStateException error = new IllegalStateException(
+							"Batch rejected with status " + elem.result().statusCode());
+					waiting.forEach(promise -> promise.fail(error));
+				} else {
+					BatchResult[] results;
+					try {
+						results = SensorCodec.decode(gson, elem.result().body(), BatchResult[].class);
+					} catch (RuntimeException e) {
+						waiting.forEach(promise -> promise.fail(e));
+						return;
+					}
+					for (BatchResult result : results != null ? results : new BatchResult[0]) {
+						// Indices fuera de rango o repetidos se ignoran; su registro falla abajo si no tiene otro
+						if (result != null && result.getIndex() != null && result.getIndex() >= 0
+								&& result.getIndex() < waiting.size()) {
+							waiting.get(result.getIndex()).tryComplete(result);
+						}
+					}
+					// Records without result in the response
+					waiting.forEach(promise -> promise.tryFail("Missing batch result"));
+				}
+			});
+		}
+
+	}
 }
@@ -1,89 +1,578 @@
 package es.us.lsi.dad;
 
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Random;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 
 public class RestServer extends AbstractVerticle {
 
-	private Map<Integer, Sensores> sensores = new HashMap<Integer, Sensores>();
+	private SensorStore sensores;
+	// Persistencia en MySQL, null si los sensores solo se guardan en memoria
+	private MySQLSensorRepository repository;
+	// Orden de las escrituras de cada sensor en la tabla y el almacen
+	private SensorWriteQueue writes;
 	private Gson gson;
+	// Serializacion por partes de los listados, ver SensorJsonStreamer
+	private boolean streaming;
+	private int streamingChunkSize;
+	private int maxPageSize;
+	// Tamano maximo en bytes del cuerpo de una peticion
+	private long maxBodySize;
+	// Compresion gzip/deflate de las respuestas
+	private ResponseCompression compression;
+	// Limites por cliente y por ruta, null si estan desactivados
+	private AdmissionControl admission;
+	// Metricas por ruta expuestas en /metrics, null si estan desactivadas
+	private ServerMetrics metrics;
+	// Cuerpos ya serializados de las lecturas, null si la cache esta desactivada
+	private ResponseCache cache;
+	private String cacheControl;
+	private int maxCachedListSize;
+	// Historico de lecturas por sensor, null si esta desactivado
+	private SensorReadings readings;
+	private int maxReadingBuckets;
+	// Cambios publicados en el bus de eventos, null si estan desactivados
+	private SensorEvents events;
+	// Modo particionado: sensores repartidos por id_sensor entre nodos, o null
+	private SensorShards shards;
+
+	public RestServer() {
+		super();
+	}
+
+	/**
+	 * @param sensores Store to use instead of the shared in-memory store
+	 */
+	public RestServer(SensorStore sensores) {
+		super();
+		this.sensores = sensores;
+	}
+
+	/**
+	 * Deploys one RestServer instance per core. Every instance listens on the
+	 * same port and shares the same {@link ConcurrentSensorStore}. The
+	 * connections the server opens, to MySQL and to other shards, resolve
+	 * their hosts with the DNS cache of {@link ClientProfile#pooled()}.
+	 */
+	public static void main(String[] args) {
+		Vertx vertx = Vertx.vertx(ClientProfile.pooled().vertxOptions());
+		DeploymentOptions options = new DeploymentOptions()
+				.setInstances(Runtime.getRuntime().availableProcessors());
+		vertx.deployVerticle(RestServer.class.getName(), options, deploy -> {
+			if (deploy.succeeded()) {
+				System.out.println("Verticle deployed");
+			} else {
+				System.out.println("Error deploying verticle");
+				deploy.cause().printStackTrace();
+			}
+		});
+	}
 
 	public void start(Promise<Void> startFuture) {
-		// Creating some synthetic data
-		createSomeData(25);
+		if (sensores == null) {
+			// Todas las instancias del verticle comparten el mismo almacen; el
+			// compacto guarda los sensores por columnas, para flotas muy grandes
+			String storeName = config().getString("store", "sensores");
+			JsonObject persistence = config().getJsonObject("persistence");
+			if (persistence != null) {
+				// Almacen compacto con instantanea en disco y log de cambios
+				sensores = PersistentSensorStore.shared(vertx, storeName, persistence);
+			} else {
+				sensores = "compact".equals(config().getString("storeType"))
+						? CompactSensorStore.shared(vertx, storeName)
+						: ConcurrentSensorStore.shared(vertx, storeName);
+			}
+		}
+
+		JsonObject cluster = config().getJsonObject("cluster");
+		if (cluster != null) {
+			shards = new SensorShards(vertx, cluster, config().getInteger("port", 8080));
+		}
+
+		Future<Void> loaded;
+		JsonObject mysql = config().getJsonObject("mysql");
+		if (mysql != null) {
+			// El almacen en memoria actua como cache write-through de la tabla
+			repository = MySQLSensorRepository.create(vertx, mysql);
+			writes = SensorWriteQueue.shared(vertx, config().getString("store", "sensores"));
+			loaded = loadFromDatabase();
+		} else {
+			Future<Void> opened = sensores instanceof PersistentSensorStore
+					? ((PersistentSensorStore) sensores).open(vertx)
+					: Future.succeededFuture();
+			loaded = opened.map(v -> {
+				// Creating some synthetic data
+				synchronized (sensores) {
+					if (sensores.size() == 0) {
+						createSomeData(25);
+					}
+				}
+				return null;
+			});
+		}
 
 		// Instantiating a Gson serialize object using specific date format
-		gson = new GsonBuilder().setDateFormat("yyyy-MM-dd").create();
+		// con los TypeAdapter de Sensor y Sensores, sin reflexion
+		gson = SensorCodec.gsonBuilder().setDateFormat("yyyy-MM-dd").create();
+
+		JsonObject streamingConfig = config().getJsonObject("streaming", new JsonObject());
+		streaming = streamingConfig.getBoolean("enabled", true);
+		streamingChunkSize = streamingConfig.getInteger("chunkSize", 128);
+		maxPageSize = config().getJsonObject("paging", new JsonObject()).getInteger("maxLimit", 1000);
+		maxBodySize = config().getJsonObject("validation", new JsonObject()).getLong("maxBodySize", 65536L);
+		JsonObject admissionConfig = config().getJsonObject("admission", new JsonObject());
+		if (admissionConfig.getBoolean("enabled", true)) {
+			admission = AdmissionControl.shared(vertx, config().getString("store", "sensores"), admissionConfig);
+		}
+		JsonObject compressionConfig = config().getJsonObject("compression", new JsonObject());
+		compression = new ResponseCompression(compressionConfig.getBoolean("enabled", true),
+				compressionConfig.getInteger("level", 6), compressionConfig.getInteger("minSize", 1024));
+
+		JsonObject metricsConfig = config().getJsonObject("metrics", new JsonObject());
+		if (metricsConfig.getBoolean("enabled", true)) {
+			metrics = ServerMetrics.shared(vertx, config().getString("store", "sensores"));
+			metrics.monitorEventLoop(vertx, metricsConfig.getLong("eventLoopProbeMs", 100L));
+		}
+
+		JsonObject cacheConfig = config().getJsonObject("cache", new JsonObject());
+		if (cacheConfig.getBoolean("enabled", true)) {
+			cache = ResponseCache.shared(vertx, config().getString("store", "sensores"), cacheConfig);
+			// Sin max-age los clientes revalidan siempre con If-None-Match
+			int maxAge = cacheConfig.getInteger("maxAge", 0);
+			cacheControl = maxAge > 0 ? "max-age=" + maxAge : "no-cache";
+			maxCachedListSize = cacheConfig.getInteger("maxListSize", 1000);
+		}
+
+		JsonObject readingsConfig = config().getJsonObject("readings", new JsonObject());
+		if (readingsConfig.getBoolean("enabled", true)) {
+			readings = SensorReadings.shared(vertx, config().getString("store", "sensores"), readingsConfig);
+			readings.startDownsampling(vertx, readingsConfig.getLong("downsampleIntervalMs", 60000L));
+			maxReadingBuckets = readingsConfig.getInteger("maxBuckets", 10000);
+		}
+
+		JsonObject eventsConfig = config().getJsonObject("events", new JsonObject());
+		if (eventsConfig.getBoolean("enabled", true)) {
+			events = new SensorEvents(vertx, config().getString("store", "sensores"), eventsConfig);
+		}
 
 		// Se crea un Router para manejar las rutas de la API REST.
 		Router router = Router.router(vertx);
 
 		//Inicializacion del servidor
 		// Handling any server startup result
-		vertx.createHttpServer().requestHandler(router::handle).listen(8080, result -> {
-			if (result.succeeded()) {
-				startFuture.complete();
-			} else {
-				startFuture.fail(result.cause());
+		// La carga es compartida y puede terminar en el contexto de otra instancia
+		Context context = vertx.getOrCreateContext();
+		loaded.onComplete(load -> context.runOnContext(v -> {
+			if (load.failed()) {
+				startFuture.fail(load.cause());
+				return;
 			}
-		});
+			vertx.createHttpServer(compression.apply(new HttpServerOptions())).requestHandler(router::handle).listen(config().getInteger("port", 8080), result -> {
+				if (result.failed()) {
+					startFuture.fail(result.cause());
+				} else if (shards != null) {
+					// Solo se aceptan peticiones de otros nodos con el puerto ya abierto
+					shards.serve().onComplete(startFuture);
+				} else {
+					startFuture.complete();
+				}
+			});
+		}));
 
 		// Defining URI paths for each method in RESTful interface, including body
 		// handling by /api/sensores* or /api/sensores/*
 		//
-		router.route("/api/sensores*").handler(BodyHandler.create()); //Permite manejar cuerpos de solicitud (POST, PUT) para que puedan ser ledos.
-		router.get("/api/sensores").handler(this::getAllWithParams);
-		router.get("/api/sensores/:id_sensor").handler(this::getOne);
-		router.post("/api/sensores").handler(this::addOne);
-		router.delete("/api/sensores/:id_sensor").handler(this::deleteOne);
-		router.put("/api/sensores/:id_sensor").handler(this::putOne);
+		// Lo que supera la tasa del cliente se rechaza antes de leer el cuerpo
+		if (admission != null) {
+			router.route("/api/sensores*").handler(admission.rateLimit(shards));
+		}
+		// La carga por lotes lee el cuerpo por partes, por eso va antes del BodyHandler
+		router.post("/api/sensores/batch").handler(instrument("batch", limit("batch"))).handler(new SensorBatchHandler(
+				sensores, repository, writes, cache, events, shards, gson,
+				config().getJsonObject("batch", new JsonObject())));
+		// Conexiones de larga duracion, sin metricas por peticion
+		if (events != null) {
+			router.get("/api/sensores/changes").handler(this::streamChanges);
+		}
+		// Los cuerpos mayores que maxBodySize se rechazan con 413 sin llegar a leerse enteros
+		router.route("/api/sensores*").handler(BodyHandler.create().setBodyLimit(maxBodySize)); //Permite manejar cuerpos de solicitud (POST, PUT) para que puedan ser ledos.
+		if (shards != null) {
+			// Reenvia al nodo propietario lo que no es de este nodo
+			router.route("/api/sensores*").handler(shards);
+		}
+		// Cada ruta pasa primero por su limite de concurrencia, luego valida sus parametros y su
+		// cuerpo, y el handler solo recibe peticiones validas
+		router.get("/api/sensores").handler(instrument("getAllWithParams", limit("getAllWithParams")))
+				.handler(this::getAllWithParams);
+		router.get("/api/sensores/:id_sensor").handler(instrument("getOne", limit("getOne")))
+				.handler(SensorValidation.pathId()).handler(this::getOne);
+		router.post("/api/sensores").handler(instrument("addOne", limit("addOne")))
+				.handler(SensorValidation.sensorBody(gson, true)).handler(this::addOne);
+		router.delete("/api/sensores/:id_sensor").handler(instrument("deleteOne", limit("deleteOne")))
+				.handler(SensorValidation.pathId()).handler(this::deleteOne);
+		router.put("/api/sensores/:id_sensor").handler(instrument("putOne", limit("putOne")))
+				.handler(SensorValidation.pathId()).handler(SensorValidation.sensorBody(gson, false))
+				.handler(this::putOne);
+		if (readings != null) {
+			router.post("/api/sensores/:id_sensor/readings").handler(instrument("addReadings", limit("addReadings")))
+					.handler(SensorValidation.pathId()).handler(this::addReadings);
+			router.get("/api/sensores/:id_sensor/readings").handler(instrument("getReadings", limit("getReadings")))
+					.handler(SensorValidation.pathId()).handler(this::getReadings);
+		}
+		// Lo que aun falle responde sin cuerpo y sin volcar la traza de cada peticion
+		router.route("/api/sensores*").failureHandler(this::failure);
+		if (metrics != null) {
+			router.get("/metrics").handler(this::getMetrics);
+		}
+	}
+
+	private void failure(RoutingContext routingContext) {
+		int status = routingContext.statusCode() != -1 ? routingContext.statusCode() : 500;
+		if (status == 500 && routingContext.failure() != null) {
+			System.out.println("Error in " + routingContext.request().path() + ": " + routingContext.failure());
+		}
+		if (!routingContext.response().ended()) {
+			routingContext.response().setStatusCode(status).end();
+		}
+	}
+
+	private void getMetrics(RoutingContext routingContext) {
+		StringBuilder body = new StringBuilder(metrics.scrape());
+		if (cache != null) {
+			cache.writePrometheus(body);
+		}
+		if (readings != null) {
+			readings.writePrometheus(body);
+		}
+		if (events != null) {
+			events.getStats().writePrometheus(body);
+		}
+		if (admission != null) {
+			admission.writePrometheus(body);
+		}
+		routingContext.response().putHeader("content-type", ServerMetrics.CONTENT_TYPE).end(body.toString());
+	}
+
+	private Handler<RoutingContext> instrument(String route, Handler<RoutingContext> handler) {
+		return metrics != null ? metrics.instrument(route, handler) : handler;
+	}
+
+	/**
+	 * Concurrency limit of a route, or a handler letting every request through
+	 * if admission control is disabled
+	 */
+	private Handler<RoutingContext> limit(String route) {
+		return admission != null ? admission.limit(route) : RoutingContext::next;
+	}
+
+	@Override
+	public void stop(Promise<Void> stopFuture) {
+		if (events != null) {
+			events.close();
+		}
+		if (shards != null) {
+			shards.close();
+		}
+		if (repository != null) {
+			repository.close().onComplete(stopFuture);
+		} else {
+			stopFuture.complete();
+		}
+	}
+
+	/**
+	 * Fills the store with the rows of the sensores table. Only the first
+	 * instance sharing the store loads it and the rest wait for that load, so
+	 * none listens with a half loaded store; if the table is empty it is
+	 * filled with synthetic data using batched inserts.
+	 */
+	private Future<Void> loadFromDatabase() {
+		LocalMap<String, DatabaseLoad> loads = vertx.sharedData().getLocalMap("es.us.lsi.dad.loaded");
+		return loads.computeIfAbsent(config().getString("store", "sensores"), key -> new DatabaseLoad())
+				.load(this::loadAll);
+	}
+
+	private Future<Void> loadAll() {
+		return repository.createSchema().compose(v -> repository.loadAll()).compose(rows -> {
+			if (!rows.isEmpty()) {
+				// En modo particionado cada nodo se queda con sus sensores
+				rows.stream().filter(row -> shards == null || shards.isLocal(row.getId_sensor()))
+						.forEach(sensores::put);
+				return Future.succeededFuture();
+			}
+			createSomeData(25);
+			return repository.saveAll(sensores.all().collect(Collectors.toList()));
+		});
+	}
+
+	/**
+	 * Writes a sensor to the database, if there is one, before it is written to
+	 * the store
+	 */
+	private Future<Void> persist(Sensores sensor) {
+		return repository != null ? repository.save(sensor) : Future.succeededFuture();
+	}
+
+	private Future<Void> unpersist(int id) {
+		return repository != null ? repository.delete(id).<Void>mapEmpty() : Future.succeededFuture();
+	}
+
+	/**
+	 * Runs a write of a sensor after the previous writes of the same id when
+	 * they go to MySQL, see {@link SensorWriteQueue}. In memory each write is a
+	 * single atomic operation of the store and runs at once.
+	 */
+	private <T> Future<T> serialized(int id, Supplier<Future<T>> write) {
+		return writes != null ? writes.run(id, write) : write.get();
+	}
+
+	private void invalidate(int id) {
+		if (cache != null) {
+			cache.invalidate(id);
+		}
+	}
+
+	private void publish(String type, Sensores sensor) {
+		if (events != null) {
+			events.publish(type, sensor);
+		}
+	}
+
+	/**
+	 * Streams the changes of the sensors matching the unit, id_device and status
+	 * params, over a WebSocket if the request asks for an upgrade or as
+	 * Server-Sent Events otherwise
+	 */
+	private void streamChanges(RoutingContext routingContext) {
+		SensorFilter filter = SensorFilter.fromParams(routingContext.queryParams());
+		HttpServerRequest request = routingContext.request();
+		if ("websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+			request.toWebSocket().onSuccess(socket -> {
+				ChangeSubscriber subscriber = ChangeSubscriber.webSocket(socket, filter, events.getMaxQueued(),
+						events.getStats());
+				events.subscribe(subscriber);
+				socket.closeHandler(v -> events.unsubscribe(subscriber));
+			}).onFailure(routingContext::fail);
+			return;
+		}
+		HttpServerResponse response = routingContext.response();
+		response.setChunked(true).putHeader("content-type", "text/event-stream; charset=utf-8")
+				.putHeader("cache-control", "no-cache");
+		ChangeSubscriber subscriber = ChangeSubscriber.eventStream(response, filter, events.getMaxQueued(),
+				events.getStats());
+		events.subscribe(subscriber);
+		response.closeHandler(v -> events.unsubscribe(subscriber));
+		// Comentario inicial para que el cliente reciba ya las cabeceras
+		response.write(": connected\n\n");
 	}
 
-	@SuppressWarnings("unused")
 	private void getAll(RoutingContext routingContext) { // representa solicitud y resouesta
-		routingContext.response().putHeader("content-type", "application/json; charset=utf-8").setStatusCode(200)
-				.end(gson.toJson(sensores.values()));
+		sendList(routingContext, sensores.all(), true);
+	}
+
+	/**
+	 * Sends a list of sensors, streaming it in chunks when streaming is enabled
+	 *
+	 * @param lazy true if the stream reads the store as it is consumed, to
+	 *             record that time as query time
+	 */
+	private void sendList(RoutingContext routingContext, Stream<Sensores> list, boolean lazy) {
+		SensorFormat format = format(routingContext);
+		routingContext.response().putHeader("content-type", format.contentType()).setStatusCode(200);
+		RouteMetrics routeMetrics = routingContext.get(RouteMetrics.KEY);
+		if (streaming) {
+			SensorJsonStreamer.stream(routingContext.response(), list.iterator(), gson, format, streamingChunkSize,
+					routeMetrics != null && lazy ? routeMetrics.query() : null,
+					routeMetrics != null ? routeMetrics.serialization() : null);
+		} else {
+			long start = System.nanoTime();
+			List<Sensores> sensors = list.collect(Collectors.toList());
+			if (routeMetrics != null && lazy) {
+				routeMetrics.query().record(System.nanoTime() - start);
+			}
+			compression.end(routingContext.response(), encode(routingContext, sensors));
+		}
+	}
+
+	/**
+	 * Format of the sensors in the response, chosen by the Accept header. As
+	 * the body depends on it, the response varies with Accept, and with
+	 * Accept-Encoding when it can be compressed.
+	 */
+	private SensorFormat format(RoutingContext routingContext) {
+		routingContext.response().putHeader("Vary", compression.isEnabled() ? "Accept, Accept-Encoding" : "Accept");
+		return SensorFormat.accepted(routingContext.request().getHeader("Accept"));
+	}
+
+	/**
+	 * Encodes a response body in the format of {@link #format}, recording the
+	 * time in the metrics of the route
+	 */
+	private Buffer encode(RoutingContext routingContext, Object value) {
+		SensorFormat format = format(routingContext);
+		RouteMetrics routeMetrics = routingContext.get(RouteMetrics.KEY);
+		if (routeMetrics == null) {
+			return format.encode(gson, value, Buffer.buffer());
+		}
+		long start = System.nanoTime();
+		Buffer res = format.encode(gson, value, Buffer.buffer());
+		routeMetrics.serialization().record(System.nanoTime() - start);
+		return res;
 	}
 
 	private void getAllWithParams(RoutingContext routingContext) {
 		//como son parametros opcionales se lo debemos pasar por queryParams 
-		final String unit = routingContext.queryParams().contains("unit") ? 
-				routingContext.queryParam("unit").get(0) : null;
-		final String id_device = routingContext.queryParams().contains("id_device") ? 
-				routingContext.queryParam("id_device").get(0) : null;
-		final String status = routingContext.queryParams().contains("status") ? 
-				routingContext.queryParam("status").get(0) : null;
-		
-		routingContext.response().putHeader("content-type", "application/json; charset=utf-8").setStatusCode(200)
-				.end(gson.toJson(sensores.values().stream().filter(elem -> {
-					boolean res = true;
-					res = res && unit != null ? elem.getUnit().equals(unit) : true;
-					res = res && id_device != null ? elem.getId_device().equals(id_device) : true;
-					res = res && status != null ? elem.getStatus().equals(status) : true;
-					return res;
-				}).collect(Collectors.toList())));
+		final SensorFilter filter = SensorFilter.fromParams(routingContext.queryParams());
+		if (routingContext.queryParams().contains("limit")) {
+			getPage(routingContext, filter);
+			return;
+		}
+		if (cache != null) {
+			getListCached(routingContext, filter);
+			return;
+		}
+		if (filter.isAll()) {
+			getAll(routingContext);
+			return;
+		}
+
+		// El indice solo devuelve los id_sensor que cumplen todos los filtros
+		sendList(routingContext, sensores.query(filter), true);
+	}
+
+	private Stream<Sensores> list(SensorFilter filter) {
+		return filter.isAll() ? sensores.all() : sensores.query(filter);
+	}
+
+	/**
+	 * Sends a list from the cache, or builds and caches it. Lists longer than
+	 * maxListSize are streamed without caching them.
+	 */
+	private void getListCached(RoutingContext routingContext, SensorFilter filter) {
+		String key = ResponseCache.variant(ResponseCache.listKey(filter), format(routingContext));
+		ResponseCache.Entry entry = cache.get(key);
+		if (entry != null) {
+			sendCached(routingContext, entry);
+			return;
+		}
+		long version = cache.version();
+		long start = System.nanoTime();
+		List<Sensores> sensors = list(filter).limit(maxCachedListSize + 1).collect(Collectors.toList());
+		if (sensors.size() > maxCachedListSize) {
+			sendList(routingContext, list(filter), true);
+			return;
+		}
+		RouteMetrics routeMetrics = routingContext.get(RouteMetrics.KEY);
+		if (routeMetrics != null) {
+			routeMetrics.query().record(System.nanoTime() - start);
+		}
+		// Las listas se guardan ya comprimidas, los aciertos no vuelven a comprimir
+		Buffer body = encode(routingContext, sensors);
+		sendCached(routingContext, cache.put(key, body, compression.gzip(body), version, true));
+	}
+
+	/**
+	 * Sends a cached body, or its gzip, with the ETag of what is sent, or 304
+	 * if the client already has either of them
+	 */
+	private void sendCached(RoutingContext routingContext, ResponseCache.Entry entry) {
+		HttpServerRequest request = routingContext.request();
+		boolean gzip = compression.sendsGzip(request, entry.getGzipped());
+		HttpServerResponse response = routingContext.response()
+				.putHeader("ETag", gzip ? entry.getGzipEtag() : entry.getEtag())
+				.putHeader("Cache-Control", cacheControl);
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ResponseCache.matches(ifNoneMatch, entry.getEtag())
+				|| (entry.getGzipEtag() != null && ResponseCache.matches(ifNoneMatch, entry.getGzipEtag()))) {
+			cache.notModified();
+			response.setStatusCode(304).end();
+			return;
+		}
+		response.putHeader("content-type", format(routingContext).contentType()).setStatusCode(200);
+		compression.end(request, response, entry.getBody(), entry.getGzipped());
+	}
+
+	/**
+	 * Keyset pagination: returns up to limit sensors sorted by id_sensor after
+	 * the one in the cursor param, and the cursor of the next page in the
+	 * X-Next-Cursor header when there are more sensors
+	 */
+	private void getPage(RoutingContext routingContext, SensorFilter filter) {
+		Integer limitParam = SensorValidation.parseInt(routingContext.queryParams().get("limit"));
+		Integer after = null;
+		try {
+			String cursor = routingContext.queryParams().get("cursor");
+			if (cursor != null) {
+				after = SensorCursor.decode(cursor);
+			}
+		} catch (IllegalArgumentException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (limitParam == null || limitParam <= 0 || limitParam > maxPageSize) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		int limit = limitParam;
+
+		// Se lee un sensor mas para saber si hay otra pagina
+		long start = System.nanoTime();
+		List<Sensores> page = sensores.query(filter, after, limit + 1).collect(Collectors.toList());
+		RouteMetrics routeMetrics = routingContext.get(RouteMetrics.KEY);
+		if (routeMetrics != null) {
+			routeMetrics.query().record(System.nanoTime() - start);
+		}
+		if (page.size() > limit) {
+			page.remove(limit);
+			routingContext.response().putHeader(SensorCursor.HEADER,
+					SensorCursor.encode(page.get(limit - 1).getId_sensor()));
+		}
+		sendList(routingContext, page.stream(), false);
 	}
 
 	private void getOne(RoutingContext routingContext) {
-		int id = Integer.parseInt(routingContext.request().getParam("id_sensor")); //nos lo pasa por url de la ruta
-		// el parametro debe escribirse igual q arriba
-		if (sensores.containsKey(id)) {
-			Sensores ds = sensores.get(id);
-			routingContext.response().putHeader("content-type", "application/json; charset=utf-8").setStatusCode(200)
-					.end(gson.toJson(ds));
+		int id = SensorValidation.id(routingContext); //nos lo pasa por url de la ruta, ya validado
+		String key = ResponseCache.variant(ResponseCache.sensorKey(id), format(routingContext));
+		ResponseCache.Entry entry = cache != null ? cache.get(key) : null;
+		if (entry != null) {
+			sendCached(routingContext, entry);
+			return;
+		}
+		long version = cache != null ? cache.version() : 0;
+		Sensores ds = sensores.get(id);
+		if (ds != null && cache != null) {
+			Buffer body = encode(routingContext, ds);
+			sendCached(routingContext, cache.put(key, body, compression.gzip(body), version, false));
+		} else if (ds != null) {
+			compression.end(routingContext.response().putHeader("content-type", format(routingContext).contentType())
+					.setStatusCode(200), encode(routingContext, ds));
 		} else {
 			routingContext.response().putHeader("content-type", "application/json; charset=utf-8").setStatusCode(204)
 					.end();
@@ -91,46 +580,180 @@ public class RestServer extends AbstractVerticle {
 	}
 
 	private void addOne(RoutingContext routingContext) {
-		final Sensores sensor = gson.fromJson(routingContext.getBodyAsString(), Sensores.class);
-		sensores.put(sensor.getId_sensor(), sensor);
-		routingContext.response().setStatusCode(201).putHeader("content-type", "application/json; charset=utf-8")
-				.end(gson.toJson(sensor));
+		final Sensores sensor = SensorValidation.sensor(routingContext);
+		serialized(sensor.getId_sensor(), () -> persist(sensor).map(v -> sensores.put(sensor))).onSuccess(old -> {
+			invalidate(sensor.getId_sensor());
+			publish(old == null ? SensorChange.ADDED : SensorChange.UPDATED, sensor);
+			compression.end(routingContext.response().setStatusCode(201).putHeader("content-type",
+					format(routingContext).contentType()), encode(routingContext, sensor));
+		}).onFailure(routingContext::fail);
 	}
 
 	private void deleteOne(RoutingContext routingContext) {
-		int id = Integer.parseInt(routingContext.request().getParam("id_sensor"));
-		if (sensores.containsKey(id)) {
-			Sensores sensor = sensores.get(id);
-			sensores.remove(id);
-			routingContext.response().setStatusCode(200).putHeader("content-type", "application/json; charset=utf-8")
-					.end(gson.toJson(sensor));
-		} else {
+		int id = SensorValidation.id(routingContext);
+		serialized(id, () -> {
+			if (!sensores.contains(id)) {
+				return Future.<Sensores>succeededFuture();
+			}
+			return unpersist(id).map(v -> sensores.remove(id));
+		}).onSuccess(removed -> {
+			if (removed == null) {
+				routingContext.response().setStatusCode(204)
+						.putHeader("content-type", "application/json; charset=utf-8").end();
+				return;
+			}
+			invalidate(id);
+			publish(SensorChange.DELETED, removed);
+			if (readings != null) {
+				readings.remove(id);
+			}
+			compression.end(routingContext.response().setStatusCode(200).putHeader("content-type",
+					format(routingContext).contentType()), encode(routingContext, removed));
+		}).onFailure(routingContext::fail);
+	}
+
+	private void putOne(RoutingContext routingContext) {
+		int id = SensorValidation.id(routingContext);
+		final Sensores element = SensorValidation.sensor(routingContext);
+		
+		//actualizamos solo la propiedad q le indicamos, sobre una copia para no
+		//modificar el sensor que pueden estar leyendo otras instancias
+		UnaryOperator<Sensores> update = ds -> {
+			Sensores res = new Sensores(ds);
+			res.setId_device(element.getId_device());
+			res.setUnit(element.getUnit());
+			res.setStatus(element.getStatus());
+			return res;
+		};
+		serialized(id, () -> {
+			Sensores ds = sensores.get(id);
+			if (ds == null) {
+				return Future.<Sensores>succeededFuture();
+			}
+			if (repository == null) {
+				return Future.succeededFuture(sensores.update(id, update));
+			}
+			// A la tabla va el mismo valor que al almacen; la cola impide que otra escritura del id se cuele
+			Sensores updated = update.apply(ds);
+			return repository.save(updated).map(v -> {
+				sensores.put(updated);
+				return updated;
+			});
+		}).onSuccess(updated -> {
+			if (updated == null) {
+				routingContext.response().setStatusCode(204)
+						.putHeader("content-type", "application/json; charset=utf-8").end();
+				return;
+			}
+			invalidate(id);
+			publish(SensorChange.UPDATED, updated);
+			compression.end(routingContext.response().setStatusCode(201).putHeader("content-type",
+					format(routingContext).contentType()), encode(routingContext, element));
+		}).onFailure(routingContext::fail);
+	}
+
+	/**
+	 * Appends readings to the history of a sensor. The body is a reading or an
+	 * array of readings with a numeric value and an optional timestamp in ms,
+	 * the time of the request if missing.
+	 */
+	private void addReadings(RoutingContext routingContext) {
+		int id = SensorValidation.id(routingContext);
+		JsonArray body;
+		try {
+			Object json = Json.decodeValue(routingContext.getBody());
+			body = json instanceof JsonArray ? (JsonArray) json : new JsonArray().add(json);
+		} catch (RuntimeException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (!sensores.contains(id)) {
 			routingContext.response().setStatusCode(204).putHeader("content-type", "application/json; charset=utf-8")
 					.end();
+			return;
+		}
+		long now = System.currentTimeMillis();
+		int appended = 0;
+		int rejected = 0;
+		for (Object element : body) {
+			Object value = element instanceof JsonObject ? ((JsonObject) element).getValue("value") : null;
+			Object timestamp = element instanceof JsonObject ? ((JsonObject) element).getValue("timestamp") : null;
+			if (!(value instanceof Number) || Double.isNaN(((Number) value).doubleValue())
+					|| (timestamp != null && !(timestamp instanceof Number))) {
+				rejected++;
+			} else if (readings.append(id, timestamp != null ? ((Number) timestamp).longValue() : now,
+					((Number) value).doubleValue())) {
+				appended++;
+			} else {
+				rejected++;
+			}
 		}
+		compression.end(routingContext.response().setStatusCode(201).putHeader("content-type",
+				"application/json; charset=utf-8"),
+				new JsonObject().put("appended", appended).put("rejected", rejected).toBuffer());
 	}
 
-	private void putOne(RoutingContext routingContext) {
-		int id = Integer.parseInt(routingContext.request().getParam("sensorid"));
-		Sensores ds = sensores.get(id);
-		final Sensores element = gson.fromJson(routingContext.getBodyAsString(), Sensores.class);
-		
-		//actualizamos solo la propiedad q le indicamos
-		ds.setId_device(element.getId_device());
-		ds.setUnit(element.getUnit());
-		ds.setStatus(element.getStatus());
-		//actualizamos todos los valores
-		sensores.put(ds.getId_sensor(), ds);
-		routingContext.response().setStatusCode(201).putHeader("content-type", "application/json; charset=utf-8")
-				.end(gson.toJson(element));
+	/**
+	 * Aggregates the readings of a sensor between the from and to params, in ms,
+	 * in buckets of step ms. By default the last hour in a single bucket.
+	 */
+	private void getReadings(RoutingContext routingContext) {
+		int id = SensorValidation.id(routingContext);
+		String toParam = routingContext.queryParams().get("to");
+		String fromParam = routingContext.queryParams().get("from");
+		String stepParam = routingContext.queryParams().get("step");
+		Long to = toParam != null ? SensorValidation.parseLong(toParam) : Long.valueOf(System.currentTimeMillis());
+		Long from = fromParam != null ? SensorValidation.parseLong(fromParam) : to != null ? to - 3600000L : null;
+		Long step = stepParam != null ? SensorValidation.parseLong(stepParam) : to != null && from != null ? to - from : null;
+		if (to == null || from == null || step == null) {
+			SensorValidation.badRequest(routingContext, "from, to and step must be integers");
+			return;
+		}
+		long buckets = SensorReadings.buckets(from, to, step);
+		if (buckets < 0 || buckets > maxReadingBuckets) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (!sensores.contains(id)) {
+			routingContext.response().setStatusCode(204).putHeader("content-type", "application/json; charset=utf-8")
+					.end();
+			return;
+		}
+		compression.end(routingContext.response().putHeader("content-type", "application/json; charset=utf-8")
+				.setStatusCode(200), readings.query(id, from, to, step).toBuffer());
 	}
 
 	private void createSomeData(int number) {
 		Random rnd = new Random();
 		IntStream.range(0, number).forEach(elem -> {
 			int id = rnd.nextInt();
-			sensores.put(id, new Sensores(id, id, id,"status_" + id));
+			// En modo particionado solo ids de este nodo
+			while (shards != null && !shards.isLocal(id)) {
+				id = rnd.nextInt();
+			}
+			sensores.put(new Sensores(id, id, id, "status_" + id));
 		});
 	}
 
+	/**
+	 * Load of the sensores table shared by the instances of the verticle
+	 */
+	private static class DatabaseLoad implements Shareable {
+
+		private Future<Void> loaded;
+
+		/**
+		 * @param loader Starts the load, only called by the first instance or
+		 *               after a failed load, so a redeploy tries again
+		 * @return Future completed when the store holds the table
+		 */
+		synchronized Future<Void> load(Supplier<Future<Void>> loader) {
+			if (loaded == null || loaded.failed()) {
+				loaded = loader.get();
+			}
+			return loaded;
+		}
+
+	}
+
 }
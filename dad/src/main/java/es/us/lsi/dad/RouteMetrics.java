@@ -0,0 +1,83 @@
+package es.us.lsi.dad;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of one route of {@link RestServer}: requests by status code, total
+ * latency, time spent reading the store (query) and serializing the response,
+ * and bytes written. Created when the route is registered, so recording a
+ * request only updates atomic counters.
+ */
+public class RouteMetrics {
+
+	/**
+	 * Key of the RouteMetrics of the current route in the RoutingContext
+	 */
+	public static final String KEY = "es.us.lsi.dad.routeMetrics";
+
+	private final String route;
+	private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram query = new LatencyHistogram();
+	private final LatencyHistogram serialization = new LatencyHistogram();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	public RouteMetrics(String route) {
+		this.route = route;
+	}
+
+	/**
+	 * Records a finished request
+	 *
+	 * @param status       Status code of the response
+	 * @param latencyNanos Time from the request to the end of the response
+	 * @param bytes        Bytes of the response body
+	 */
+	public void record(int status, long latencyNanos, long bytes) {
+		statusCodes.incrementAndGet(status >= 0 && status < 600 ? status : 0);
+		latency.record(latencyNanos);
+		bytesOut.addAndGet(bytes);
+	}
+
+	public String getRoute() {
+		return route;
+	}
+
+	public LatencyHistogram latency() {
+		return latency;
+	}
+
+	/**
+	 * @return Time spent reading and filtering the sensors of the store
+	 */
+	public LatencyHistogram query() {
+		return query;
+	}
+
+	/**
+	 * @return Time spent encoding the response body
+	 */
+	public LatencyHistogram serialization() {
+		return serialization;
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getRequests(int status) {
+		return statusCodes.get(status);
+	}
+
+	void writeStatusCodes(StringBuilder out, String name) {
+		for (int status = 0; status < statusCodes.length(); status++) {
+			long count = statusCodes.get(status);
+			if (count > 0) {
+				out.append(name).append("{route=\"").append(route).append("\",code=\"").append(status).append("\"} ")
+						.append(count).append('\n');
+			}
+		}
+	}
+
+}
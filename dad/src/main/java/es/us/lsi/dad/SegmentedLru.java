@@ -0,0 +1,198 @@
+package es.us.lsi.dad;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Map with String keys that evicts its entries in LRU order when there are
+ * more than maxEntries or they take more than maxBytes. It is split by key
+ * hash in segments with their own lock, LRU order and share of both limits,
+ * so the event loops that share it do not wait for each other on every
+ * access; the order is LRU within a segment only.
+ *
+ * Used by {@link ResponseCache}, {@link ClientCache} and
+ * {@link AdmissionControl}.
+ *
+ * @param <V> Type of the values
+ */
+class SegmentedLru<V> {
+
+	// Segmentos de un mapa grande; uno pequeno usa menos, con al menos 64 entradas cada uno
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment<V>[] segments;
+	private final ToLongBiFunction<String, V> sizer;
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries Maximum number of entries
+	 * @param maxBytes   Maximum bytes of the entries
+	 * @param sizer      Bytes of an entry, counted against maxBytes
+	 */
+	@SuppressWarnings("unchecked")
+	SegmentedLru(int maxEntries, long maxBytes, ToLongBiFunction<String, V> sizer) {
+		this.sizer = sizer;
+		int count = Math.min(MAX_SEGMENTS, Math.max(1, Integer.highestOneBit(maxEntries / 64)));
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment<V>(Math.max(1, maxEntries / count), maxBytes / count);
+		}
+	}
+
+	V get(String key) {
+		return get(key, null);
+	}
+
+	/**
+	 * @param valid If not null, an entry that does not pass it is removed
+	 * @return Value of the key, or null
+	 */
+	V get(String key, Predicate<V> valid) {
+		Segment<V> segment = segment(key);
+		synchronized (segment) {
+			V value = segment.entries.get(key);
+			if (value != null && valid != null && !valid.test(value)) {
+				remove(segment, key);
+				return null;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * @return Value of the key, created and stored if there was none
+	 */
+	V computeIfAbsent(String key, Function<String, V> create) {
+		Segment<V> segment = segment(key);
+		synchronized (segment) {
+			V value = segment.entries.get(key);
+			if (value == null) {
+				value = create.apply(key);
+				store(segment, key, value, sizer.applyAsLong(key, value));
+			}
+			return value;
+		}
+	}
+
+	boolean put(String key, V value) {
+		return put(key, value, null);
+	}
+
+	/**
+	 * @param admit If not null, checked with the lock of the segment held; the
+	 *              value is only stored if it is true
+	 * @return false if the value was not stored, as it is larger than a
+	 *         segment or it was not admitted
+	 */
+	boolean put(String key, V value, BooleanSupplier admit) {
+		Segment<V> segment = segment(key);
+		long size = sizer.applyAsLong(key, value);
+		if (size > segment.maxBytes) {
+			return false;
+		}
+		synchronized (segment) {
+			if (admit != null && !admit.getAsBoolean()) {
+				return false;
+			}
+			remove(segment, key);
+			store(segment, key, value, size);
+		}
+		return true;
+	}
+
+	void remove(String key) {
+		Segment<V> segment = segment(key);
+		synchronized (segment) {
+			remove(segment, key);
+		}
+	}
+
+	void clear() {
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.entries.clear();
+				segment.bytes = 0;
+			}
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	long getBytes() {
+		long bytes = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				bytes += segment.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	private Segment<V> segment(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Called with the lock of the segment
+	 */
+	private void store(Segment<V> segment, String key, V value, long size) {
+		segment.entries.put(key, value);
+		segment.bytes += size;
+		Iterator<Map.Entry<String, V>> eldest = segment.entries.entrySet().iterator();
+		while ((segment.entries.size() > segment.maxEntries || segment.bytes > segment.maxBytes)
+				&& eldest.hasNext()) {
+			Map.Entry<String, V> evicted = eldest.next();
+			segment.bytes -= sizer.applyAsLong(evicted.getKey(), evicted.getValue());
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Called with the lock of the segment
+	 */
+	private void remove(Segment<V> segment, String key) {
+		V old = segment.entries.remove(key);
+		if (old != null) {
+			segment.bytes -= sizer.applyAsLong(key, old);
+		}
+	}
+
+	/**
+	 * Part of the entries, with its own lock and LRU order
+	 */
+	private static class Segment<V> {
+
+		private final int maxEntries;
+		private final long maxBytes;
+		// accessOrder: get mueve la entrada al final, la primera es la menos usada
+		private final LinkedHashMap<String, V> entries = new LinkedHashMap<String, V>(16, 0.75f, true);
+		private long bytes = 0;
+
+		private Segment(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+	}
+
+}
@@ -9,4 +9,70 @@ public class Sensor {
 	protected Integer unit;
 	protected Integer id_device;
 
+	public Sensor() {
+		super();
+	}
+
+	public Sensor(Integer id_sensor, Integer unit, Integer id_device, String tipo) {
+		super();
+		this.id_sensor = id_sensor;
+		this.unit = unit;
+		this.id_device = id_device;
+		this.tipo = tipo;
+	}
+
+	public Integer getId_sensor() {
+		return id_sensor;
+	}
+
+	public void setId_sensor(Integer id_sensor) {
+		this.id_sensor = id_sensor;
+	}
+
+	public String getNombre() {
+		return nombre;
+	}
+
+	public void setNombre(String nombre) {
+		this.nombre = nombre;
+	}
+
+	public String getTipo() {
+		return tipo;
+	}
+
+	public void setTipo(String tipo) {
+		this.tipo = tipo;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public Integer getUnit() {
+		return unit;
+	}
+
+	public void setUnit(Integer unit) {
+		this.unit = unit;
+	}
+
+	public Integer getId_device() {
+		return id_device;
+	}
+
+	public void setId_device(Integer id_device) {
+		this.id_device = id_device;
+	}
+
+	@Override
+	public String toString() {
+		return "Sensor [id_sensor=" + id_sensor + ", nombre=" + nombre + ", tipo=" + tipo + ", id=" + id + ", unit="
+				+ unit + ", id_device=" + id_device + "]";
+	}
+
 }
@@ -0,0 +1,268 @@
+package es.us.lsi.dad;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Handler of POST /api/sensores/batch. Accepts a JSON array of sensors or, with
+ * content type application/x-ndjson, one sensor per line, and answers with one
+ * {@link BatchResult} per record.
+ *
+ * Records are written in chunks of chunkSize sensors. While a chunk is being
+ * written an NDJSON request is paused, so a slow store slows down the client
+ * through TCP flow control instead of buffering the whole body. When more than
+ * maxPendingRecords records are waiting to be written new batches are
+ * rejected with 503. A body over maxBodySize or an NDJSON record over
+ * maxRecordSize is answered with 413.
+ *
+ * It must be registered before the BodyHandler of /api/sensores*, as it reads
+ * the request body itself.
+ */
+public class SensorBatchHandler implements Handler<RoutingContext> {
+
+	public static final String NDJSON = "application/x-ndjson";
+
+	private final SensorStore sensores;
+	private final MySQLSensorRepository repository;
+	private final SensorWriteQueue writes;
+	private final ResponseCache cache;
+	private final SensorEvents events;
+	private final SensorShards shards;
+	private final Gson gson;
+	private final int chunkSize;
+	private final int maxPendingRecords;
+	private final long maxBodySize;
+	private final int maxRecordSize;
+	// Only accessed from the event loop of the verticle
+	private int pendingRecords = 0;
+
+	/**
+	 * @param sensores   Store where sensors are written
+	 * @param repository Database written before the store, or null
+	 * @param writes     Order of the writes of each sensor, or null without
+	 *                   database
+	 * @param cache      Response cache invalidated after each write, or null
+	 * @param events     Publisher of the writes, or null
+	 * @param shards     Shards the sensors are written to in sharded mode, or
+	 *                   null
+	 * @param gson       Gson instance of the server
+	 * @param config     "batch" object of the verticle config: chunkSize,
+	 *                   maxPendingRecords, maxBodySize and maxRecordSize
+	 */
+	public SensorBatchHandler(SensorStore sensores, MySQLSensorRepository repository, SensorWriteQueue writes,
+			ResponseCache cache, SensorEvents events, SensorShards shards, Gson gson, JsonObject config) {
+		this.sensores = sensores;
+		this.repository = repository;
+		this.writes = writes;
+		this.cache = cache;
+		this.events = events;
+		this.shards = shards;
+		this.gson = gson;
+		this.chunkSize = config.getInteger("chunkSize", 500);
+		this.maxPendingRecords = config.getInteger("maxPendingRecords", 20000);
+		this.maxBodySize = config.getLong("maxBodySize", 16L * 1024 * 1024);
+		this.maxRecordSize = config.getInteger("maxRecordSize", 64 * 1024);
+	}
+
+	@Override
+	public void handle(RoutingContext routingContext) {
+		if (pendingRecords >= maxPendingRecords) {
+			routingContext.response().setStatusCode(503).putHeader("Retry-After", "1").end();
+			return;
+		}
+		HttpServerRequest request = routingContext.request();
+		String contentType = request.getHeader("content-type");
+		Batch batch = new Batch(routingContext);
+		if (contentType != null && contentType.startsWith(NDJSON)) {
+			RecordParser parser = RecordParser.newDelimited("\n", request);
+			parser.maxRecordSize(maxRecordSize);
+			parser.exceptionHandler(e -> {
+				// Solo falla asi un registro de mas de maxRecordSize, como el 413 de un array demasiado grande
+				parser.handler(null);
+				if (!routingContext.response().ended()) {
+					routingContext.response().setStatusCode(413).end();
+				}
+			});
+			parser.handler(line -> {
+				String record = line.toString().trim();
+				if (!record.isEmpty() && batch.add(record)) {
+					// No se leen mas registros hasta que se escriba el bloque
+					parser.pause();
+					batch.flush().onComplete(v -> parser.resume());
+				}
+			});
+			parser.endHandler(v -> batch.end());
+		} else {
+			Buffer body = Buffer.buffer();
+			request.handler(chunk -> {
+				if (body.length() + chunk.length() > maxBodySize) {
+					request.handler(null);
+					routingContext.response().setStatusCode(413).end();
+					return;
+				}
+				body.appendBuffer(chunk);
+			});
+			request.endHandler(v -> {
+				if (!routingContext.response().ended()) {
+					readArray(body, batch);
+				}
+			});
+		}
+	}
+
+	private void readArray(Buffer body, Batch batch) {
+		List<JsonElement> elements = new ArrayList<JsonElement>();
+		try (JsonReader reader = new JsonReader(new StringReader(body.toString()))) {
+			reader.beginArray();
+			while (reader.peek() != JsonToken.END_ARRAY) {
+				elements.add(gson.fromJson(reader, JsonElement.class));
+			}
+			reader.endArray();
+		} catch (Exception e) {
+			batch.routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		for (JsonElement element : elements) {
+			if (batch.add(element)) {
+				batch.flush();
+			}
+		}
+		batch.end();
+	}
+
+	/**
+	 * Writes a chunk of sensors to their shards, or to this node if it is not
+	 * sharded or the chunk was already routed
+	 */
+	private Future<Void> write(List<Sensores> chunk, RoutingContext routingContext) {
+		if (shards != null && !shards.forwarded(routingContext.request())) {
+			return shards.writeAll(chunk, this::writeLocal);
+		}
+		return writeLocal(chunk);
+	}
+
+	/**
+	 * Writes a chunk of sensors to the database, if there is one, and then to
+	 * the store, after the writes of the same ids already queued
+	 */
+	private Future<Void> writeLocal(List<Sensores> chunk) {
+		if (writes == null) {
+			return store(chunk, Future.succeededFuture());
+		}
+		List<Integer> ids = new ArrayList<Integer>(chunk.size());
+		chunk.forEach(sensor -> ids.add(sensor.getId_sensor()));
+		return writes.run(ids, () -> store(chunk, repository.saveAll(chunk)));
+	}
+
+	private Future<Void> store(List<Sensores> chunk, Future<Void> persisted) {
+		return persisted.onSuccess(v -> chunk.forEach(sensor -> {
+			Sensores old = sensores.put(sensor);
+			if (cache != null) {
+				cache.invalidate(sensor.getId_sensor());
+			}
+			if (events != null) {
+				events.publish(old == null ? SensorChange.ADDED : SensorChange.UPDATED, sensor);
+			}
+		}));
+	}
+
+	private class Batch {
+
+		private final RoutingContext routingContext;
+		private final List<BatchResult> results = new ArrayList<BatchResult>();
+		private List<Sensores> chunk = new ArrayList<Sensores>();
+		private List<Integer> chunkIndexes = new ArrayList<Integer>();
+		private Future<Void> last = Future.succeededFuture();
+		private int index = 0;
+
+		private Batch(RoutingContext routingContext) {
+			this.routingContext = routingContext;
+		}
+
+		/**
+		 * @return true if the current chunk is full and must be flushed
+		 */
+		private boolean add(String record) {
+			Sensores sensor;
+			try {
+				sensor = gson.fromJson(record, Sensores.class);
+			} catch (JsonParseException e) {
+				results.add(new BatchResult(index++, null, 400, "Malformed sensor"));
+				return false;
+			}
+			return add(sensor);
+		}
+
+		private boolean add(JsonElement element) {
+			Sensores sensor;
+			try {
+				sensor = gson.fromJson(element, Sensores.class);
+			} catch (JsonParseException e) {
+				results.add(new BatchResult(index++, null, 400, "Malformed sensor"));
+				return false;
+			}
+			return add(sensor);
+		}
+
+		private boolean add(Sensores sensor) {
+			if (sensor == null || sensor.getId_sensor() == null) {
+				results.add(new BatchResult(index++, null, 400, "id_sensor is required"));
+				return false;
+			}
+			chunk.add(sensor);
+			chunkIndexes.add(index++);
+			return chunk.size() >= chunkSize;
+		}
+
+		/**
+		 * Writes the current chunk after the previous ones. Its records count as
+		 * pending from here until they are written, so a batch that fails before
+		 * flushing its open chunk leaves nothing counted.
+		 */
+		private Future<Void> flush() {
+			List<Sensores> sensors = chunk;
+			List<Integer> indexes = chunkIndexes;
+			chunk = new ArrayList<Sensores>();
+			chunkIndexes = new ArrayList<Integer>();
+			pendingRecords += sensors.size();
+			last = last.compose(v -> write(sensors, routingContext).transform(ar -> {
+				pendingRecords -= sensors.size();
+				for (int i = 0; i < sensors.size(); i++) {
+					results.add(ar.succeeded() ? new BatchResult(indexes.get(i), sensors.get(i).getId_sensor(), 201, null)
+							: new BatchResult(indexes.get(i), sensors.get(i).getId_sensor(), 500,
+									ar.cause().getMessage()));
+				}
+				return Future.<Void>succeededFuture();
+			}));
+			return last;
+		}
+
+		private void end() {
+			flush().onComplete(v -> {
+				if (routingContext.response().ended()) {
+					return;
+				}
+				results.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+				routingContext.response().putHeader("content-type", "application/json; charset=utf-8")
+						.setStatusCode(200).end(gson.toJson(results));
+			});
+		}
+
+	}
+
+}
@@ -0,0 +1,456 @@
+package es.us.lsi.dad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * CBOR (RFC 8949) codec of {@link Sensor} and {@link Sensores}, the binary
+ * alternative to {@link SensorCodec}. A sensor is a map with the same keys as
+ * its JSON object, so any CBOR decoder reads the same document, but numbers
+ * are written as binary integers of 1 to 5 bytes instead of digits and no
+ * quoting or escaping is needed.
+ *
+ * It is written for the sensor schema, without reflection: the keys are
+ * encoded once and the decoder dispatches on the key name as the Gson type
+ * adapters do. Unknown keys and values of any CBOR type are skipped.
+ */
+public final class SensorCbor {
+
+	public static final String CONTENT_TYPE = "application/cbor";
+
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1;
+	private static final int BYTES = 2;
+	private static final int TEXT = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+	private static final int TAG = 6;
+	private static final int SIMPLE = 7;
+
+	private static final int NULL = 0xF6;
+	private static final int BREAK = 0xFF;
+	private static final int INDEFINITE = 31;
+	// Anidamiento maximo de los valores ignorados, contra entradas maliciosas
+	private static final int MAX_DEPTH = 32;
+
+	private static final byte[] ID_SENSOR = key("id_sensor");
+	private static final byte[] NOMBRE = key("nombre");
+	private static final byte[] TIPO = key("tipo");
+	private static final byte[] ID = key("id");
+	private static final byte[] UNIT = key("unit");
+	private static final byte[] ID_DEVICE = key("id_device");
+	private static final byte[] STATUS = key("status");
+
+	private SensorCbor() {
+	}
+
+	/**
+	 * Appends the CBOR of a value to a buffer
+	 *
+	 * @param value  Sensor, collection or array of sensors, or null
+	 * @param buffer Buffer to append to
+	 * @return The same buffer
+	 */
+	public static Buffer encode(Object value, Buffer buffer) {
+		if (value == null) {
+			buffer.appendByte((byte) NULL);
+		} else if (value instanceof Sensor) {
+			writeSensor((Sensor) value, buffer);
+		} else if (value instanceof Collection) {
+			Collection<?> values = (Collection<?>) value;
+			writeHead(buffer, ARRAY, values.size());
+			for (Object element : values) {
+				encode(element, buffer);
+			}
+		} else if (value instanceof Object[]) {
+			Object[] values = (Object[]) value;
+			writeHead(buffer, ARRAY, values.length);
+			for (Object element : values) {
+				encode(element, buffer);
+			}
+		} else {
+			throw new IllegalArgumentException("No CBOR encoding for " + value.getClass().getName());
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return true if the value is a sensor, or a collection or array of
+	 *         sensors, that {@link #encode} can write
+	 */
+	public static boolean canEncode(Object value) {
+		if (value instanceof Sensor) {
+			return true;
+		}
+		Iterable<?> values = value instanceof Collection ? (Collection<?>) value
+				: value instanceof Object[] ? Arrays.asList((Object[]) value) : null;
+		if (values == null) {
+			return false;
+		}
+		for (Object element : values) {
+			if (element != null && !(element instanceof Sensor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Starts an array of unknown length, to stream its elements with
+	 * {@link #encode} and close it with {@link #endArray}
+	 */
+	public static Buffer startArray(Buffer buffer) {
+		return buffer.appendByte((byte) ((ARRAY << 5) | INDEFINITE));
+	}
+
+	public static Buffer endArray(Buffer buffer) {
+		return buffer.appendByte((byte) BREAK);
+	}
+
+	/**
+	 * @param <T>       Sensor, Sensores, Sensor[] or Sensores[]
+	 * @param buffer    CBOR bytes, may be null
+	 * @param classType Type of the value
+	 * @return Decoded value, or null if the buffer is null or empty
+	 * @throws IllegalArgumentException If the bytes are not a valid value of
+	 *                                  the type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T decode(Buffer buffer, Class<T> classType) {
+		if (buffer == null || buffer.length() == 0) {
+			return null;
+		}
+		Reader in = new Reader(buffer);
+		Object res;
+		if (classType == Sensores.class || classType == Sensor.class) {
+			res = in.readSensor(classType == Sensores.class);
+		} else if (classType == Sensores[].class) {
+			List<Sensor> list = in.readSensors(true);
+			res = list != null ? list.toArray(new Sensores[list.size()]) : null;
+		} else if (classType == Sensor[].class) {
+			List<Sensor> list = in.readSensors(false);
+			res = list != null ? list.toArray(new Sensor[list.size()]) : null;
+		} else {
+			throw new IllegalArgumentException("No CBOR decoding for " + classType.getName());
+		}
+		if (in.pos != buffer.length()) {
+			throw new IllegalArgumentException("Trailing bytes after CBOR value");
+		}
+		return (T) res;
+	}
+
+	// Se omiten los campos null, igual que en JSON
+	private static void writeSensor(Sensor value, Buffer buffer) {
+		String status = value instanceof Sensores ? ((Sensores) value).getStatus() : null;
+		int fields = count(value.getId_sensor()) + count(value.getNombre()) + count(value.getTipo())
+				+ count(value.getId()) + count(value.getUnit()) + count(value.getId_device()) + count(status);
+		writeHead(buffer, MAP, fields);
+		writeInteger(buffer, ID_SENSOR, value.getId_sensor());
+		writeString(buffer, NOMBRE, value.getNombre());
+		writeString(buffer, TIPO, value.getTipo());
+		writeInteger(buffer, ID, value.getId());
+		writeInteger(buffer, UNIT, value.getUnit());
+		writeInteger(buffer, ID_DEVICE, value.getId_device());
+		writeString(buffer, STATUS, status);
+	}
+
+	private static int count(Object field) {
+		return field != null ? 1 : 0;
+	}
+
+	private static void writeInteger(Buffer buffer, byte[] key, Integer value) {
+		if (value != null) {
+			buffer.appendBytes(key);
+			if (value >= 0) {
+				writeHead(buffer, UNSIGNED, value);
+			} else {
+				writeHead(buffer, NEGATIVE, -1L - value);
+			}
+		}
+	}
+
+	private static void writeString(Buffer buffer, byte[] key, String value) {
+		if (value != null) {
+			buffer.appendBytes(key);
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeHead(buffer, TEXT, bytes.length);
+			buffer.appendBytes(bytes);
+		}
+	}
+
+	/**
+	 * Major type and argument in the shortest of the 1, 2, 3, 5 or 9 byte forms
+	 */
+	private static void writeHead(Buffer buffer, int major, long value) {
+		int type = major << 5;
+		if (value < 24) {
+			buffer.appendByte((byte) (type | value));
+		} else if (value < 0x100) {
+			buffer.appendByte((byte) (type | 24)).appendByte((byte) value);
+		} else if (value < 0x10000) {
+			buffer.appendByte((byte) (type | 25)).appendShort((short) value);
+		} else if (value < 0x100000000L) {
+			buffer.appendByte((byte) (type | 26)).appendInt((int) value);
+		} else {
+			buffer.appendByte((byte) (type | 27)).appendLong(value);
+		}
+	}
+
+	private static byte[] key(String name) {
+		Buffer buffer = Buffer.buffer();
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		writeHead(buffer, TEXT, bytes.length);
+		return buffer.appendBytes(bytes).getBytes();
+	}
+
+	/**
+	 * Cursor over the bytes of a value. Every read checks the remaining bytes,
+	 * so a truncated or malformed body fails with IllegalArgumentException
+	 * instead of an IndexOutOfBoundsException.
+	 */
+	private static class Reader {
+
+		private final Buffer buffer;
+		private int pos = 0;
+		// Cabecera del ultimo elemento leido
+		private int major;
+		private int info;
+		private long argument;
+
+		private Reader(Buffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private int peek() {
+			require(1);
+			return buffer.getUnsignedByte(pos);
+		}
+
+		private void readHead() {
+			int initial = peek();
+			pos++;
+			major = initial >>> 5;
+			info = initial & 0x1F;
+			if (info < 24) {
+				argument = info;
+			} else if (info == 24) {
+				require(1);
+				argument = buffer.getUnsignedByte(pos);
+				pos += 1;
+			} else if (info == 25) {
+				require(2);
+				argument = buffer.getUnsignedShort(pos);
+				pos += 2;
+			} else if (info == 26) {
+				require(4);
+				argument = buffer.getUnsignedInt(pos);
+				pos += 4;
+			} else if (info == 27) {
+				require(8);
+				argument = buffer.getLong(pos);
+				pos += 8;
+				if (argument < 0 && major != SIMPLE) {
+					// Mayor que Long.MAX_VALUE, no cabe en ningun campo ni buffer; en un double es el signo
+					throw malformed();
+				}
+			} else if (info == INDEFINITE && major >= BYTES && major <= MAP) {
+				argument = -1;
+			} else if (!(info == INDEFINITE && major == SIMPLE)) {
+				throw malformed();
+			}
+		}
+
+		private List<Sensor> readSensors(boolean sensores) {
+			if (peek() == NULL) {
+				pos++;
+				return null;
+			}
+			readHead();
+			if (major != ARRAY) {
+				throw new IllegalArgumentException("CBOR array expected");
+			}
+			long size = argument;
+			// No se reserva mas de lo que puede caber en los bytes restantes
+			List<Sensor> list = new ArrayList<Sensor>((int) Math.min(Math.max(size, 0), remaining()));
+			for (long i = 0; size < 0 ? !atBreak() : i < size; i++) {
+				list.add(readSensor(sensores));
+			}
+			return list;
+		}
+
+		private Sensor readSensor(boolean sensores) {
+			if (peek() == NULL) {
+				pos++;
+				return null;
+			}
+			readHead();
+			if (major != MAP) {
+				throw new IllegalArgumentException("CBOR map expected");
+			}
+			long size = argument;
+			Sensor sensor = sensores ? new Sensores() : new Sensor();
+			for (long i = 0; size < 0 ? !atBreak() : i < size; i++) {
+				String name = readString();
+				if (name == null) {
+					throw malformed();
+				}
+				switch (name) {
+				case "id_sensor":
+					sensor.setId_sensor(readInteger());
+					break;
+				case "nombre":
+					sensor.setNombre(readString());
+					break;
+				case "tipo":
+					sensor.setTipo(readString());
+					break;
+				case "id":
+					sensor.setId(readInteger());
+					break;
+				case "unit":
+					sensor.setUnit(readInteger());
+					break;
+				case "id_device":
+					sensor.setId_device(readInteger());
+					break;
+				case "status":
+					if (sensores) {
+						((Sensores) sensor).setStatus(readString());
+					} else {
+						skip(0);
+					}
+					break;
+				default:
+					skip(0);
+				}
+			}
+			return sensor;
+		}
+
+		private Integer readInteger() {
+			if (peek() == NULL) {
+				pos++;
+				return null;
+			}
+			readHead();
+			// Fuera del rango de int el argumento de 8 bytes puede ser negativo
+			if (major == UNSIGNED && argument >= 0 && argument <= Integer.MAX_VALUE) {
+				return (int) argument;
+			}
+			if (major == NEGATIVE && argument >= 0 && argument <= Integer.MAX_VALUE) {
+				return (int) (-1L - argument);
+			}
+			throw new IllegalArgumentException("CBOR int expected");
+		}
+
+		private String readString() {
+			if (peek() == NULL) {
+				pos++;
+				return null;
+			}
+			readHead();
+			if (major != TEXT) {
+				throw new IllegalArgumentException("CBOR text string expected");
+			}
+			if (argument >= 0) {
+				return readText();
+			}
+			// Longitud indefinida: trozos de longitud definida hasta el break
+			StringBuilder res = new StringBuilder();
+			while (!atBreak()) {
+				readHead();
+				if (major != TEXT || argument < 0) {
+					throw malformed();
+				}
+				res.append(readText());
+			}
+			return res.toString();
+		}
+
+		/**
+		 * @return Text of the definite length string whose head was just read
+		 */
+		private String readText() {
+			require(argument);
+			String res = buffer.getString(pos, pos + (int) argument, "UTF-8");
+			pos += (int) argument;
+			return res;
+		}
+
+		/**
+		 * Skips a value of any type
+		 */
+		private void skip(int depth) {
+			if (depth > MAX_DEPTH) {
+				throw new IllegalArgumentException("CBOR value nested too deep");
+			}
+			readHead();
+			switch (major) {
+			case UNSIGNED:
+			case NEGATIVE:
+				return;
+			case BYTES:
+			case TEXT:
+				if (argument < 0) {
+					while (!atBreak()) {
+						skip(depth + 1);
+					}
+				} else {
+					require(argument);
+					pos += (int) argument;
+				}
+				return;
+			case ARRAY:
+			case MAP:
+				long items = major == MAP && argument > 0 ? argument * 2 : argument;
+				if (items < 0) {
+					while (!atBreak()) {
+						skip(depth + 1);
+					}
+				} else {
+					for (long i = 0; i < items; i++) {
+						skip(depth + 1);
+					}
+				}
+				return;
+			case TAG:
+				skip(depth + 1);
+				return;
+			default:
+				// Simples y floats ya leidos en la cabecera; un break suelto no es valido
+				if (info == INDEFINITE) {
+					throw malformed();
+				}
+			}
+		}
+
+		private boolean atBreak() {
+			if (peek() == BREAK) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private long remaining() {
+			return buffer.length() - pos;
+		}
+
+		private void require(long bytes) {
+			if (bytes < 0 || bytes > remaining()) {
+				throw new IllegalArgumentException("Truncated CBOR value");
+			}
+		}
+
+		private static IllegalArgumentException malformed() {
+			return new IllegalArgumentException("Malformed CBOR value");
+		}
+
+	}
+
+}
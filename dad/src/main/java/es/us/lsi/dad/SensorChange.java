@@ -0,0 +1,127 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Write to the sensor store published on the event bus by {@link SensorEvents}.
+ * The JSON of the change, {"type": ..., "sensor": {...}}, is encoded once when
+ * the change is created and shared by every subscriber it is sent to.
+ */
+public class SensorChange {
+
+	public static final String ADDED = "added";
+	public static final String UPDATED = "updated";
+	public static final String DELETED = "deleted";
+
+	private final String type;
+	private final Sensores sensor;
+	private final Buffer json;
+
+	/**
+	 * @param type   ADDED, UPDATED or DELETED
+	 * @param sensor Sensor as written or, for DELETED, as it was removed
+	 */
+	public SensorChange(String type, Sensores sensor) {
+		this.type = type;
+		this.sensor = sensor;
+		this.json = Buffer.buffer(64).appendString("{\"type\":\"").appendString(type).appendString("\",\"sensor\":")
+				.appendBuffer(SensorCodec.encode(sensor)).appendString("}");
+	}
+
+	private SensorChange(String type, Sensores sensor, Buffer json) {
+		this.type = type;
+		this.sensor = sensor;
+		this.json = json;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public Sensores getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * @return JSON of the change, must not be modified
+	 */
+	public Buffer getJson() {
+		return json;
+	}
+
+	/**
+	 * Changes published together, in the order they happened
+	 */
+	public static class Batch {
+
+		private final List<SensorChange> changes;
+
+		public Batch(List<SensorChange> changes) {
+			this.changes = changes;
+		}
+
+		public List<SensorChange> getChanges() {
+			return changes;
+		}
+
+	}
+
+	/**
+	 * Event bus codec of a batch. Local deliveries share the batch, as changes
+	 * are never modified; over the wire the batch is sent as a JSON array of
+	 * changes.
+	 */
+	public static class BatchCodec implements MessageCodec<Batch, Batch> {
+
+		public static final String NAME = "sensor-change-batch";
+
+		@Override
+		public void encodeToWire(Buffer buffer, Batch batch) {
+			Buffer json = Buffer.buffer().appendString("[");
+			for (int i = 0; i < batch.changes.size(); i++) {
+				if (i > 0) {
+					json.appendString(",");
+				}
+				json.appendBuffer(batch.changes.get(i).json);
+			}
+			json.appendString("]");
+			buffer.appendInt(json.length()).appendBuffer(json);
+		}
+
+		@Override
+		public Batch decodeFromWire(int pos, Buffer buffer) {
+			int length = buffer.getInt(pos);
+			JsonArray array = new JsonArray(buffer.slice(pos + 4, pos + 4 + length));
+			List<SensorChange> changes = new ArrayList<SensorChange>(array.size());
+			for (int i = 0; i < array.size(); i++) {
+				JsonObject change = array.getJsonObject(i);
+				Sensores sensor = SensorCodec.decode(change.getJsonObject("sensor").toBuffer(), Sensores.class);
+				changes.add(new SensorChange(change.getString("type"), sensor, change.toBuffer()));
+			}
+			return new Batch(changes);
+		}
+
+		@Override
+		public Batch transform(Batch batch) {
+			return batch;
+		}
+
+		@Override
+		public String name() {
+			return NAME;
+		}
+
+		@Override
+		public byte systemCodecID() {
+			return -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+package es.us.lsi.dad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the writes to the sensor store since the last snapshot.
+ * Every record is
+ *
+ * <pre>
+ * int length, int crc32, byte op, int id_sensor [, sensor fields if op is PUT]
+ * </pre>
+ *
+ * Records are written to the file as they happen and forced to disk by
+ * {@link #sync()} or {@link #force()}, so a crash loses at most the writes
+ * since the last sync. A torn record at the end of the file, one that runs
+ * past its end, is cut off by the replay; a corrupt record before that fails
+ * it, as the records after it cannot be trusted.
+ */
+public class SensorChangeLog implements AutoCloseable {
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private final FileChannel channel;
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	private final CRC32 crc = new CRC32();
+	private boolean dirty = false;
+
+	/**
+	 * Opens a log to append records at its end
+	 */
+	SensorChangeLog(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	void put(Sensores sensor) throws IOException {
+		bytes.reset();
+		out.writeByte(PUT);
+		out.writeInt(sensor.getId_sensor());
+		writeInteger(sensor.getId());
+		writeInteger(sensor.getUnit());
+		writeInteger(sensor.getId_device());
+		writeString(sensor.getNombre());
+		writeString(sensor.getTipo());
+		writeString(sensor.getStatus());
+		append();
+	}
+
+	void delete(int id_sensor) throws IOException {
+		bytes.reset();
+		out.writeByte(DELETE);
+		out.writeInt(id_sensor);
+		append();
+	}
+
+	private void append() throws IOException {
+		byte[] payload = bytes.toByteArray();
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Marks the records written so far as being synced. Called under the lock
+	 * of the writes, so the slow {@link #force()} can run outside it.
+	 *
+	 * @return true if there are records to force
+	 */
+	boolean takeDirty() {
+		boolean wasDirty = dirty;
+		dirty = false;
+		return wasDirty;
+	}
+
+	/**
+	 * Forces the records written so far to disk. Can run while other threads
+	 * append; it fails with ClosedChannelException if the log is closed
+	 * meanwhile, and the close forces the records itself.
+	 */
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Forces the records written so far to disk
+	 */
+	void sync() throws IOException {
+		if (takeDirty()) {
+			force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Siempre: un sync en curso fuera del cerrojo puede haber limpiado dirty
+		force();
+		channel.close();
+	}
+
+	/**
+	 * Applies the records of a log to a store
+	 *
+	 * @param file  Log file
+	 * @param store Store the records are applied to
+	 * @return Number of records applied
+	 * @throws IOException If a record with a wrong length or checksum is not
+	 *                     the torn tail of the file
+	 */
+	static int replay(Path file, SensorStore store) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer in = ByteBuffer.allocate((int) channel.size());
+			while (in.hasRemaining() && channel.read(in) >= 0) {
+			}
+			in.flip();
+			CRC32 crc = new CRC32();
+			int records = 0;
+			while (in.remaining() >= 8) {
+				int start = in.position();
+				int length = in.getInt();
+				int checksum = in.getInt();
+				if (length > in.remaining()) {
+					in.position(start);
+					break;
+				}
+				crc.reset();
+				crc.update(in.array(), in.position(), Math.max(0, length));
+				if (length <= 0 || (int) crc.getValue() != checksum) {
+					throw corrupt(file, start);
+				}
+				ByteBuffer payload = in.slice();
+				payload.limit(length);
+				in.position(in.position() + length);
+				try {
+					apply(payload, store);
+				} catch (BufferUnderflowException e) {
+					throw corrupt(file, start);
+				}
+				records++;
+			}
+			if (in.hasRemaining()) {
+				// Registro a medias de una caida: se descarta
+				channel.truncate(in.position());
+			}
+			return records;
+		}
+	}
+
+	private static IOException corrupt(Path file, int position) {
+		return new IOException("Corrupt record at byte " + position + " of " + file);
+	}
+
+	private static void apply(ByteBuffer payload, SensorStore store) {
+		byte op = payload.get();
+		int id_sensor = payload.getInt();
+		if (op == DELETE) {
+			store.remove(id_sensor);
+			return;
+		}
+		Sensores sensor = new Sensores(id_sensor, null, null, null);
+		sensor.setId(readInteger(payload));
+		sensor.setUnit(readInteger(payload));
+		sensor.setId_device(readInteger(payload));
+		sensor.setNombre(readString(payload));
+		sensor.setTipo(readString(payload));
+		sensor.setStatus(readString(payload));
+		store.put(sensor);
+	}
+
+	private void writeInteger(Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeInt(value);
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	private static Integer readInteger(ByteBuffer in) {
+		return in.get() != 0 ? in.getInt() : null;
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] utf8 = new byte[length];
+		in.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+}
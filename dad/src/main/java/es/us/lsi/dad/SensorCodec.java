@@ -0,0 +1,338 @@
+package es.us.lsi.dad;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * JSON codec of the REST API. {@link Sensor} and {@link Sensores} use
+ * hand-written type adapters instead of Gson reflection, and the shared Gson
+ * instance encodes straight into a Vert.x {@link Buffer} and decodes from the
+ * bytes of a Buffer through a streaming reader, without an intermediate
+ * String.
+ */
+public final class SensorCodec {
+
+	public static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private static final Gson GSON = gsonBuilder().create();
+
+	private SensorCodec() {
+	}
+
+	/**
+	 * @return Builder with the sensor type adapters registered, to add other
+	 *         settings
+	 */
+	public static GsonBuilder gsonBuilder() {
+		return new GsonBuilder().registerTypeAdapter(Sensor.class, new SensorAdapter())
+				.registerTypeAdapter(Sensores.class, new SensoresAdapter());
+	}
+
+	/**
+	 * @return Shared Gson instance, safe to use from several threads
+	 */
+	public static Gson gson() {
+		return GSON;
+	}
+
+	public static Buffer encode(Object value) {
+		return encode(GSON, value, Buffer.buffer());
+	}
+
+	/**
+	 * Appends the JSON of a value to a buffer
+	 *
+	 * @param gson   Gson instance
+	 * @param value  Value to encode
+	 * @param buffer Buffer to append to
+	 * @return The same buffer
+	 */
+	public static Buffer encode(Gson gson, Object value, Buffer buffer) {
+		try {
+			JsonWriter writer = new JsonWriter(new BufferWriter(buffer));
+			gson.toJson(value, value != null ? value.getClass() : Object.class, writer);
+			writer.flush();
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @param <T>       Type of the value
+	 * @param buffer    JSON bytes, may be null
+	 * @param classType Type of the value
+	 * @return Decoded value, or null if the buffer is null or empty
+	 */
+	public static <T> T decode(Buffer buffer, Class<T> classType) {
+		return decode(GSON, buffer, classType);
+	}
+
+	/**
+	 * Decodes strictly, unlike Gson.fromJson, which is always lenient: it
+	 * rejects comments, unquoted names, single quotes and anything after the
+	 * value.
+	 *
+	 * @throws JsonSyntaxException If the bytes are not exactly one JSON value
+	 *                             of the type
+	 */
+	public static <T> T decode(Gson gson, Buffer buffer, Class<T> classType) {
+		if (buffer == null || buffer.length() == 0) {
+			return null;
+		}
+		// getByteBuf is a view of the same memory, not a copy
+		JsonReader reader = new JsonReader(
+				new InputStreamReader(new ByteBufInputStream(buffer.getByteBuf()), StandardCharsets.UTF_8));
+		reader.setLenient(false);
+		try {
+			T value = gson.getAdapter(classType).read(reader);
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new JsonSyntaxException("Data after the JSON value");
+			}
+			return value;
+		} catch (IllegalStateException | NumberFormatException e) {
+			throw new JsonSyntaxException(e);
+		} catch (IOException e) {
+			// Incluye MalformedJsonException y EOFException del cuerpo cortado
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	/**
+	 * Writer encoding chars as UTF-8 into a Buffer. Bytes are gathered in a
+	 * small array and appended to the buffer in blocks.
+	 */
+	private static class BufferWriter extends Writer {
+
+		private final Buffer buffer;
+		private final byte[] bytes = new byte[512];
+		private int count = 0;
+		private char highSurrogate = 0;
+
+		private BufferWriter(Buffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private void put(int b) {
+			if (count == bytes.length) {
+				flush();
+			}
+			bytes[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(int c) {
+			writeChar((char) c);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				writeChar(cbuf[i]);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				writeChar(str.charAt(i));
+			}
+		}
+
+		private void writeChar(char c) {
+			if (highSurrogate != 0) {
+				if (Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(highSurrogate, c);
+					put(0xF0 | (codePoint >> 18));
+					put(0x80 | ((codePoint >> 12) & 0x3F));
+					put(0x80 | ((codePoint >> 6) & 0x3F));
+					put(0x80 | (codePoint & 0x3F));
+					highSurrogate = 0;
+					return;
+				}
+				put('?');
+				highSurrogate = 0;
+			}
+			if (c < 0x80) {
+				put(c);
+			} else if (c < 0x800) {
+				put(0xC0 | (c >> 6));
+				put(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				highSurrogate = c;
+			} else if (Character.isLowSurrogate(c)) {
+				put('?');
+			} else {
+				put(0xE0 | (c >> 12));
+				put(0x80 | ((c >> 6) & 0x3F));
+				put(0x80 | (c & 0x3F));
+			}
+		}
+
+		@Override
+		public void flush() {
+			if (count > 0) {
+				buffer.appendBytes(bytes, 0, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+	private static class SensorAdapter extends TypeAdapter<Sensor> {
+
+		@Override
+		public void write(JsonWriter out, Sensor value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeFields(out, value);
+			out.endObject();
+		}
+
+		@Override
+		public Sensor read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Sensor sensor = new Sensor();
+			in.beginObject();
+			while (in.hasNext()) {
+				if (!readField(in, in.nextName(), sensor)) {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return sensor;
+		}
+
+	}
+
+	private static class SensoresAdapter extends TypeAdapter<Sensores> {
+
+		@Override
+		public void write(JsonWriter out, Sensores value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeFields(out, value);
+			if (value.getStatus() != null) {
+				out.name("status").value(value.getStatus());
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Sensores read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Sensores sensor = new Sensores();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("status")) {
+					sensor.setStatus(readString(in));
+				} else if (!readField(in, name, sensor)) {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return sensor;
+		}
+
+	}
+
+	// Null fields are left out, as Gson does by default
+	private static void writeFields(JsonWriter out, Sensor value) throws IOException {
+		if (value.getId_sensor() != null) {
+			out.name("id_sensor").value(value.getId_sensor());
+		}
+		if (value.getNombre() != null) {
+			out.name("nombre").value(value.getNombre());
+		}
+		if (value.getTipo() != null) {
+			out.name("tipo").value(value.getTipo());
+		}
+		if (value.getId() != null) {
+			out.name("id").value(value.getId());
+		}
+		if (value.getUnit() != null) {
+			out.name("unit").value(value.getUnit());
+		}
+		if (value.getId_device() != null) {
+			out.name("id_device").value(value.getId_device());
+		}
+	}
+
+	private static boolean readField(JsonReader in, String name, Sensor sensor) throws IOException {
+		switch (name) {
+		case "id_sensor":
+			sensor.setId_sensor(readInteger(in));
+			return true;
+		case "nombre":
+			sensor.setNombre(readString(in));
+			return true;
+		case "tipo":
+			sensor.setTipo(readString(in));
+			return true;
+		case "id":
+			sensor.setId(readInteger(in));
+			return true;
+		case "unit":
+			sensor.setUnit(readInteger(in));
+			return true;
+		case "id_device":
+			sensor.setId_device(readInteger(in));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static Integer readInteger(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		// nextInt also accepts numbers sent as strings, as Gson does
+		try {
+			return in.nextInt();
+		} catch (NumberFormatException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	private static String readString(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+
+}
@@ -0,0 +1,37 @@
+package es.us.lsi.dad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursor of the keyset pagination of GET /api/sensores. It holds the
+ * last id_sensor of a page; clients must send it back unchanged in the cursor
+ * param to get the next page.
+ */
+public final class SensorCursor {
+
+	public static final String HEADER = "X-Next-Cursor";
+
+	private SensorCursor() {
+	}
+
+	public static String encode(int id_sensor) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(Integer.toString(id_sensor).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @param cursor Cursor returned in a previous page
+	 * @return Last id_sensor of that page
+	 * @throws IllegalArgumentException If the cursor is not valid
+	 */
+	public static int decode(String cursor) {
+		try {
+			return Integer.parseInt(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException is an IllegalArgumentException too
+			throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Publishes the writes of one {@link RestServer} instance on the event bus and
+ * streams the writes of every instance to the {@link ChangeSubscriber}s
+ * connected to it.
+ *
+ * Changes are published in batches: the first change starts a timer of
+ * batchDelayMs and every change written until it fires, or until there are
+ * maxBatch changes, goes in the same message. Each instance receives every
+ * batch once and offers it to each of its subscribers, so the cost of a
+ * change is one JSON encoding plus one queue insertion per subscriber.
+ *
+ * Any verticle can listen to {@link #ADDRESS} to receive the
+ * {@link SensorChange.Batch}es.
+ */
+public class SensorEvents {
+
+	public static final String ADDRESS = "es.us.lsi.dad.sensores.changes";
+	private static final String SHARED_MAP = "es.us.lsi.dad.events";
+
+	private final Vertx vertx;
+	private final long batchDelayMs;
+	private final int maxBatch;
+	private final int maxQueued;
+	private final Stats stats;
+	private final MessageConsumer<SensorChange.Batch> consumer;
+	private final Set<ChangeSubscriber> subscribers = new LinkedHashSet<ChangeSubscriber>();
+	private final DeliveryOptions delivery = new DeliveryOptions().setCodecName(SensorChange.BatchCodec.NAME);
+	private List<SensorChange> pending = new ArrayList<SensorChange>();
+	private long timer = -1;
+
+	/**
+	 * Must be created from the verticle whose writes it publishes
+	 *
+	 * @param vertx  Vert.x instance
+	 * @param name   Store name, the stats are shared by the instances using it
+	 * @param config batchDelayMs (default 10), maxBatch (default 256) and
+	 *               maxQueued changes per subscriber (default 1024)
+	 */
+	public SensorEvents(Vertx vertx, String name, JsonObject config) {
+		this.vertx = vertx;
+		this.batchDelayMs = config.getLong("batchDelayMs", 10L);
+		this.maxBatch = config.getInteger("maxBatch", 256);
+		this.maxQueued = config.getInteger("maxQueued", 1024);
+		LocalMap<String, Stats> allStats = vertx.sharedData().getLocalMap(SHARED_MAP);
+		this.stats = allStats.computeIfAbsent(name, key -> new Stats());
+		try {
+			vertx.eventBus().registerCodec(new SensorChange.BatchCodec());
+		} catch (IllegalStateException e) {
+			// Ya registrado por otra instancia del verticle
+		}
+		consumer = vertx.eventBus().consumer(ADDRESS, message -> {
+			List<SensorChange> changes = message.body().getChanges();
+			for (ChangeSubscriber subscriber : new ArrayList<ChangeSubscriber>(subscribers)) {
+				subscriber.offer(changes);
+			}
+		});
+	}
+
+	/**
+	 * @param type   SensorChange.ADDED, UPDATED or DELETED
+	 * @param sensor Sensor written or removed
+	 */
+	public void publish(String type, Sensores sensor) {
+		pending.add(new SensorChange(type, sensor));
+		stats.published.incrementAndGet();
+		if (pending.size() >= maxBatch) {
+			flush();
+		} else if (timer == -1) {
+			timer = vertx.setTimer(batchDelayMs, id -> {
+				timer = -1;
+				flush();
+			});
+		}
+	}
+
+	private void flush() {
+		if (timer != -1) {
+			vertx.cancelTimer(timer);
+			timer = -1;
+		}
+		if (!pending.isEmpty()) {
+			vertx.eventBus().publish(ADDRESS, new SensorChange.Batch(pending), delivery);
+			pending = new ArrayList<SensorChange>();
+		}
+	}
+
+	/**
+	 * Sends the changes to the subscriber until {@link #unsubscribe} is called
+	 */
+	public void subscribe(ChangeSubscriber subscriber) {
+		if (subscribers.add(subscriber)) {
+			stats.subscribers.incrementAndGet();
+		}
+	}
+
+	public void unsubscribe(ChangeSubscriber subscriber) {
+		if (subscribers.remove(subscriber)) {
+			subscriber.close();
+			stats.subscribers.decrementAndGet();
+		}
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Publishes the pending changes and stops receiving them
+	 */
+	public void close() {
+		flush();
+		for (ChangeSubscriber subscriber : new ArrayList<ChangeSubscriber>(subscribers)) {
+			unsubscribe(subscriber);
+		}
+		consumer.unregister();
+	}
+
+	/**
+	 * Counters of the instances sharing a store
+	 */
+	public static class Stats implements Shareable {
+
+		final AtomicLong subscribers = new AtomicLong();
+		final AtomicLong published = new AtomicLong();
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+
+		public void writePrometheus(StringBuilder out) {
+			out.append("# TYPE dad_change_subscribers gauge\n");
+			out.append("dad_change_subscribers ").append(subscribers.get()).append('\n');
+			out.append("# TYPE dad_changes_published_total counter\n");
+			out.append("dad_changes_published_total ").append(published.get()).append('\n');
+			out.append("# TYPE dad_changes_delivered_total counter\n");
+			out.append("dad_changes_delivered_total ").append(delivered.get()).append('\n');
+			out.append("# TYPE dad_changes_dropped_total counter\n");
+			out.append("dad_changes_dropped_total ").append(dropped.get()).append('\n');
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+package es.us.lsi.dad;
+
+import io.vertx.core.MultiMap;
+
+/**
+ * Optional filters accepted by GET /api/sensores. A null attribute means that
+ * the attribute is not used to filter.
+ */
+public class SensorFilter {
+
+	private final Integer unit;
+	private final Integer id_device;
+	private final String status;
+	// Set when a numeric filter can not be parsed, so nothing can match it
+	private final boolean empty;
+
+	public SensorFilter(Integer unit, Integer id_device, String status) {
+		this(unit, id_device, status, false);
+	}
+
+	private SensorFilter(Integer unit, Integer id_device, String status, boolean empty) {
+		this.unit = unit;
+		this.id_device = id_device;
+		this.status = status;
+		this.empty = empty;
+	}
+
+	/**
+	 * Builds the filter from the query params of a request
+	 *
+	 * @param params Query params
+	 * @return Filter with the unit, id_device and status params
+	 */
+	public static SensorFilter fromParams(MultiMap params) {
+		String unit = params.get("unit");
+		String id_device = params.get("id_device");
+		String status = params.get("status");
+		Integer unitValue = SensorValidation.parseInt(unit);
+		Integer deviceValue = SensorValidation.parseInt(id_device);
+		boolean empty = (unit != null && unitValue == null) || (id_device != null && deviceValue == null);
+		return new SensorFilter(unitValue, deviceValue, status, empty);
+	}
+
+	public Integer getUnit() {
+		return unit;
+	}
+
+	public Integer getId_device() {
+		return id_device;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if no sensor can match the filter
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @return true if the filter does not restrict any attribute
+	 */
+	public boolean isAll() {
+		return !empty && unit == null && id_device == null && status == null;
+	}
+
+	public boolean matches(Sensores sensor) {
+		if (empty) {
+			return false;
+		}
+		return (unit == null || unit.equals(sensor.getUnit()))
+				&& (id_device == null || id_device.equals(sensor.getId_device()))
+				&& (status == null || status.equals(sensor.getStatus()));
+	}
+
+	@Override
+	public String toString() {
+		return "SensorFilter [unit=" + unit + ", id_device=" + id_device + ", status=" + status + ", empty=" + empty
+				+ "]";
+	}
+
+}
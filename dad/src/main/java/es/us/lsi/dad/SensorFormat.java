@@ -0,0 +1,112 @@
+package es.us.lsi.dad;
+
+import com.google.gson.Gson;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Wire formats of the sensor endpoints. JSON is the default; CBOR is used
+ * when the client asks for it in the Accept header, or sends it in the
+ * Content-Type of the body.
+ */
+public enum SensorFormat {
+
+	JSON(SensorCodec.CONTENT_TYPE), CBOR(SensorCbor.CONTENT_TYPE);
+
+	private final String contentType;
+
+	private SensorFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String contentType() {
+		return contentType;
+	}
+
+	/**
+	 * @param contentType Content-Type of a body, may be null
+	 * @return Format of the body, JSON unless it is CBOR
+	 */
+	public static SensorFormat of(String contentType) {
+		return contentType != null && contentType.regionMatches(true, 0, SensorCbor.CONTENT_TYPE, 0,
+				SensorCbor.CONTENT_TYPE.length()) ? CBOR : JSON;
+	}
+
+	/**
+	 * Picks the response format. CBOR is chosen when it is listed with a q
+	 * value not lower than that of application/json; wildcards only match JSON.
+	 *
+	 * @param accept Accept header, may be null
+	 * @return Format of the response
+	 */
+	public static SensorFormat accepted(String accept) {
+		if (accept == null || accept.indexOf("cbor") < 0) {
+			return JSON;
+		}
+		float cbor = 0;
+		float json = 0;
+		for (String range : accept.split(",")) {
+			int semicolon = range.indexOf(';');
+			String type = (semicolon < 0 ? range : range.substring(0, semicolon)).trim();
+			float q = semicolon < 0 ? 1 : quality(range.substring(semicolon + 1));
+			if (type.equalsIgnoreCase(SensorCbor.CONTENT_TYPE)) {
+				cbor = Math.max(cbor, q);
+			} else if (type.equalsIgnoreCase("application/json")) {
+				json = Math.max(json, q);
+			}
+		}
+		return cbor > 0 && cbor >= json ? CBOR : JSON;
+	}
+
+	private static float quality(String params) {
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Float.parseFloat(param.substring(2));
+				} catch (NumberFormatException e) {
+					return 1;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Appends a value to a buffer
+	 *
+	 * @param gson   Gson instance, for JSON
+	 * @param value  Sensor or list of sensors
+	 * @param buffer Buffer to append to
+	 * @return The same buffer
+	 */
+	public Buffer encode(Gson gson, Object value, Buffer buffer) {
+		return this == CBOR ? SensorCbor.encode(value, buffer) : SensorCodec.encode(gson, value, buffer);
+	}
+
+	/**
+	 * @return Decoded value, or null if the buffer is null or empty
+	 */
+	public <T> T decode(Gson gson, Buffer buffer, Class<T> classType) {
+		return this == CBOR ? SensorCbor.decode(buffer, classType) : SensorCodec.decode(gson, buffer, classType);
+	}
+
+	/**
+	 * Start of an array whose elements are appended one by one
+	 */
+	public Buffer startArray(Buffer buffer) {
+		return this == CBOR ? SensorCbor.startArray(buffer) : buffer.appendByte((byte) '[');
+	}
+
+	/**
+	 * Separator before every element but the first
+	 */
+	public Buffer separator(Buffer buffer) {
+		return this == CBOR ? buffer : buffer.appendByte((byte) ',');
+	}
+
+	public Buffer endArray(Buffer buffer) {
+		return this == CBOR ? SensorCbor.endArray(buffer) : buffer.appendByte((byte) ']');
+	}
+
+}
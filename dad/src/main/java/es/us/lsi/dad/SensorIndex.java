@@ -0,0 +1,174 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Inverted indexes over the filterable attributes of {@link Sensores}. Each
+ * attribute value is mapped to the set of id_sensor holding it (posting set),
+ * so filtered queries only touch the sensors that can match.
+ *
+ * The index must be kept in step with the sensor map: call
+ * {@link #remove(Sensores)} with the old state before changing a sensor and
+ * {@link #add(Sensores)} with the new one.
+ *
+ * Posting sets are concurrent, so queries may run while other threads update
+ * the index. A query can then return ids whose sensor no longer matches; the
+ * caller must check the sensor against the filter again.
+ *
+ * Posting sets are sorted by id_sensor, so queries return ids in ascending
+ * order and can start after a given id without reading the previous ones.
+ */
+public class SensorIndex {
+
+	private final Map<Integer, Postings> byUnit = new ConcurrentHashMap<Integer, Postings>();
+	private final Map<Integer, Postings> byDevice = new ConcurrentHashMap<Integer, Postings>();
+	private final Map<String, Postings> byStatus = new ConcurrentHashMap<String, Postings>();
+
+	public void add(Sensores sensor) {
+		Integer id = sensor.getId_sensor();
+		post(byUnit, sensor.getUnit(), id);
+		post(byDevice, sensor.getId_device(), id);
+		post(byStatus, sensor.getStatus(), id);
+	}
+
+	public void remove(Sensores sensor) {
+		Integer id = sensor.getId_sensor();
+		unpost(byUnit, sensor.getUnit(), id);
+		unpost(byDevice, sensor.getId_device(), id);
+		unpost(byStatus, sensor.getStatus(), id);
+	}
+
+	public void clear() {
+		byUnit.clear();
+		byDevice.clear();
+		byStatus.clear();
+	}
+
+	/**
+	 * Query planner. Picks the posting sets of the requested filters, starts
+	 * from the smallest one (most selective filter) and keeps the ids present in
+	 * every other set.
+	 *
+	 * @param filter Filter with at least one attribute set
+	 * @return ids of the matching sensors
+	 */
+	public Stream<Integer> query(SensorFilter filter) {
+		return query(filter, null);
+	}
+
+	/**
+	 * Same as {@link #query(SensorFilter)}, returning only the ids greater than
+	 * after, in ascending order
+	 *
+	 * @param filter Filter with at least one attribute set
+	 * @param after  Last id already read, or null to start from the first one
+	 * @return ids of the matching sensors
+	 */
+	public Stream<Integer> query(SensorFilter filter, Integer after) {
+		if (filter.isEmpty()) {
+			return Stream.empty();
+		}
+		List<NavigableSet<Integer>> postings = new ArrayList<NavigableSet<Integer>>(3);
+		if (filter.getUnit() != null) {
+			postings.add(postings(byUnit, filter.getUnit()));
+		}
+		if (filter.getId_device() != null) {
+			postings.add(postings(byDevice, filter.getId_device()));
+		}
+		if (filter.getStatus() != null) {
+			postings.add(postings(byStatus, filter.getStatus()));
+		}
+		if (postings.isEmpty()) {
+			throw new IllegalArgumentException("Filter without attributes: " + filter);
+		}
+		postings.sort(Comparator.comparingInt(NavigableSet::size));
+		NavigableSet<Integer> driver = after != null ? postings.get(0).tailSet(after, false) : postings.get(0);
+		if (postings.size() == 1 || driver.isEmpty()) {
+			return driver.stream();
+		}
+		List<NavigableSet<Integer>> probes = postings.subList(1, postings.size());
+		return driver.stream().filter(id -> {
+			for (NavigableSet<Integer> probe : probes) {
+				if (!probe.contains(id)) {
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	private static <K> NavigableSet<Integer> postings(Map<K, Postings> index, K key) {
+		NavigableSet<Integer> ids = index.get(key);
+		return ids != null ? ids : Collections.<Integer>emptyNavigableSet();
+	}
+
+	private static <K> void post(Map<K, Postings> index, K key, Integer id) {
+		if (key != null) {
+			index.compute(key, (k, ids) -> {
+				Postings res = ids != null ? ids : new Postings();
+				res.add(id);
+				return res;
+			});
+		}
+	}
+
+	private static <K> void unpost(Map<K, Postings> index, K key, Integer id) {
+		if (key != null) {
+			// compute keeps the removal of empty sets atomic with concurrent posts
+			index.computeIfPresent(key, (k, ids) -> {
+				ids.remove(id);
+				return ids.isEmpty() ? null : ids;
+			});
+		}
+	}
+
+	/**
+	 * Sorted posting set that keeps its size, as the size of a
+	 * ConcurrentSkipListSet is computed walking the whole set and the query
+	 * planner asks for it on every query
+	 */
+	@SuppressWarnings("serial")
+	private static class Postings extends ConcurrentSkipListSet<Integer> {
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		@Override
+		public boolean add(Integer id) {
+			boolean added = super.add(id);
+			if (added) {
+				size.incrementAndGet();
+			}
+			return added;
+		}
+
+		@Override
+		public boolean remove(Object id) {
+			boolean removed = super.remove(id);
+			if (removed) {
+				size.decrementAndGet();
+			}
+			return removed;
+		}
+
+		@Override
+		public int size() {
+			return size.get();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size.get() == 0;
+		}
+
+	}
+
+}
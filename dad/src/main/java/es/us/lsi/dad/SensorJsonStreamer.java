@@ -0,0 +1,165 @@
+package es.us.lsi.dad;
+
+import java.util.Iterator;
+
+import com.google.gson.Gson;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Writes a list of sensors to a chunked response as a JSON array, a few
+ * sensors at a time, instead of serializing the whole list into one String.
+ * With {@link SensorFormat#CBOR} it writes a CBOR array of indefinite length.
+ *
+ * Sensors are pulled from the iterator only while the response write queue
+ * has room; when it is full the streamer waits for the drain handler. Memory
+ * use then depends on the write queue size, not on the number of sensors.
+ *
+ * Optionally, the time pulling sensors from the iterator (filtering the
+ * store) and encoding them is recorded in two histograms once the response
+ * ends.
+ *
+ * If the iterator or the encoding fails before anything was sent, the
+ * exception is thrown to the caller, so the router can answer 500. Once the
+ * 200 and part of the array are sent that is no longer possible, so the
+ * connection is reset, and the client sees a failed request instead of a
+ * list that looks complete.
+ */
+public class SensorJsonStreamer {
+
+	private final HttpServerResponse response;
+	private final Iterator<Sensores> sensors;
+	private final Gson gson;
+	private final SensorFormat format;
+	private final int chunkSize;
+	private final LatencyHistogram queryTime;
+	private final LatencyHistogram serializationTime;
+	private long queryNanos = 0;
+	private long serializationNanos = 0;
+	private boolean first = true;
+	private boolean closed = false;
+
+	private SensorJsonStreamer(HttpServerResponse response, Iterator<Sensores> sensors, Gson gson,
+			SensorFormat format, int chunkSize, LatencyHistogram queryTime, LatencyHistogram serializationTime) {
+		this.response = response;
+		this.sensors = sensors;
+		this.gson = gson;
+		this.format = format;
+		this.chunkSize = chunkSize;
+		this.queryTime = queryTime;
+		this.serializationTime = serializationTime;
+	}
+
+	/**
+	 * Starts writing the sensors. The response status and headers must be set
+	 * before calling it; the response is ended when every sensor is written.
+	 *
+	 * @param response  Response to write to
+	 * @param sensors   Sensors to write
+	 * @param gson      Gson instance used for each sensor
+	 * @param chunkSize Sensors written with each call to write
+	 */
+	public static void stream(HttpServerResponse response, Iterator<Sensores> sensors, Gson gson, int chunkSize) {
+		stream(response, sensors, gson, chunkSize, null, null);
+	}
+
+	/**
+	 * Same as {@link #stream(HttpServerResponse, Iterator, Gson, int)}, recording
+	 * the time spent in the iterator and encoding
+	 *
+	 * @param queryTime         Histogram of the time reading the iterator, or
+	 *                          null
+	 * @param serializationTime Histogram of the time encoding, or null
+	 */
+	public static void stream(HttpServerResponse response, Iterator<Sensores> sensors, Gson gson, int chunkSize,
+			LatencyHistogram queryTime, LatencyHistogram serializationTime) {
+		stream(response, sensors, gson, SensorFormat.JSON, chunkSize, queryTime, serializationTime);
+	}
+
+	/**
+	 * Same as
+	 * {@link #stream(HttpServerResponse, Iterator, Gson, int, LatencyHistogram, LatencyHistogram)}
+	 * in the given format
+	 *
+	 * @param format Format of the response body
+	 */
+	public static void stream(HttpServerResponse response, Iterator<Sensores> sensors, Gson gson,
+			SensorFormat format, int chunkSize, LatencyHistogram queryTime, LatencyHistogram serializationTime) {
+		SensorJsonStreamer streamer = new SensorJsonStreamer(response, sensors, gson, format, chunkSize, queryTime,
+				serializationTime);
+		response.setChunked(true);
+		response.closeHandler(v -> streamer.closed = true);
+		streamer.write();
+	}
+
+	private void write() {
+		try {
+			writeChunks();
+		} catch (RuntimeException e) {
+			if (!response.headWritten()) {
+				throw e;
+			}
+			System.err.println("Error streaming sensors: " + e);
+			closed = true;
+			response.reset();
+		}
+	}
+
+	private void writeChunks() {
+		while (!closed) {
+			Buffer chunk = Buffer.buffer();
+			if (first) {
+				format.startArray(chunk);
+			}
+			for (int i = 0; i < chunkSize && next(); i++) {
+				if (!first) {
+					format.separator(chunk);
+				}
+				first = false;
+				encode(sensors.next(), chunk);
+			}
+			if (!next()) {
+				if (queryTime != null) {
+					queryTime.record(queryNanos);
+				}
+				if (serializationTime != null) {
+					serializationTime.record(serializationNanos);
+				}
+				response.end(format.endArray(chunk));
+				return;
+			}
+			response.write(chunk);
+			if (response.writeQueueFull()) {
+				// Se continua cuando el cliente haya leido lo pendiente
+				response.drainHandler(v -> write());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * hasNext of the iterator; with a filtered stream this is where the store
+	 * is read
+	 */
+	private boolean next() {
+		if (queryTime == null) {
+			return sensors.hasNext();
+		}
+		long start = System.nanoTime();
+		boolean res = sensors.hasNext();
+		queryNanos += System.nanoTime() - start;
+		return res;
+	}
+
+	private void encode(Sensores sensor, Buffer chunk) {
+		if (serializationTime == null) {
+			format.encode(gson, sensor, chunk);
+			return;
+		}
+		long start = System.nanoTime();
+		format.encode(gson, sensor, chunk);
+		serializationNanos += System.nanoTime() - start;
+	}
+
+}
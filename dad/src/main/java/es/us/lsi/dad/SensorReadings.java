@@ -0,0 +1,425 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Append-only history of the values read by every sensor.
+ *
+ * Each sensor has a small sorted buffer of recent readings that is sealed into
+ * a compressed {@link ReadingChunk} when it is full. Chunks older than the raw
+ * retention are downsampled to one min/max/sum/count point per rollup step, so
+ * old history takes a few bytes per step instead of per reading. Rollups older
+ * than the retention, if any, are dropped.
+ *
+ * Readings can arrive out of order within the buffer, but not before the last
+ * sealed chunk.
+ */
+public class SensorReadings implements Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.readings";
+
+	private final ConcurrentHashMap<Integer, Series> series = new ConcurrentHashMap<Integer, Series>();
+	private final int chunkSize;
+	private final long rawRetentionMs;
+	private final long rollupStepMs;
+	private final long retentionMs;
+	private final AtomicBoolean downsampling = new AtomicBoolean();
+
+	/**
+	 * @param chunkSize      Readings per compressed chunk
+	 * @param rawRetentionMs Age after which readings are downsampled
+	 * @param rollupStepMs   Step of the downsampled points
+	 * @param retentionMs    Age after which downsampled points are dropped, 0
+	 *                       to keep them forever
+	 */
+	public SensorReadings(int chunkSize, long rawRetentionMs, long rollupStepMs, long retentionMs) {
+		this.chunkSize = chunkSize;
+		this.rawRetentionMs = rawRetentionMs;
+		this.rollupStepMs = rollupStepMs;
+		this.retentionMs = retentionMs;
+	}
+
+	/**
+	 * Gets the readings registered with the given name in the Vert.x instance,
+	 * creating them if needed
+	 *
+	 * @param vertx  Vert.x instance
+	 * @param name   Store name
+	 * @param config chunkSize (default 512), rawRetentionMs (default 1 hour),
+	 *               rollupStepMs (default 1 minute) and retentionMs (default 0)
+	 * @return Shared readings
+	 */
+	public static SensorReadings shared(Vertx vertx, String name, JsonObject config) {
+		LocalMap<String, SensorReadings> readings = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return readings.computeIfAbsent(name,
+				key -> new SensorReadings(config.getInteger("chunkSize", 512),
+						config.getLong("rawRetentionMs", 3600000L), config.getLong("rollupStepMs", 60000L),
+						config.getLong("retentionMs", 0L)));
+	}
+
+	/**
+	 * @param id_sensor Sensor id
+	 * @param timestamp Time of the reading in ms
+	 * @param value     Value read
+	 * @return false if the reading is older than the sealed history of the
+	 *         sensor and was not stored
+	 */
+	public boolean append(int id_sensor, long timestamp, double value) {
+		return series.computeIfAbsent(id_sensor, id -> new Series(chunkSize)).append(timestamp, value);
+	}
+
+	/**
+	 * @param from Start of the range in ms, inclusive
+	 * @param to   End of the range in ms, exclusive
+	 * @param step Width of each bucket
+	 * @return Number of buckets of the range, or -1 if the range is empty, the
+	 *         step is not positive or the range does not fit in a long
+	 */
+	public static long buckets(long from, long to, long step) {
+		if (from >= to || step <= 0) {
+			return -1;
+		}
+		long width;
+		try {
+			width = Math.subtractExact(to, from);
+		} catch (ArithmeticException e) {
+			return -1;
+		}
+		// Redondeo hacia arriba sin sumar step, que puede desbordar
+		return width / step + (width % step == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Aggregates the readings of a sensor in buckets of step ms
+	 *
+	 * @param id_sensor Sensor id
+	 * @param from      Start of the range in ms, inclusive
+	 * @param to        End of the range in ms, exclusive
+	 * @param step      Width of each bucket; downsampled history is counted in
+	 *                  the bucket where its rollup step starts, or the first
+	 *                  one if it starts before the range
+	 * @return Non-empty buckets as objects with timestamp, min, max, avg and
+	 *         count
+	 */
+	public JsonArray query(int id_sensor, long from, long to, long step) {
+		long count = buckets(from, to, step);
+		if (count < 0 || count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid range: from=" + from + ", to=" + to + ", step=" + step);
+		}
+		Buckets buckets = new Buckets(from, to, step);
+		Series readings = series.get(id_sensor);
+		if (readings != null) {
+			readings.aggregate(buckets, rollupStepMs);
+		}
+		return buckets.toJson();
+	}
+
+	/**
+	 * Drops the history of a sensor
+	 */
+	public void remove(int id_sensor) {
+		series.remove(id_sensor);
+	}
+
+	/**
+	 * Downsamples the chunks older than the raw retention and drops the points
+	 * older than the retention
+	 *
+	 * @param now Current time in ms
+	 */
+	public void downsample(long now) {
+		long dropBefore = retentionMs > 0 ? now - retentionMs : Long.MIN_VALUE;
+		for (Series readings : series.values()) {
+			readings.downsample(now - rawRetentionMs, rollupStepMs, dropBefore);
+		}
+	}
+
+	/**
+	 * Downsamples periodically in a worker thread. Only the first call starts
+	 * the timer, which belongs to the context of the calling verticle.
+	 *
+	 * @param vertx      Vert.x instance
+	 * @param intervalMs Time between runs
+	 */
+	public void startDownsampling(Vertx vertx, long intervalMs) {
+		if (downsampling.compareAndSet(false, true)) {
+			vertx.setPeriodic(intervalMs, id -> vertx.executeBlocking(promise -> {
+				downsample(System.currentTimeMillis());
+				promise.complete();
+			}, false, null));
+		}
+	}
+
+	/**
+	 * @return Stored readings, counting a downsampled point as one
+	 */
+	public long size() {
+		long size = 0;
+		for (Series readings : series.values()) {
+			size += readings.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return Approximate bytes taken by the history of every sensor
+	 */
+	public long sizeInBytes() {
+		long bytes = 0;
+		for (Series readings : series.values()) {
+			bytes += readings.sizeInBytes();
+		}
+		return bytes;
+	}
+
+	public void writePrometheus(StringBuilder out) {
+		out.append("# TYPE dad_readings_series gauge\n");
+		out.append("dad_readings_series ").append(series.size()).append('\n');
+		out.append("# TYPE dad_readings_points gauge\n");
+		out.append("dad_readings_points ").append(size()).append('\n');
+		out.append("# TYPE dad_readings_bytes gauge\n");
+		out.append("dad_readings_bytes ").append(sizeInBytes()).append('\n');
+	}
+
+	/**
+	 * History of one sensor: downsampled points, then sealed chunks, then the
+	 * buffer of the newest readings, each one after the previous in time
+	 */
+	private static class Series {
+
+		private final int chunkSize;
+		// Crecen con las lecturas hasta chunkSize; una serie con pocas no reserva el bloque entero
+		private long[] headTimestamps = new long[0];
+		private double[] headValues = new double[0];
+		private int headSize = 0;
+		private final List<ReadingChunk> chunks = new ArrayList<ReadingChunk>();
+		private final Rollup rollup = new Rollup();
+		// Timestamp minimo de una nueva lectura, el ultimo ya comprimido
+		private long sealed = Long.MIN_VALUE;
+
+		private Series(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		private synchronized boolean append(long timestamp, double value) {
+			if (timestamp < sealed) {
+				return false;
+			}
+			if (headSize == headTimestamps.length) {
+				int capacity = Math.min(chunkSize, Math.max(8, headSize * 2));
+				headTimestamps = Arrays.copyOf(headTimestamps, capacity);
+				headValues = Arrays.copyOf(headValues, capacity);
+			}
+			// Insercion ordenada, casi siempre al final
+			int i = headSize;
+			while (i > 0 && headTimestamps[i - 1] > timestamp) {
+				headTimestamps[i] = headTimestamps[i - 1];
+				headValues[i] = headValues[i - 1];
+				i--;
+			}
+			headTimestamps[i] = timestamp;
+			headValues[i] = value;
+			headSize++;
+			if (headSize == chunkSize) {
+				ReadingChunk chunk = ReadingChunk.encode(headTimestamps, headValues, headSize);
+				chunks.add(chunk);
+				sealed = chunk.getLast();
+				headSize = 0;
+			}
+			return true;
+		}
+
+		private synchronized void aggregate(Buckets buckets, long rollupStep) {
+			rollup.aggregate(buckets, rollupStep);
+			for (ReadingChunk chunk : chunks) {
+				if (chunk.getLast() < buckets.from || chunk.getFirst() >= buckets.to) {
+					continue;
+				}
+				int bucket = buckets.bucket(chunk.getFirst());
+				if (bucket >= 0 && bucket == buckets.bucket(chunk.getLast())) {
+					// Todo el chunk cae en el mismo intervalo: basta su resumen
+					buckets.add(bucket, chunk.getMin(), chunk.getMax(), chunk.getSum(), chunk.getCount());
+				} else {
+					chunk.forEach(buckets::add);
+				}
+			}
+			for (int i = 0; i < headSize; i++) {
+				buckets.add(headTimestamps[i], headValues[i]);
+			}
+		}
+
+		private synchronized void downsample(long rawBefore, long rollupStep, long dropBefore) {
+			while (!chunks.isEmpty() && chunks.get(0).getLast() < rawBefore) {
+				chunks.remove(0).forEach((timestamp, value) -> rollup
+						.add(timestamp - Math.floorMod(timestamp, rollupStep), value, value, value, 1));
+			}
+			rollup.dropBefore(dropBefore);
+			while (!chunks.isEmpty() && chunks.get(0).getLast() < dropBefore) {
+				chunks.remove(0);
+			}
+		}
+
+		private synchronized long size() {
+			long size = headSize + rollup.size;
+			for (ReadingChunk chunk : chunks) {
+				size += chunk.getCount();
+			}
+			return size;
+		}
+
+		private synchronized long sizeInBytes() {
+			long bytes = 12L * headTimestamps.length + 16 + rollup.sizeInBytes();
+			for (ReadingChunk chunk : chunks) {
+				bytes += chunk.sizeInBytes();
+			}
+			return bytes;
+		}
+
+	}
+
+	/**
+	 * Downsampled points, one per rollup step, sorted by timestamp
+	 */
+	private static class Rollup {
+
+		private long[] timestamps = new long[0];
+		private double[] min = new double[0];
+		private double[] max = new double[0];
+		private double[] sum = new double[0];
+		private long[] count = new long[0];
+		private int size = 0;
+
+		/**
+		 * Adds a reading or an aggregate to the point of its step, which is the
+		 * last one or a new one as chunks are downsampled in order
+		 */
+		private void add(long timestamp, double min, double max, double sum, long count) {
+			if (size > 0 && timestamps[size - 1] == timestamp) {
+				this.min[size - 1] = Math.min(this.min[size - 1], min);
+				this.max[size - 1] = Math.max(this.max[size - 1], max);
+				this.sum[size - 1] += sum;
+				this.count[size - 1] += count;
+				return;
+			}
+			if (size == timestamps.length) {
+				int capacity = Math.max(16, size * 2);
+				timestamps = Arrays.copyOf(timestamps, capacity);
+				this.min = Arrays.copyOf(this.min, capacity);
+				this.max = Arrays.copyOf(this.max, capacity);
+				this.sum = Arrays.copyOf(this.sum, capacity);
+				this.count = Arrays.copyOf(this.count, capacity);
+			}
+			timestamps[size] = timestamp;
+			this.min[size] = min;
+			this.max[size] = max;
+			this.sum[size] = sum;
+			this.count[size] = count;
+			size++;
+		}
+
+		private void dropBefore(long timestamp) {
+			int dropped = 0;
+			while (dropped < size && timestamps[dropped] < timestamp) {
+				dropped++;
+			}
+			if (dropped > 0) {
+				size -= dropped;
+				System.arraycopy(timestamps, dropped, timestamps, 0, size);
+				System.arraycopy(min, dropped, min, 0, size);
+				System.arraycopy(max, dropped, max, 0, size);
+				System.arraycopy(sum, dropped, sum, 0, size);
+				System.arraycopy(count, dropped, count, 0, size);
+			}
+		}
+
+		private void aggregate(Buckets buckets, long step) {
+			for (int i = 0; i < size; i++) {
+				// Un paso que empieza antes del rango cuenta en el primer intervalo
+				int bucket = timestamps[i] + step > buckets.from ? buckets.bucket(Math.max(timestamps[i], buckets.from))
+						: -1;
+				if (bucket >= 0) {
+					buckets.add(bucket, min[i], max[i], sum[i], count[i]);
+				}
+			}
+		}
+
+		private long sizeInBytes() {
+			return 40L * timestamps.length;
+		}
+
+	}
+
+	/**
+	 * Aggregates of a query, one per step of the range
+	 */
+	private static class Buckets {
+
+		private final long from;
+		private final long to;
+		private final long step;
+		private final double[] min;
+		private final double[] max;
+		private final double[] sum;
+		private final long[] count;
+
+		private Buckets(long from, long to, long step) {
+			this.from = from;
+			this.to = to;
+			this.step = step;
+			int buckets = (int) SensorReadings.buckets(from, to, step);
+			min = new double[buckets];
+			max = new double[buckets];
+			sum = new double[buckets];
+			count = new long[buckets];
+		}
+
+		/**
+		 * @return Bucket of the timestamp, or -1 if it is out of the range
+		 */
+		private int bucket(long timestamp) {
+			return timestamp >= from && timestamp < to ? (int) ((timestamp - from) / step) : -1;
+		}
+
+		private void add(long timestamp, double value) {
+			int bucket = bucket(timestamp);
+			if (bucket >= 0) {
+				add(bucket, value, value, value, 1);
+			}
+		}
+
+		private void add(int bucket, double min, double max, double sum, long count) {
+			if (this.count[bucket] == 0) {
+				this.min[bucket] = min;
+				this.max[bucket] = max;
+			} else {
+				this.min[bucket] = Math.min(this.min[bucket], min);
+				this.max[bucket] = Math.max(this.max[bucket], max);
+			}
+			this.sum[bucket] += sum;
+			this.count[bucket] += count;
+		}
+
+		private JsonArray toJson() {
+			JsonArray result = new JsonArray();
+			for (int i = 0; i < count.length; i++) {
+				if (count[i] > 0) {
+					result.add(new JsonObject().put("timestamp", from + i * step).put("min", min[i])
+							.put("max", max[i]).put("avg", sum[i] / count[i]).put("count", count[i]));
+				}
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,372 @@
+package es.us.lsi.dad;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Sharded mode of {@link RestServer}: sensors are partitioned by id_sensor
+ * over the shards of a {@link ShardRing}, one per node of a clustered Vert.x.
+ *
+ * Any node accepts any request. Requests about one sensor are sent over the
+ * event bus to the address of the shard that owns it, which runs them through
+ * its own router on its local HTTP port and replies with the response, so
+ * the owner applies its cache, validation and metrics as for its own
+ * requests. Lists are sent to every shard, each one answers with its own
+ * sensors and the node that received the request merges the answers; pages
+ * are merged by id_sensor, so the keyset cursors work across shards.
+ *
+ * Messages carry the request and response bodies as buffers, with the method,
+ * uri and headers as message headers.
+ */
+public class SensorShards implements Handler<RoutingContext> {
+
+	/**
+	 * Header of the requests already routed, that must be answered by the node
+	 * that receives them. Its value is the forwarding secret of the node.
+	 */
+	public static final String FORWARDED = "X-Shard-Forwarded";
+	private static final String ADDRESS_PREFIX = "es.us.lsi.dad.shard.";
+	private static final String SHARED_MAP = "es.us.lsi.dad.shards";
+	// Cabeceras de la peticion y de la respuesta que viajan en el mensaje
+	private static final String[] REQUEST_HEADERS = { "content-type", "accept", "if-none-match" };
+	private static final String[] RESPONSE_HEADERS = { "content-type", "etag", "cache-control", "vary",
+			SensorCursor.HEADER };
+
+	private final Vertx vertx;
+	private final ShardRing ring;
+	private final String shard;
+	private final DeliveryOptions delivery;
+	private final HttpClient client;
+	private final int port;
+	private final byte[] secret;
+	private MessageConsumer<Buffer> consumer;
+
+	/**
+	 * @param vertx  Clustered Vert.x instance
+	 * @param config "cluster" object of the verticle config: shards (names of
+	 *               every shard), shard (name of this node), virtualNodes
+	 *               (default 128), timeoutMs (default 5000) and secret of
+	 *               the forwarded requests (default a random one per Vert.x
+	 *               instance, as they are only run on the local port)
+	 * @param port   HTTP port of this node, where forwarded requests are run
+	 */
+	public SensorShards(Vertx vertx, JsonObject config, int port) {
+		this.vertx = vertx;
+		List<String> shards = new ArrayList<String>();
+		for (Object name : config.getJsonArray("shards", new JsonArray())) {
+			shards.add(name.toString());
+		}
+		this.ring = new ShardRing(shards, config.getInteger("virtualNodes", 128));
+		this.shard = config.getString("shard");
+		if (!shards.contains(shard)) {
+			throw new IllegalArgumentException("Shard " + shard + " is not one of " + shards);
+		}
+		this.delivery = new DeliveryOptions().setSendTimeout(config.getLong("timeoutMs", 5000L));
+		this.client = vertx.createHttpClient();
+		this.port = port;
+		String configured = config.getString("secret");
+		LocalMap<String, String> secrets = vertx.sharedData().getLocalMap(SHARED_MAP);
+		this.secret = (configured != null ? configured : secrets.computeIfAbsent("secret", key -> randomSecret()))
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String randomSecret() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder hex = new StringBuilder(32);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Starts running the requests sent to the shard of this node. Each verticle
+	 * instance registers its own consumer, so they share the forwarded load.
+	 */
+	public Future<Void> serve() {
+		consumer = vertx.eventBus().consumer(ADDRESS_PREFIX + shard, this::run);
+		Promise<Void> registered = Promise.promise();
+		consumer.completionHandler(registered);
+		return registered.future();
+	}
+
+	public Future<Void> close() {
+		client.close();
+		return consumer != null ? consumer.unregister() : Future.succeededFuture();
+	}
+
+	/**
+	 * @return true if the sensor belongs to this node
+	 */
+	public boolean isLocal(int id_sensor) {
+		return shard.equals(ring.owner(id_sensor));
+	}
+
+	/**
+	 * Requests already routed by a shard: their header carries the secret the
+	 * forwarder of this node sets. A client sending the header without it,
+	 * even from the same host, is routed as any other.
+	 */
+	public boolean forwarded(HttpServerRequest request) {
+		String value = request.getHeader(FORWARDED);
+		// Comparacion en tiempo constante, no da pistas del secreto
+		return value != null && MessageDigest.isEqual(secret, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Routes a request of /api/sensores: lets it through if it is about a local
+	 * sensor or was already routed, otherwise forwards it or gathers it. Must go
+	 * after the BodyHandler, as the id of a new sensor is in the body.
+	 */
+	@Override
+	public void handle(RoutingContext routingContext) {
+		HttpServerRequest request = routingContext.request();
+		if (forwarded(request)) {
+			routingContext.next();
+			return;
+		}
+		String path = request.path();
+		if (path.equals("/api/sensores") || path.equals("/api/sensores/")) {
+			if (request.method() == HttpMethod.GET) {
+				gather(routingContext);
+				return;
+			}
+			if (request.method() == HttpMethod.POST) {
+				routeById(routingContext, bodyId(routingContext));
+				return;
+			}
+		} else if (!path.startsWith("/api/sensores/changes") && !path.startsWith("/api/sensores/batch")) {
+			String rest = path.substring("/api/sensores/".length());
+			int slash = rest.indexOf('/');
+			routeById(routingContext, SensorValidation.parseInt(slash < 0 ? rest : rest.substring(0, slash)));
+			return;
+		}
+		routingContext.next();
+	}
+
+	private void routeById(RoutingContext routingContext, Integer id) {
+		// Sin id valido lo rechaza el propio manejador
+		if (id == null || isLocal(id)) {
+			routingContext.next();
+			return;
+		}
+		HttpServerRequest request = routingContext.request();
+		Buffer body = routingContext.getBody() != null ? routingContext.getBody() : Buffer.buffer();
+		send(ring.owner(id), request.method().name(), request.uri(), request.headers(), body)
+				.onSuccess(reply -> reply(routingContext, reply)).onFailure(e -> fail(routingContext, e));
+	}
+
+	/**
+	 * Sends a list request to every shard and merges the answers
+	 */
+	private void gather(RoutingContext routingContext) {
+		String uri = routingContext.request().uri();
+		List<Future> replies = new ArrayList<Future>();
+		for (String name : ring.getShards()) {
+			// Sin If-None-Match: cada shard debe responder con su parte
+			replies.add(send(name, "GET", uri, MultiMap.caseInsensitiveMultiMap(), Buffer.buffer()));
+		}
+		String limit = routingContext.queryParams().get("limit");
+		CompositeFuture.all(replies).onSuccess(all -> {
+			List<Message<Buffer>> messages = all.list();
+			for (Message<Buffer> message : messages) {
+				if (!"200".equals(message.headers().get("status"))) {
+					reply(routingContext, message);
+					return;
+				}
+			}
+			routingContext.response().setStatusCode(200);
+			if (limit == null) {
+				end(routingContext, concat(messages));
+			} else {
+				mergePages(routingContext, messages, Integer.parseInt(limit));
+			}
+		}).onFailure(e -> fail(routingContext, e));
+	}
+
+	/**
+	 * Joins the JSON arrays of the shards without parsing them
+	 */
+	private static Buffer concat(List<Message<Buffer>> messages) {
+		Buffer list = Buffer.buffer().appendString("[");
+		boolean empty = true;
+		for (Message<Buffer> message : messages) {
+			String part = message.body().toString().trim();
+			part = part.substring(1, part.length() - 1).trim();
+			if (!part.isEmpty()) {
+				if (!empty) {
+					list.appendString(",");
+				}
+				list.appendString(part);
+				empty = false;
+			}
+		}
+		return list.appendString("]");
+	}
+
+	/**
+	 * Merges pages sorted by id_sensor: the first limit sensors of the union
+	 * are the first limit of the merge, and there are more pages if any shard
+	 * had more or there are more than limit sensors
+	 */
+	private static void mergePages(RoutingContext routingContext, List<Message<Buffer>> messages, int limit) {
+		List<JsonObject> page = new ArrayList<JsonObject>();
+		boolean more = false;
+		for (Message<Buffer> message : messages) {
+			for (Object sensor : new JsonArray(message.body())) {
+				page.add((JsonObject) sensor);
+			}
+			more |= message.headers().get(SensorCursor.HEADER) != null;
+		}
+		page.sort(Comparator.comparing((JsonObject sensor) -> sensor.getInteger("id_sensor")));
+		if (page.size() > limit) {
+			page = page.subList(0, limit);
+			more = true;
+		}
+		if (more && !page.isEmpty()) {
+			routingContext.response().putHeader(SensorCursor.HEADER,
+					SensorCursor.encode(page.get(page.size() - 1).getInteger("id_sensor")));
+		}
+		end(routingContext, new JsonArray(new ArrayList<Object>(page)).toBuffer());
+	}
+
+	/**
+	 * Ends a gathered list, encoded again in CBOR if the client asked for it.
+	 * The shards always answer the scatter in JSON, which is joined without
+	 * parsing it.
+	 */
+	private static void end(RoutingContext routingContext, Buffer list) {
+		SensorFormat format = SensorFormat.accepted(routingContext.request().getHeader("Accept"));
+		routingContext.response().putHeader("content-type", format.contentType()).putHeader("Vary", "Accept");
+		routingContext.response().end(format == SensorFormat.JSON ? list
+				: SensorCbor.encode(SensorCodec.decode(list, Sensores[].class), Buffer.buffer()));
+	}
+
+	/**
+	 * Writes sensors to their shards: local ones with the given function and
+	 * the rest as batches sent to their owners
+	 *
+	 * @param sensors Sensors to write
+	 * @param local   Writes the sensors of this node
+	 * @return Future completed when every shard has written its sensors
+	 */
+	public Future<Void> writeAll(List<Sensores> sensors, Function<List<Sensores>, Future<Void>> local) {
+		Map<String, List<Sensores>> byShard = new HashMap<String, List<Sensores>>();
+		for (Sensores sensor : sensors) {
+			byShard.computeIfAbsent(ring.owner(sensor.getId_sensor()), key -> new ArrayList<Sensores>()).add(sensor);
+		}
+		List<Future> written = new ArrayList<Future>();
+		MultiMap headers = MultiMap.caseInsensitiveMultiMap().add("content-type", SensorCodec.CONTENT_TYPE);
+		for (Map.Entry<String, List<Sensores>> entry : byShard.entrySet()) {
+			if (entry.getKey().equals(shard)) {
+				written.add(local.apply(entry.getValue()));
+			} else {
+				written.add(send(entry.getKey(), "POST", "/api/sensores/batch", headers,
+						SensorCodec.encode(entry.getValue())).compose(reply -> "200".equals(reply.headers().get("status"))
+								? Future.succeededFuture()
+								: Future.failedFuture("Shard " + entry.getKey() + " answered "
+										+ reply.headers().get("status"))));
+			}
+		}
+		return CompositeFuture.all(written).mapEmpty();
+	}
+
+	private Future<Message<Buffer>> send(String to, String method, String uri, MultiMap headers, Buffer body) {
+		DeliveryOptions options = new DeliveryOptions(delivery).addHeader("method", method).addHeader("uri", uri);
+		for (String name : REQUEST_HEADERS) {
+			if (headers.get(name) != null) {
+				options.addHeader(name, headers.get(name));
+			}
+		}
+		return vertx.eventBus().request(ADDRESS_PREFIX + to, body, options);
+	}
+
+	/**
+	 * Runs a forwarded request on the local HTTP port and replies with the
+	 * response
+	 */
+	private void run(Message<Buffer> message) {
+		MultiMap headers = message.headers();
+		RequestOptions options = new RequestOptions().setMethod(HttpMethod.valueOf(headers.get("method")))
+				.setHost("localhost").setPort(port).setURI(headers.get("uri"))
+				.addHeader(FORWARDED, new String(secret, StandardCharsets.UTF_8));
+		for (String name : REQUEST_HEADERS) {
+			if (headers.get(name) != null) {
+				options.addHeader(name, headers.get(name));
+			}
+		}
+		client.request(options).compose(request -> request.send(message.body()))
+				.compose(response -> response.body().map(body -> reply(message, response, body)))
+				.onFailure(e -> message.fail(500, e.getMessage()));
+	}
+
+	private static Void reply(Message<Buffer> message, HttpClientResponse response, Buffer body) {
+		DeliveryOptions options = new DeliveryOptions().addHeader("status", String.valueOf(response.statusCode()));
+		for (String name : RESPONSE_HEADERS) {
+			if (response.getHeader(name) != null) {
+				options.addHeader(name, response.getHeader(name));
+			}
+		}
+		message.reply(body, options);
+		return null;
+	}
+
+	private static void reply(RoutingContext routingContext, Message<Buffer> message) {
+		for (String name : RESPONSE_HEADERS) {
+			if (message.headers().get(name) != null) {
+				routingContext.response().putHeader(name, message.headers().get(name));
+			}
+		}
+		routingContext.response().setStatusCode(Integer.parseInt(message.headers().get("status")))
+				.end(message.body());
+	}
+
+	private static void fail(RoutingContext routingContext, Throwable e) {
+		// Sin respuesta del shard a tiempo, o sin nodo para el shard
+		int status = e instanceof ReplyException && ((ReplyException) e).failureType() == ReplyFailure.TIMEOUT
+				? 504
+				: 503;
+		routingContext.response().setStatusCode(status).end();
+	}
+
+	private static Integer bodyId(RoutingContext routingContext) {
+		try {
+			Sensores sensor = SensorFormat.of(routingContext.request().getHeader("content-type"))
+					.decode(SensorCodec.gson(), routingContext.getBody(), Sensores.class);
+			return sensor != null ? sensor.getId_sensor() : null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+}
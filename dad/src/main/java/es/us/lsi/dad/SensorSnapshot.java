@@ -0,0 +1,208 @@
+package es.us.lsi.dad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of a {@link CompactSensorStore}, written column by column
+ * with the same layout the store uses in memory:
+ *
+ * <pre>
+ * int magic, int version, long generation, int size, int tableLength
+ * dictionary tipos, dictionary statuses   (int count, then strings)
+ * int[tableLength] table
+ * int[size] idSensor, id, unit, idDevice, tipo, status
+ * byte[size] flags
+ * string[size] nombre                     (int length or -1, UTF-8 bytes)
+ * string[size] rawTipo, rawStatus         (values not in the dictionaries)
+ * </pre>
+ *
+ * Version 1 snapshots, without rawTipo and rawStatus, are still read.
+ *
+ * Loading maps the file and copies each column with a single bulk get into
+ * the arrays of the store, including the id table, so nothing is parsed or
+ * hashed per sensor except the names.
+ *
+ * generation is the first change log whose changes are not in the snapshot.
+ */
+public class SensorSnapshot {
+
+	private static final int MAGIC = 0x44414453; // DADS
+	private static final int VERSION = 2;
+
+	private SensorSnapshot() {
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file and renames it over the old one,
+	 * so a crash while writing leaves the previous snapshot. The directory is
+	 * forced too, so the rename is on disk before the old logs are deleted.
+	 */
+	static void write(Path file, CompactSensorStore.Columns columns, long generation) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = order(ByteBuffer.allocate(24));
+			header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(columns.size)
+					.putInt(columns.table.length);
+			header.flip();
+			writeFully(channel, header);
+			writeStrings(channel, columns.tipos, 1, true);
+			writeStrings(channel, columns.statuses, 1, true);
+			writeInts(channel, columns.table);
+			writeInts(channel, columns.idSensor);
+			writeInts(channel, columns.id);
+			writeInts(channel, columns.unit);
+			writeInts(channel, columns.idDevice);
+			writeInts(channel, columns.tipo);
+			writeInts(channel, columns.status);
+			writeFully(channel, ByteBuffer.wrap(columns.flags));
+			writeStrings(channel, columns.nombre, 0, false);
+			writeStrings(channel, columns.rawTipo, 0, false);
+			writeStrings(channel, columns.rawStatus, 0, false);
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(file.toAbsolutePath().getParent());
+	}
+
+	private static void forceDirectory(Path dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Windows no deja abrir un directorio para forzarlo
+			return;
+		}
+		try (FileChannel directory = channel) {
+			directory.force(true);
+		}
+	}
+
+	/**
+	 * @param file Snapshot file
+	 * @param into Columns to fill
+	 * @return Generation of the snapshot
+	 */
+	static long read(Path file, CompactSensorStore.Columns into) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			ByteBuffer in = order(mapped);
+			int version = in.getInt() == MAGIC ? in.getInt() : 0;
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Not a sensor snapshot: " + file);
+			}
+			long generation = in.getLong();
+			int size = in.getInt();
+			into.size = size;
+			into.table = new int[in.getInt()];
+			into.tipos = readDictionary(in);
+			into.statuses = readDictionary(in);
+			readInts(in, into.table);
+			into.idSensor = readInts(in, new int[size]);
+			into.id = readInts(in, new int[size]);
+			into.unit = readInts(in, new int[size]);
+			into.idDevice = readInts(in, new int[size]);
+			into.tipo = readInts(in, new int[size]);
+			into.status = readInts(in, new int[size]);
+			into.flags = new byte[size];
+			in.get(into.flags);
+			into.nombre = readStrings(in, size);
+			into.rawTipo = version >= 2 ? readStrings(in, size) : new String[size];
+			into.rawStatus = version >= 2 ? readStrings(in, size) : new String[size];
+			return generation;
+		}
+	}
+
+	private static ByteBuffer order(ByteBuffer buffer) {
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void writeInts(FileChannel channel, int[] values) throws IOException {
+		// Por bloques, para no duplicar en memoria columnas de millones de filas
+		ByteBuffer buffer = order(ByteBuffer.allocate(64 * 1024));
+		int i = 0;
+		while (i < values.length) {
+			int count = Math.min(values.length - i, buffer.capacity() / 4);
+			buffer.asIntBuffer().put(values, i, count);
+			buffer.limit(count * 4);
+			writeFully(channel, buffer);
+			buffer.clear();
+			i += count;
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in, int[] values) {
+		in.asIntBuffer().get(values);
+		in.position(in.position() + values.length * 4);
+		return values;
+	}
+
+	private static void writeStrings(FileChannel channel, String[] values, int from, boolean counted)
+			throws IOException {
+		ByteBuffer buffer = order(ByteBuffer.allocate(64 * 1024));
+		if (counted) {
+			buffer.putInt(values.length - from);
+		}
+		for (int i = from; i < values.length; i++) {
+			byte[] bytes = values[i] != null ? values[i].getBytes(StandardCharsets.UTF_8) : null;
+			int length = 4 + (bytes != null ? bytes.length : 0);
+			if (buffer.remaining() < length) {
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+				if (buffer.capacity() < length) {
+					buffer = order(ByteBuffer.allocate(length));
+				}
+			}
+			if (bytes == null) {
+				buffer.putInt(-1);
+			} else {
+				buffer.putInt(bytes.length).put(bytes);
+			}
+		}
+		buffer.flip();
+		writeFully(channel, buffer);
+	}
+
+	private static String[] readStrings(ByteBuffer in, int size) {
+		String[] values = new String[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = readString(in);
+		}
+		return values;
+	}
+
+	private static String[] readDictionary(ByteBuffer in) {
+		String[] values = new String[in.getInt() + 1];
+		for (int i = 1; i < values.length; i++) {
+			values[i] = readString(in);
+		}
+		return values;
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
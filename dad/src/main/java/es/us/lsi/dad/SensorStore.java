@@ -0,0 +1,87 @@
+package es.us.lsi.dad;
+
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Storage of the sensors served by {@link RestServer}. Implementations must be
+ * safe to use from several verticle instances (event loops) at the same time.
+ *
+ * Stored instances are shared between threads and must not be modified in
+ * place: use {@link #put(Sensores)} or {@link #update(int, UnaryOperator)} with
+ * a new instance instead.
+ */
+public interface SensorStore {
+
+	/**
+	 * @param id_sensor Sensor id
+	 * @return Sensor with the given id or null if there is none
+	 */
+	Sensores get(int id_sensor);
+
+	boolean contains(int id_sensor);
+
+	/**
+	 * Inserts or replaces a sensor
+	 *
+	 * @param sensor Sensor to store
+	 * @return Previous sensor with the same id or null
+	 */
+	Sensores put(Sensores sensor);
+
+	/**
+	 * Atomically replaces a sensor with the result of the update function
+	 *
+	 * @param id_sensor Sensor id
+	 * @param update    Function receiving the current sensor and returning the
+	 *                  new one. It must not modify its argument
+	 * @return New sensor or null if there was no sensor with the given id
+	 */
+	Sensores update(int id_sensor, UnaryOperator<Sensores> update);
+
+	/**
+	 * @param id_sensor Sensor id
+	 * @return Removed sensor or null if there was no sensor with the given id
+	 */
+	Sensores remove(int id_sensor);
+
+	int size();
+
+	/**
+	 * @return Every stored sensor
+	 */
+	Stream<Sensores> all();
+
+	/**
+	 * @param filter Filter over unit, id_device and status
+	 * @return Sensors matching the filter
+	 */
+	Stream<Sensores> query(SensorFilter filter);
+
+	/**
+	 * Keyset pagination. Returns the sensors matching the filter in ascending
+	 * id_sensor order, starting after the given id, so reading a page costs the
+	 * same wherever it starts.
+	 *
+	 * @param filter Filter over unit, id_device and status
+	 * @param after  Last id_sensor already read, or null to start from the first
+	 *               one
+	 * @return Sensors matching the filter, sorted by id_sensor
+	 */
+	Stream<Sensores> query(SensorFilter filter, Integer after);
+
+	/**
+	 * A page of {@link #query(SensorFilter, Integer)}. Stores that can not read
+	 * the ids in order lazily override it to select only the first ones.
+	 *
+	 * @param filter Filter over unit, id_device and status
+	 * @param after  Last id_sensor already read, or null to start from the first
+	 *               one
+	 * @param limit  Maximum number of sensors
+	 * @return Up to limit sensors matching the filter, sorted by id_sensor
+	 */
+	default Stream<Sensores> query(SensorFilter filter, Integer after, int limit) {
+		return query(filter, after).limit(limit);
+	}
+
+}
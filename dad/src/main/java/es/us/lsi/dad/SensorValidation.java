@@ -0,0 +1,131 @@
+package es.us.lsi.dad;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Validation stage of the routes of {@link RestServer}. Its handlers go before
+ * the route handler: they parse the path param and the body once, put the
+ * typed values in the routing context and answer 400 with a short JSON error
+ * when they are not valid, so the handlers never see bad input.
+ *
+ * Numbers are parsed without exceptions, as throwing and filling a stack trace
+ * for every bad request is what makes a flood of them expensive.
+ */
+public class SensorValidation {
+
+	private static final String ID = "es.us.lsi.dad.id";
+	private static final String SENSOR = "es.us.lsi.dad.sensor";
+
+	private SensorValidation() {
+	}
+
+	/**
+	 * Parses the id_sensor path param
+	 */
+	public static Handler<RoutingContext> pathId() {
+		return routingContext -> {
+			Integer id = parseInt(routingContext.pathParam("id_sensor"));
+			if (id == null) {
+				badRequest(routingContext, "id_sensor must be an integer");
+				return;
+			}
+			routingContext.put(ID, id);
+			routingContext.next();
+		};
+	}
+
+	/**
+	 * Decodes the body as a sensor, in JSON or in CBOR as told by its
+	 * Content-Type
+	 *
+	 * @param gson      Gson instance of the server
+	 * @param requireId true if the sensor must have an id_sensor
+	 */
+	public static Handler<RoutingContext> sensorBody(Gson gson, boolean requireId) {
+		return routingContext -> {
+			Sensores sensor;
+			try {
+				sensor = SensorFormat.of(routingContext.request().getHeader("content-type")).decode(gson,
+						routingContext.getBody(), Sensores.class);
+			} catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+				// Gson las lanza con JSON mal formado o tipos incorrectos, SensorCbor con CBOR no valido
+				badRequest(routingContext, "Malformed sensor");
+				return;
+			}
+			if (sensor == null) {
+				badRequest(routingContext, "A sensor is required");
+				return;
+			}
+			if (requireId && sensor.getId_sensor() == null) {
+				badRequest(routingContext, "id_sensor is required");
+				return;
+			}
+			routingContext.put(SENSOR, sensor);
+			routingContext.next();
+		};
+	}
+
+	/**
+	 * @return id_sensor parsed by {@link #pathId()}
+	 */
+	public static int id(RoutingContext routingContext) {
+		return routingContext.<Integer>get(ID);
+	}
+
+	/**
+	 * @return Sensor decoded by {@link #sensorBody(Gson, boolean)}
+	 */
+	public static Sensores sensor(RoutingContext routingContext) {
+		return routingContext.get(SENSOR);
+	}
+
+	public static void badRequest(RoutingContext routingContext, String error) {
+		routingContext.response().setStatusCode(400).putHeader("content-type", SensorCodec.CONTENT_TYPE)
+				.end(new JsonObject().put("error", error).toBuffer());
+	}
+
+	/**
+	 * @return Decimal int value, or null if it is null, not a number or out of
+	 *         range
+	 */
+	public static Integer parseInt(String value) {
+		Long parsed = parseLong(value);
+		return parsed != null && parsed >= Integer.MIN_VALUE && parsed <= Integer.MAX_VALUE
+				? Integer.valueOf(parsed.intValue())
+				: null;
+	}
+
+	/**
+	 * @return Decimal long value, or null if it is null, not a number or out of
+	 *         range
+	 */
+	public static Long parseLong(String value) {
+		if (value == null || value.isEmpty() || value.length() > 20) {
+			return null;
+		}
+		boolean negative = value.charAt(0) == '-';
+		int start = negative || value.charAt(0) == '+' ? 1 : 0;
+		if (start == value.length()) {
+			return null;
+		}
+		// Se acumula en negativo para admitir Long.MIN_VALUE
+		long result = 0;
+		for (int i = start; i < value.length(); i++) {
+			int digit = value.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+				return null;
+			}
+			result = result * 10 - digit;
+		}
+		if (!negative && result == Long.MIN_VALUE) {
+			return null;
+		}
+		return negative ? result : -result;
+	}
+
+}
@@ -0,0 +1,95 @@
+package es.us.lsi.dad;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Orders the writes of each sensor when they go to MySQL before the store. A
+ * write of an id starts when the previous writes of that id have ended, so
+ * the table and the store see them in the same order, and a write that reads
+ * the store, as a PUT, reads the value left by the previous one.
+ *
+ * As the store, the queue is shared by every instance of the verticle. Each
+ * write runs on the context of the instance that queued it.
+ */
+public class SensorWriteQueue implements Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.writes";
+
+	// Ultima escritura de cada id; se quita al terminar si no hay otra detras
+	private final Map<Integer, Future<Void>> tails = new ConcurrentHashMap<Integer, Future<Void>>();
+
+	public static SensorWriteQueue shared(Vertx vertx, String name) {
+		LocalMap<String, SensorWriteQueue> queues = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return queues.computeIfAbsent(name, key -> new SensorWriteQueue());
+	}
+
+	/**
+	 * @param id    Id of the sensor written
+	 * @param write Write to run after the previous writes of the id
+	 * @return Result of the write
+	 */
+	public <T> Future<T> run(int id, Supplier<Future<T>> write) {
+		return run(Collections.singletonList(id), write);
+	}
+
+	/**
+	 * @param ids   Ids of the sensors written
+	 * @param write Write to run after the previous writes of all the ids
+	 * @return Result of the write
+	 */
+	public <T> Future<T> run(Collection<Integer> ids, Supplier<Future<T>> write) {
+		Context context = Vertx.currentContext();
+		Promise<T> promise = Promise.promise();
+		Promise<Void> done = Promise.promise();
+		Future<Void> tail = done.future();
+		List<Future> previous = new ArrayList<Future>();
+		synchronized (this) {
+			for (Integer id : ids) {
+				Future<Void> before = tails.put(id, tail);
+				if (before != null) {
+					previous.add(before);
+				}
+			}
+		}
+		// join espera a todas aunque alguna falle; un fallo anterior no impide esta escritura
+		Future<?> ready = previous.isEmpty() ? Future.succeededFuture() : CompositeFuture.join(previous);
+		ready.onComplete(v -> {
+			Runnable start = () -> {
+				Future<T> result;
+				try {
+					result = write.get();
+				} catch (RuntimeException e) {
+					result = Future.failedFuture(e);
+				}
+				result.onComplete(ar -> {
+					for (Integer id : ids) {
+						tails.remove(id, tail);
+					}
+					done.complete();
+					promise.handle(ar);
+				});
+			};
+			if (context == null || context == Vertx.currentContext()) {
+				start.run();
+			} else {
+				context.runOnContext(x -> start.run());
+			}
+		});
+		return promise.future();
+	}
+
+}
@@ -0,0 +1,48 @@
+package es.us.lsi.dad;
+
+/**
+ * Sensor as registered in the local REST server. Adds the current status of
+ * the sensor to the fields of {@link Sensor}.
+ */
+public class Sensores extends Sensor {
+
+	protected String status;
+
+	public Sensores() {
+		super();
+	}
+
+	public Sensores(Integer id_sensor, Integer unit, Integer id_device, String status) {
+		super();
+		this.id_sensor = id_sensor;
+		this.unit = unit;
+		this.id_device = id_device;
+		this.status = status;
+	}
+
+	public Sensores(Sensores other) {
+		super();
+		this.id_sensor = other.id_sensor;
+		this.nombre = other.nombre;
+		this.tipo = other.tipo;
+		this.id = other.id;
+		this.unit = other.unit;
+		this.id_device = other.id_device;
+		this.status = other.status;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	@Override
+	public String toString() {
+		return "Sensores [id_sensor=" + id_sensor + ", nombre=" + nombre + ", tipo=" + tipo + ", id=" + id + ", unit="
+				+ unit + ", id_device=" + id_device + ", status=" + status + "]";
+	}
+
+}
@@ -0,0 +1,144 @@
+package es.us.lsi.dad;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Metrics of the routes of {@link RestServer} and of its event loops, exported
+ * in Prometheus text format by GET /metrics.
+ *
+ * Event loop blocked time is measured by drift: a periodic timer on the event
+ * loop of each verticle instance records how late it fires. A handler that
+ * blocks the event loop for 200ms makes the next tick about 200ms late.
+ *
+ * As the store, the metrics are shared by every instance of the verticle.
+ */
+public class ServerMetrics implements Shareable {
+
+	private static final String SHARED_MAP = "es.us.lsi.dad.metrics";
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<String, RouteMetrics>();
+	private final LatencyHistogram eventLoopLag = new LatencyHistogram();
+
+	/**
+	 * Gets the metrics registered with the given name in the Vert.x instance,
+	 * creating them if needed
+	 *
+	 * @param vertx Vert.x instance
+	 * @param name  Name of the metrics, usually the name of the store
+	 * @return Shared metrics
+	 */
+	public static ServerMetrics shared(Vertx vertx, String name) {
+		LocalMap<String, ServerMetrics> metrics = vertx.sharedData().getLocalMap(SHARED_MAP);
+		return metrics.computeIfAbsent(name, key -> new ServerMetrics());
+	}
+
+	/**
+	 * @param name Route name
+	 * @return Metrics of the route, created the first time
+	 */
+	public RouteMetrics route(String name) {
+		return routes.computeIfAbsent(name, RouteMetrics::new);
+	}
+
+	/**
+	 * Wraps a route handler to record its requests. The metrics of the route
+	 * are also put in the RoutingContext, under {@link RouteMetrics#KEY}, so the
+	 * handler can record query and serialization times.
+	 *
+	 * @param name    Route name
+	 * @param handler Route handler
+	 * @return Instrumented handler
+	 */
+	public Handler<RoutingContext> instrument(String name, Handler<RoutingContext> handler) {
+		RouteMetrics metrics = route(name);
+		return routingContext -> {
+			long start = System.nanoTime();
+			routingContext.put(RouteMetrics.KEY, metrics);
+			routingContext.addBodyEndHandler(v -> metrics.record(routingContext.response().getStatusCode(),
+					System.nanoTime() - start, routingContext.response().bytesWritten()));
+			handler.handle(routingContext);
+		};
+	}
+
+	/**
+	 * Starts measuring the blocked time of the event loop of the calling
+	 * verticle. The timer is cancelled when the verticle is undeployed.
+	 *
+	 * @param vertx      Vert.x instance
+	 * @param intervalMs Period of the probe timer
+	 * @return Timer id
+	 */
+	public long monitorEventLoop(Vertx vertx, long intervalMs) {
+		long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		long[] last = { System.nanoTime() };
+		return vertx.setPeriodic(intervalMs, id -> {
+			long now = System.nanoTime();
+			eventLoopLag.record(Math.max(0, now - last[0] - intervalNanos));
+			last[0] = now;
+		});
+	}
+
+	public LatencyHistogram eventLoopLag() {
+		return eventLoopLag;
+	}
+
+	/**
+	 * @return Every metric in Prometheus text format
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		out.append("# HELP dad_http_requests_total Requests by route and status code.\n");
+		out.append("# TYPE dad_http_requests_total counter\n");
+		routes.values().forEach(route -> route.writeStatusCodes(out, "dad_http_requests_total"));
+
+		out.append("# HELP dad_http_request_duration_seconds Time from the request to the end of the response.\n");
+		out.append("# TYPE dad_http_request_duration_seconds histogram\n");
+		routes.values().forEach(route -> route.latency().writePrometheus(out, "dad_http_request_duration_seconds",
+				label(route)));
+
+		out.append("# HELP dad_http_query_duration_seconds Time reading and filtering the store.\n");
+		out.append("# TYPE dad_http_query_duration_seconds histogram\n");
+		routes.values().forEach(route -> {
+			if (route.query().getCount() > 0) {
+				route.query().writePrometheus(out, "dad_http_query_duration_seconds", label(route));
+			}
+		});
+
+		out.append("# HELP dad_http_serialization_duration_seconds Time encoding the response body.\n");
+		out.append("# TYPE dad_http_serialization_duration_seconds histogram\n");
+		routes.values().forEach(route -> {
+			if (route.serialization().getCount() > 0) {
+				route.serialization().writePrometheus(out, "dad_http_serialization_duration_seconds", label(route));
+			}
+		});
+
+		out.append("# HELP dad_http_response_bytes_total Bytes of the response bodies.\n");
+		out.append("# TYPE dad_http_response_bytes_total counter\n");
+		routes.values().forEach(route -> out.append("dad_http_response_bytes_total{").append(label(route))
+				.append("} ").append(route.getBytesOut()).append('\n'));
+
+		out.append("# HELP dad_eventloop_lag_seconds Delay of the event loop probe timers; the sum is the "
+				+ "blocked time.\n");
+		out.append("# TYPE dad_eventloop_lag_seconds histogram\n");
+		eventLoopLag.writePrometheus(out, "dad_eventloop_lag_seconds", "");
+		out.append("# HELP dad_eventloop_lag_max_seconds Longest delay of an event loop probe timer.\n");
+		out.append("# TYPE dad_eventloop_lag_max_seconds gauge\n");
+		out.append("dad_eventloop_lag_max_seconds ").append(LatencyHistogram.seconds(eventLoopLag.getMaxNanos()))
+				.append('\n');
+		return out.toString();
+	}
+
+	private static String label(RouteMetrics route) {
+		return "route=\"" + route.getRoute() + "\"";
+	}
+
+}
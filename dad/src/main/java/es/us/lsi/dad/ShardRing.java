@@ -0,0 +1,87 @@
+package es.us.lsi.dad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hashing of id_sensor over a set of shards. Every shard owns
+ * virtualNodes points of a ring of int hashes and a sensor belongs to the
+ * shard of the first point after the hash of its id, so adding or removing a
+ * shard only moves the sensors of the points it takes or gives back, about
+ * 1/N of the fleet.
+ *
+ * Points are kept in a sorted int array, and the owner is found with a binary
+ * search.
+ */
+public class ShardRing {
+
+	private final List<String> shards;
+	private final int[] points;
+	private final String[] owners;
+
+	/**
+	 * @param shards       Shard names, the same list on every node
+	 * @param virtualNodes Points of each shard on the ring
+	 */
+	public ShardRing(List<String> shards, int virtualNodes) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("At least one shard is needed");
+		}
+		this.shards = Collections.unmodifiableList(shards);
+		long[] sorted = new long[shards.size() * virtualNodes];
+		int n = 0;
+		for (int shard = 0; shard < shards.size(); shard++) {
+			int seed = fnv(shards.get(shard));
+			for (int node = 0; node < virtualNodes; node++) {
+				// Punto en los 32 bits altos e indice del shard en los bajos, para ordenar ambos
+				sorted[n++] = ((long) mix(seed + node * 0x9E3779B9) << 32) | shard;
+			}
+		}
+		Arrays.sort(sorted);
+		points = new int[sorted.length];
+		owners = new String[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			points[i] = (int) (sorted[i] >> 32);
+			owners[i] = shards.get((int) sorted[i]);
+		}
+	}
+
+	/**
+	 * @param id_sensor Sensor id
+	 * @return Name of the shard that owns the sensor
+	 */
+	public String owner(int id_sensor) {
+		int i = Arrays.binarySearch(points, mix(id_sensor));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	public List<String> getShards() {
+		return shards;
+	}
+
+	private static int fnv(String value) {
+		int hash = 0x811C9DC5;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ b) * 0x01000193;
+		}
+		return hash;
+	}
+
+	/**
+	 * Murmur3 finalizer, spreads consecutive ids over the whole ring
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -0,0 +1,63 @@
+package es.us.lsi.dad;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+/**
+ * Starts one node of a sharded {@link RestServer} in a clustered Vert.x using
+ * Hazelcast. The only argument is the path of the verticle config, with a
+ * "cluster" object as described in {@link SensorShards} plus:
+ * <ul>
+ * <li>members: addresses of the nodes, by default 127.0.0.1 to run every node
+ * on this host</li>
+ * <li>host: address of the event bus of this node, by default 127.0.0.1</li>
+ * </ul>
+ * and the HTTP port of this node in "port". For example, with three shards a,
+ * b and c, each node is started with its own config:
+ *
+ * <pre>
+ * {"port": 8081, "cluster": {"shards": ["a", "b", "c"], "shard": "a"}}
+ * </pre>
+ */
+public class ShardedServer {
+
+	public static void main(String[] args) throws IOException {
+		JsonObject config = new JsonObject(new String(Files.readAllBytes(Paths.get(args[0])), "UTF-8"));
+		JsonObject cluster = config.getJsonObject("cluster");
+
+		Config hazelcast = new Config();
+		JoinConfig join = hazelcast.getNetworkConfig().getJoin();
+		join.getMulticastConfig().setEnabled(false);
+		join.getTcpIpConfig().setEnabled(true);
+		cluster.getJsonArray("members", new JsonArray().add("127.0.0.1"))
+				.forEach(member -> join.getTcpIpConfig().addMember(member.toString()));
+
+		VertxOptions options = new VertxOptions().setClusterManager(new HazelcastClusterManager(hazelcast));
+		options.getEventBusOptions().setHost(cluster.getString("host", "127.0.0.1"));
+		Vertx.clusteredVertx(options).onSuccess(vertx -> {
+			DeploymentOptions deployment = new DeploymentOptions().setConfig(config)
+					.setInstances(config.getInteger("instances", Runtime.getRuntime().availableProcessors()));
+			vertx.deployVerticle(RestServer.class.getName(), deployment, deploy -> {
+				if (deploy.succeeded()) {
+					System.out.println("Shard " + cluster.getString("shard") + " deployed");
+				} else {
+					System.out.println("Error deploying shard " + cluster.getString("shard"));
+					deploy.cause().printStackTrace();
+					vertx.close();
+				}
+			});
+		}).onFailure(Throwable::printStackTrace);
+	}
+
+}
@@ -0,0 +1,122 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Checks the {@link ClientPolicies} of a {@link RestClientUtil} against a
+ * {@link FaultyServer} that fails every request, and the states of the
+ * circuit breaker.
+ */
+public class ClientPoliciesTest {
+
+	private Vertx vertx;
+	private int port;
+
+	@Before
+	public void start() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		vertx = Vertx.vertx();
+		await(vertx.deployVerticle(new FaultyServer(), new DeploymentOptions().setConfig(
+				new JsonObject().put("port", port).put("errorRate", 1.0).put("errorStatus", 503))));
+	}
+
+	@After
+	public void stop() throws Exception {
+		await(vertx.close());
+	}
+
+	@Test
+	public void retriesIdempotentRequests() throws Exception {
+		RestClientUtil client = client(new JsonObject().put("maxRetries", 3).put("baseBackoffMs", 5));
+		Promise<Sensor> promise = Promise.promise();
+		client.getRequest(port, "http://localhost", "api/sensores/1", Sensor.class, promise);
+		assertFailed(promise.future());
+		assertEquals(3, client.stats().getRetries());
+	}
+
+	@Test
+	public void doesNotRetryPost() throws Exception {
+		RestClientUtil client = client(new JsonObject().put("maxRetries", 3).put("baseBackoffMs", 5));
+		Promise<Sensor> promise = Promise.promise();
+		client.postRequest(port, "http://localhost", "api/sensores", new Sensor(1, 0, 1, "t"), Sensor.class,
+				promise);
+		assertFailed(promise.future());
+		assertEquals(0, client.stats().getRetries());
+	}
+
+	@Test
+	public void opensCircuitAfterThreshold() throws Exception {
+		RestClientUtil client = client(new JsonObject().put("failureThreshold", 3).put("openMs", 60000));
+		for (int i = 0; i < 3; i++) {
+			Promise<Sensor> promise = Promise.promise();
+			client.getRequest(port, "http://localhost", "api/sensores/1", Sensor.class, promise);
+			assertFailed(promise.future());
+		}
+		Promise<Sensor> promise = Promise.promise();
+		client.getRequest(port, "http://localhost", "api/sensores/1", Sensor.class, promise);
+		Throwable cause = assertFailed(promise.future());
+		assertTrue(cause.toString(), cause instanceof ClientPolicies.CircuitOpenException);
+		assertEquals(1, client.stats().getCircuitOpened());
+		assertEquals(1, client.stats().getCircuitRejected());
+	}
+
+	@Test
+	public void ignoresResultsOfEarlierStates() {
+		ClientPolicies.Breaker breaker = new ClientPolicies.Breaker(2, 0);
+		long first = breaker.allow();
+		long second = breaker.allow();
+		long third = breaker.allow();
+		assertFalse(breaker.record(first, false));
+		assertTrue(breaker.record(second, false));
+		// Fallo tardio de una peticion enviada con el circuito cerrado
+		assertFalse(breaker.record(third, false));
+		long probe = breaker.allow();
+		assertNotEquals(ClientPolicies.Breaker.REJECTED, probe);
+		assertEquals(ClientPolicies.Breaker.REJECTED, breaker.allow());
+		// Un exito antiguo no cierra el circuito ni deja pasar otra sonda
+		breaker.record(third, true);
+		assertEquals(ClientPolicies.Breaker.REJECTED, breaker.allow());
+		assertFalse(breaker.record(probe, true));
+		assertNotEquals(ClientPolicies.Breaker.REJECTED, breaker.allow());
+	}
+
+	private RestClientUtil client(JsonObject policies) {
+		return RestClientUtil.create(vertx, ClientProfile.fromJson(new JsonObject()))
+				.setPolicies(ClientPolicies.fromJson(vertx, policies));
+	}
+
+	private static Throwable assertFailed(Future<?> future) throws Exception {
+		try {
+			await(future);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		fail("Request did not fail");
+		return null;
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,72 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the {@link CompactSensorStore} once its status dictionary is full,
+ * and its {@link SensorSnapshot} round trip.
+ */
+public class CompactSensorStoreTest {
+
+	private static final int SENSORS = CompactSensorStore.MAX_VALUES + 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepsValuesPastTheDictionary() {
+		CompactSensorStore store = fill();
+		for (int i = 0; i < SENSORS; i++) {
+			assertEquals("status" + i, store.get(i).getStatus());
+		}
+		assertArrayEquals(new int[] { SENSORS - 1 }, ids(store, "status" + (SENSORS - 1)));
+		assertArrayEquals(new int[] { 5 }, ids(store, "status5"));
+		assertArrayEquals(new int[0], ids(store, "missing"));
+	}
+
+	@Test
+	public void movesRawValuesWithTheirRow() {
+		CompactSensorStore store = fill();
+		// La ultima fila, con su valor fuera del diccionario, pasa al hueco de la 0
+		store.remove(0);
+		assertNull(store.get(0));
+		assertEquals("status" + (SENSORS - 1), store.get(SENSORS - 1).getStatus());
+		assertEquals(SENSORS - 1, store.size());
+	}
+
+	@Test
+	public void snapshotKeepsRawValues() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		SensorSnapshot.write(file, fill().columns(), 7);
+		CompactSensorStore.Columns columns = new CompactSensorStore.Columns();
+		assertEquals(7, SensorSnapshot.read(file, columns));
+		CompactSensorStore store = new CompactSensorStore();
+		store.load(columns);
+		for (int i = 0; i < SENSORS; i++) {
+			assertEquals("status" + i, store.get(i).getStatus());
+		}
+		assertArrayEquals(new int[] { SENSORS - 1 }, ids(store, "status" + (SENSORS - 1)));
+	}
+
+	private static CompactSensorStore fill() {
+		CompactSensorStore store = new CompactSensorStore();
+		for (int i = 0; i < SENSORS; i++) {
+			store.put(new Sensores(i, 0, 0, "status" + i));
+		}
+		return store;
+	}
+
+	private static int[] ids(SensorStore store, String status) {
+		return store.query(new SensorFilter(null, null, status)).mapToInt(Sensores::getId_sensor).toArray();
+	}
+
+}
@@ -0,0 +1,152 @@
+package es.us.lsi.dad;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Stub of the sensor API that injects faults, to check the
+ * {@link ClientPolicies} of {@link RestClientUtil} against a local server.
+ * Every request is answered as the real API would, with a sample sensor or an
+ * empty list, unless a fault is drawn for it:
+ * <ul>
+ * <li>drop: the connection is closed without an answer.</li>
+ * <li>error: the answer is errorStatus, with a Retry-After of retryAfter
+ * seconds if it is over 0.</li>
+ * <li>delay: the answer, good or bad, is sent after delayMs.</li>
+ * </ul>
+ *
+ * Config, all optional; rates are fractions of the requests, 0 to 1:
+ *
+ * <pre>
+ * { "port": 8090, "dropRate": 0.0, "errorRate": 0.0, "errorStatus": 503,
+ *   "retryAfter": 0, "delayRate": 0.0, "delayMs": 0 }
+ * </pre>
+ *
+ * The faults can be changed while it runs with a PUT /faults of the same JSON,
+ * for example to make the server recover and see a circuit close again. GET
+ * /faults returns them with the count of requests and faults injected.
+ *
+ * It is a test fixture: {@link ClientPoliciesTest} deploys it, and main runs
+ * it by hand from the test classpath.
+ */
+public class FaultyServer extends AbstractVerticle {
+
+	private final Gson gson = SensorCodec.gson();
+	private volatile JsonObject faults;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong delayed = new AtomicLong();
+
+	public static void main(String[] args) {
+		Vertx vertx = Vertx.vertx();
+		JsonObject config = args.length > 0 ? new JsonObject(vertx.fileSystem().readFileBlocking(args[0]))
+				: new JsonObject();
+		vertx.deployVerticle(new FaultyServer(), new DeploymentOptions().setConfig(config), deploy -> {
+			if (deploy.failed()) {
+				System.out.println("Error deploying verticle");
+				deploy.cause().printStackTrace();
+				vertx.close();
+			}
+		});
+	}
+
+	public void start(Promise<Void> startFuture) {
+		faults = config().copy();
+		int port = config().getInteger("port", 8090);
+		vertx.createHttpServer().requestHandler(this::handle).listen(port, result -> {
+			if (result.succeeded()) {
+				System.out.println("Faulty server listening on port " + port);
+				startFuture.complete();
+			} else {
+				startFuture.fail(result.cause());
+			}
+		});
+	}
+
+	private void handle(HttpServerRequest request) {
+		if (request.path().equals("/faults")) {
+			handleFaults(request);
+			return;
+		}
+		requests.incrementAndGet();
+		JsonObject current = faults;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < current.getDouble("dropRate", 0.0)) {
+			dropped.incrementAndGet();
+			request.connection().close();
+			return;
+		}
+		boolean error = random.nextDouble() < current.getDouble("errorRate", 0.0);
+		long delay = random.nextDouble() < current.getDouble("delayRate", 0.0) ? current.getLong("delayMs", 0L) : 0;
+		if (error) {
+			errors.incrementAndGet();
+		}
+		if (delay > 0) {
+			delayed.incrementAndGet();
+		}
+		// El cuerpo se lee antes de esperar, para no perderlo
+		request.body(body -> {
+			if (delay > 0) {
+				vertx.setTimer(delay, id -> answer(request, body, current, error));
+			} else {
+				answer(request, body, current, error);
+			}
+		});
+	}
+
+	private void answer(HttpServerRequest request, AsyncResult<Buffer> body, JsonObject current, boolean error) {
+		// El cliente puede haber cerrado la conexion mientras se esperaba
+		if (request.response().closed()) {
+			return;
+		}
+		if (error) {
+			int retryAfter = current.getInteger("retryAfter", 0);
+			if (retryAfter > 0) {
+				request.response().putHeader("Retry-After", Integer.toString(retryAfter));
+			}
+			request.response().setStatusCode(current.getInteger("errorStatus", 503)).end();
+			return;
+		}
+		request.response().putHeader("content-type", SensorCodec.CONTENT_TYPE);
+		if (request.method() == HttpMethod.POST || request.method() == HttpMethod.PUT) {
+			request.response().setStatusCode(request.method() == HttpMethod.POST ? 201 : 200)
+					.end(body.succeeded() && body.result().length() > 0 ? body.result().toString() : "{}");
+		} else if (request.method() == HttpMethod.DELETE || request.path().matches("/api/sensores/?")) {
+			request.response().end("[]");
+		} else {
+			request.response().end(gson.toJson(new Sensor(1, 0, 1, "temperatura")));
+		}
+	}
+
+	private void handleFaults(HttpServerRequest request) {
+		if (request.method() == HttpMethod.PUT) {
+			request.body(body -> {
+				try {
+					faults = faults.copy().mergeIn(body.result().toJsonObject());
+				} catch (RuntimeException e) {
+					request.response().setStatusCode(400).end();
+					return;
+				}
+				request.response().putHeader("content-type", SensorCodec.CONTENT_TYPE).end(faults.encode());
+			});
+			return;
+		}
+		request.response().putHeader("content-type", SensorCodec.CONTENT_TYPE)
+				.end(faults.copy().put("requests", requests.get()).put("dropped", dropped.get())
+						.put("errors", errors.get()).put("delayed", delayed.get()).encode());
+	}
+
+}
@@ -0,0 +1,296 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import com.google.gson.Gson;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Checks the MySQL mode of {@link RestServer} against a real database: the
+ * seeding of an empty table, create, update and delete through the API, the
+ * order of concurrent writes of the same sensor, the batch endpoint and the
+ * load of the table by a new server. The table and the store must hold the
+ * same sensors after every step.
+ *
+ * It empties the sensores table, so it only runs against a scratch database,
+ * for example a local MariaDB or MySQL container, given in the JSON file of
+ * the mysql.config property, and is skipped otherwise:
+ *
+ * <pre>
+ * mvn test -Dtest=MySQLModeTest -Dmysql.config=mysql.json
+ *
+ * { "mysql": { "host": "localhost", "port": 3306, "database": "dad", "user": "dad",
+ *   "password": "dad" }, "port": 8085, "instances": 4 }
+ * </pre>
+ */
+public class MySQLModeTest {
+
+	private static final Gson gson = SensorCodec.gson();
+
+	private JsonObject config;
+	private int port;
+	private int instances;
+	private final List<String> failures = new ArrayList<String>();
+
+	private Vertx vertx;
+	private WebClient client;
+	private MySQLSensorRepository repository;
+
+	@Before
+	public void readConfig() throws IOException {
+		String file = System.getProperty("mysql.config");
+		Assume.assumeTrue("mysql.config is not set", file != null);
+		config = new JsonObject(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+		port = config.getInteger("port", 8085);
+		instances = config.getInteger("instances", 4);
+	}
+
+	@Test
+	public void mysqlMode() {
+		try {
+			await(start().compose(v -> reset()).compose(v -> deploy()).compose(v -> seeded())
+					.compose(v -> crud()).compose(v -> concurrentPuts()).compose(v -> putRacingDelete())
+					.compose(v -> batch()).compose(v -> consistent("after the writes")));
+			await(stop());
+			// Un Vert.x nuevo no comparte el almacen del anterior: todo sale de la tabla
+			await(start().compose(v -> deploy()).compose(v -> consistent("after a restart")));
+		} catch (RuntimeException e) {
+			failures.add("Aborted: " + e);
+		} finally {
+			await(stop());
+		}
+		assertTrue(String.join("\n", failures), failures.isEmpty());
+	}
+
+	private Future<Void> start() {
+		vertx = Vertx.vertx();
+		client = WebClient.create(vertx);
+		repository = MySQLSensorRepository.create(vertx, config.getJsonObject("mysql", new JsonObject()));
+		return Future.succeededFuture();
+	}
+
+	private Future<Void> stop() {
+		if (vertx == null) {
+			return Future.succeededFuture();
+		}
+		Vertx closing = vertx;
+		vertx = null;
+		return repository.close().transform(v -> closing.close());
+	}
+
+	private Future<Void> reset() {
+		return repository.createSchema().compose(v -> repository.loadAll()).compose(rows -> {
+			List<Future> deleted = new ArrayList<Future>();
+			rows.forEach(row -> deleted.add(repository.delete(row.getId_sensor())));
+			return CompositeFuture.all(deleted).<Void>mapEmpty();
+		});
+	}
+
+	private Future<Void> deploy() {
+		JsonObject serverConfig = new JsonObject().put("port", port).put("mysql", config.getJsonObject("mysql"));
+		return vertx.deployVerticle(RestServer.class.getName(),
+				new DeploymentOptions().setInstances(instances).setConfig(serverConfig)).mapEmpty();
+	}
+
+	private Future<Void> seeded() {
+		return repository.loadAll().map(rows -> {
+			check(rows.size() == 25, "an empty table is seeded with 25 sensors, got " + rows.size());
+			return null;
+		});
+	}
+
+	private Future<Void> crud() {
+		int id = 1000001;
+		return send("POST", "/api/sensores", new Sensores(id, 1, 2, "nuevo")).compose(post -> {
+			check(post.statusCode() == 201, "POST answers 201, got " + post.statusCode());
+			return row(id);
+		}).compose(row -> {
+			check(row != null && "nuevo".equals(row.getStatus()), "POST writes the row");
+			return send("PUT", "/api/sensores/" + id, new Sensores(null, 3, 4, "cambiado"));
+		}).compose(put -> {
+			check(put.statusCode() == 201, "PUT answers 201, got " + put.statusCode());
+			return row(id);
+		}).compose(row -> {
+			check(row != null && "cambiado".equals(row.getStatus()) && row.getUnit() == 3,
+					"PUT updates the row");
+			return send("DELETE", "/api/sensores/" + id, null);
+		}).compose(delete -> {
+			check(delete.statusCode() == 200, "DELETE answers 200, got " + delete.statusCode());
+			return row(id);
+		}).compose(row -> {
+			check(row == null, "DELETE removes the row");
+			return get(id);
+		}).map(stored -> {
+			check(stored == null, "DELETE removes the sensor from the store");
+			return null;
+		});
+	}
+
+	/**
+	 * Concurrent PUTs of one sensor must leave the same value in the table and
+	 * in the store
+	 */
+	private Future<Void> concurrentPuts() {
+		int id = 1000002;
+		return send("POST", "/api/sensores", new Sensores(id, 0, 0, "v0")).compose(post -> {
+			List<Future> puts = new ArrayList<Future>();
+			for (int i = 1; i <= 50; i++) {
+				puts.add(send("PUT", "/api/sensores/" + id, new Sensores(null, i, i, "v" + i)));
+			}
+			return CompositeFuture.join(puts);
+		}).compose(v -> same(id, "concurrent PUTs"));
+	}
+
+	/**
+	 * PUTs racing a DELETE must not bring the row back once the sensor is gone
+	 */
+	private Future<Void> putRacingDelete() {
+		int id = 1000003;
+		return send("POST", "/api/sensores", new Sensores(id, 0, 0, "v0")).compose(post -> {
+			List<Future> writes = new ArrayList<Future>();
+			for (int i = 1; i <= 40; i++) {
+				writes.add(send("PUT", "/api/sensores/" + id, new Sensores(null, i, i, "v" + i)));
+				if (i == 20) {
+					writes.add(send("DELETE", "/api/sensores/" + id, null));
+				}
+			}
+			return CompositeFuture.join(writes);
+		}).compose(v -> row(id)).compose(row -> {
+			check(row == null, "a PUT after a DELETE does not write the row again");
+			return same(id, "PUTs racing a DELETE");
+		});
+	}
+
+	private Future<Void> batch() {
+		List<Sensores> body = new ArrayList<Sensores>();
+		for (int id = 1000010; id < 1000110; id++) {
+			body.add(new Sensores(id, id, id, "batch"));
+		}
+		Buffer json = Buffer.buffer(gson.toJson(body));
+		return client.post(port, "localhost", "/api/sensores/batch").sendBuffer(json).compose(response -> {
+			check(response.statusCode() == 200, "batch answers 200, got " + response.statusCode());
+			return repository.loadAll();
+		}).map(rows -> {
+			long written = rows.stream().filter(row -> "batch".equals(row.getStatus())).count();
+			check(written == 100, "batch writes 100 rows, got " + written);
+			return null;
+		});
+	}
+
+	/**
+	 * Every row of the table must be in the store with the same value
+	 */
+	private Future<Void> consistent(String when) {
+		return repository.loadAll().compose(rows -> {
+			check(!rows.isEmpty(), "the table has rows " + when);
+			List<Future> checked = new ArrayList<Future>();
+			rows.forEach(row -> checked.add(get(row.getId_sensor()).map(stored -> {
+				check(equal(row, stored), "sensor " + row.getId_sensor() + " is the same in the store " + when);
+				return null;
+			})));
+			return CompositeFuture.all(checked);
+		}).compose(v -> get(1000001)).map(stored -> {
+			check(stored == null, "a deleted sensor stays deleted " + when);
+			return null;
+		});
+	}
+
+	private Future<Void> same(int id, String what) {
+		return CompositeFuture.all(row(id), get(id)).map(both -> {
+			Sensores row = both.resultAt(0);
+			Sensores stored = both.resultAt(1);
+			check(equal(row, stored), what + " leave the table and the store equal: " + describe(row) + " vs "
+					+ describe(stored));
+			return null;
+		});
+	}
+
+	private Future<Sensores> row(int id) {
+		return repository.loadAll().map(rows -> {
+			Map<Integer, Sensores> byId = new HashMap<Integer, Sensores>();
+			rows.forEach(row -> byId.put(row.getId_sensor(), row));
+			return byId.get(id);
+		});
+	}
+
+	private Future<Sensores> get(int id) {
+		return client.get(port, "localhost", "/api/sensores/" + id).send()
+				.map(response -> response.statusCode() == 200 ? decode(response) : null);
+	}
+
+	private Future<HttpResponse<Buffer>> send(String method, String path, Sensores body) {
+		Function<Buffer, Future<HttpResponse<Buffer>>> sent;
+		switch (method) {
+		case "POST":
+			sent = client.post(port, "localhost", path)::sendBuffer;
+			break;
+		case "PUT":
+			sent = client.put(port, "localhost", path)::sendBuffer;
+			break;
+		default:
+			return client.delete(port, "localhost", path).send();
+		}
+		return sent.apply(Buffer.buffer(gson.toJson(body)));
+	}
+
+	private static Sensores decode(HttpResponse<Buffer> response) {
+		return SensorCodec.decode(gson, response.body(), Sensores.class);
+	}
+
+	private static boolean equal(Sensores a, Sensores b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return Objects.equals(a.getId_sensor(), b.getId_sensor()) && Objects.equals(a.getUnit(), b.getUnit())
+				&& Objects.equals(a.getId_device(), b.getId_device()) && Objects.equals(a.getStatus(), b.getStatus());
+	}
+
+	private static String describe(Sensores sensor) {
+		return sensor == null ? "absent" : sensor.getStatus();
+	}
+
+	private void check(boolean condition, String description) {
+		if (!condition) {
+			failures.add(description);
+		}
+	}
+
+	private static <T> T await(Future<T> future) {
+		while (!future.isComplete()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+		if (future.failed()) {
+			throw new IllegalStateException(future.cause());
+		}
+		return future.result();
+	}
+
+}
@@ -0,0 +1,98 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that a {@link ReadingChunk} gives back the exact timestamps and value
+ * bits it was built with, for the edge cases of its encodings
+ */
+public class ReadingChunkTest {
+
+	@Test
+	public void keepsSingleReading() {
+		ReadingChunk chunk = assertRoundTrip(new long[] { 42 }, new double[] { 1.5 });
+		assertEquals(42, chunk.getFirst());
+		assertEquals(42, chunk.getLast());
+		assertEquals(1.5, chunk.getSum(), 0);
+	}
+
+	@Test
+	public void keepsRegularTimestamps() {
+		long[] timestamps = new long[100];
+		double[] values = new double[100];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = 1_600_000_000_000L + 1000L * i;
+			values[i] = 20 + (i % 3) * 0.5;
+		}
+		ReadingChunk chunk = assertRoundTrip(timestamps, values);
+		assertEquals(20, chunk.getMin(), 0);
+		assertEquals(21, chunk.getMax(), 0);
+	}
+
+	@Test
+	public void keepsDeltaOfDeltaOfEveryWidth() {
+		// Deltas de deltas 1000, 0, 63, -64, 255, -256, 2047, -2045 y de 64 bits, hasta casi 2^62
+		long[] deltas = { 1000, 1000, 1063, 999, 1254, 998, 3045, 1000, 1_000_000, 1, Long.MAX_VALUE / 2, 1,
+				Long.MAX_VALUE / 4, 5 };
+		long[] timestamps = new long[deltas.length + 1];
+		timestamps[0] = Long.MIN_VALUE / 2;
+		for (int i = 0; i < deltas.length; i++) {
+			timestamps[i + 1] = timestamps[i] + deltas[i];
+		}
+		assertRoundTrip(timestamps, new double[timestamps.length]);
+	}
+
+	@Test
+	public void keepsIrregularTimestamps() {
+		Random random = new Random(1);
+		long[] timestamps = new long[1000];
+		double[] values = new double[1000];
+		for (int i = 1; i < timestamps.length; i++) {
+			long delta = random.nextInt(4) == 0 ? (random.nextLong() >>> 20) : random.nextInt(5000);
+			timestamps[i] = timestamps[i - 1] + delta;
+			values[i] = random.nextDouble();
+		}
+		assertRoundTrip(timestamps, values);
+	}
+
+	@Test
+	public void keepsXorWindowsAtTheEdges() {
+		double[] values = {
+				// Solo cambia el signo: leading 0
+				1.0, -1.0,
+				// Solo cambia el bit mas bajo: trailing 0
+				Double.longBitsToDouble(Double.doubleToRawLongBits(-1.0) ^ 1),
+				// Cambian el bit mas alto y el mas bajo: leading 0 y trailing 0, 64 bits
+				Double.longBitsToDouble(Double.doubleToRawLongBits(-1.0) ^ 0x8000000000000000L),
+				0.0, Double.longBitsToDouble(0x8000000000000001L),
+				// Mas de 31 ceros por delante, que no caben en 5 bits
+				Double.longBitsToDouble(0x8000000000000003L),
+				// Ventana anterior reutilizada
+				Double.longBitsToDouble(0x8000000000000002L),
+				Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, 0.0, Double.MIN_VALUE,
+				Double.MAX_VALUE };
+		long[] timestamps = new long[values.length];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = i;
+		}
+		assertRoundTrip(timestamps, values);
+	}
+
+	private static ReadingChunk assertRoundTrip(long[] timestamps, double[] values) {
+		ReadingChunk chunk = ReadingChunk.encode(timestamps, values, timestamps.length);
+		int[] next = { 0 };
+		chunk.forEach((timestamp, value) -> {
+			int i = next[0]++;
+			assertEquals("timestamp " + i, timestamps[i], timestamp);
+			assertEquals("value " + i, Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(value));
+		});
+		assertEquals(timestamps.length, next[0]);
+		assertEquals(timestamps.length, chunk.getCount());
+		return chunk;
+	}
+
+}
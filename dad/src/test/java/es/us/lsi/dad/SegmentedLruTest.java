@@ -0,0 +1,58 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the limits and LRU order of a {@link SegmentedLru}
+ */
+public class SegmentedLruTest {
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		// Menos de 128 entradas: un solo segmento, el orden LRU es exacto
+		SegmentedLru<String> lru = new SegmentedLru<String>(3, Long.MAX_VALUE, (key, value) -> 0);
+		lru.put("a", "1");
+		lru.put("b", "2");
+		lru.put("c", "3");
+		assertNotNull(lru.get("a"));
+		lru.put("d", "4");
+		assertNull(lru.get("b"));
+		assertNotNull(lru.get("a"));
+		assertEquals(3, lru.size());
+		assertEquals(1, lru.getEvictions());
+	}
+
+	@Test
+	public void keepsBytesWithinLimit() {
+		SegmentedLru<String> lru = new SegmentedLru<String>(100, 10, (key, value) -> value.length());
+		assertFalse(lru.put("big", "12345678901"));
+		lru.put("a", "12345");
+		lru.put("b", "12345");
+		lru.put("c", "123");
+		assertNull(lru.get("a"));
+		assertEquals(8, lru.getBytes());
+		lru.put("b", "1");
+		assertEquals(4, lru.getBytes());
+		lru.remove("c");
+		assertEquals(1, lru.getBytes());
+	}
+
+	@Test
+	public void checksAdmissionAndValidity() {
+		SegmentedLru<String> lru = new SegmentedLru<String>(100, Long.MAX_VALUE, (key, value) -> 0);
+		assertFalse(lru.put("a", "1", () -> false));
+		assertNull(lru.get("a"));
+		assertTrue(lru.put("a", "1", () -> true));
+		assertNull(lru.get("a", value -> false));
+		assertEquals(0, lru.size());
+		assertEquals("2", lru.computeIfAbsent("b", key -> "2"));
+		assertEquals("2", lru.computeIfAbsent("b", key -> "3"));
+	}
+
+}
@@ -0,0 +1,150 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Checks that {@link SensorCbor} decodes indefinite lengths and rejects
+ * truncated, malformed and too deeply nested input with
+ * IllegalArgumentException
+ */
+public class SensorCborTest {
+
+	@Test
+	public void decodesWhatItEncodes() {
+		Sensores sensor = sensor(1);
+		assertEquals(sensor.toString(), SensorCbor.decode(SensorCbor.encode(sensor, Buffer.buffer()), Sensores.class)
+				.toString());
+		Sensores[] list = { sensor(1), sensor(-2), sensor(70000) };
+		assertEquals(Arrays.toString(list), Arrays.toString(
+				SensorCbor.decode(SensorCbor.encode(list, Buffer.buffer()), Sensores[].class)));
+		assertNull(SensorCbor.decode(Buffer.buffer(), Sensores.class));
+	}
+
+	@Test
+	public void rejectsEveryTruncation() {
+		Buffer sensor = SensorCbor.encode(sensor(1), Buffer.buffer());
+		for (int length = 1; length < sensor.length(); length++) {
+			assertInvalid(sensor.getBuffer(0, length), Sensores.class);
+		}
+		Buffer list = SensorCbor.encode(new Sensores[] { sensor(1), sensor(2) }, Buffer.buffer());
+		for (int length = 1; length < list.length(); length++) {
+			assertInvalid(list.getBuffer(0, length), Sensores[].class);
+		}
+		Buffer indefinite = SensorCbor.endArray(SensorCbor.encode(sensor(1), SensorCbor.startArray(Buffer.buffer())));
+		for (int length = 1; length < indefinite.length(); length++) {
+			assertInvalid(indefinite.getBuffer(0, length), Sensores[].class);
+		}
+	}
+
+	@Test
+	public void decodesIndefiniteLengths() {
+		// Array y mapa de longitud indefinida, y un texto en dos trozos
+		Buffer bytes = Buffer.buffer().appendByte((byte) 0x9F).appendByte((byte) 0xBF);
+		key(bytes, "id_sensor").appendByte((byte) 0x07);
+		key(bytes, "status").appendByte((byte) 0x7F);
+		key(bytes, "O");
+		key(bytes, "N").appendByte((byte) 0xFF);
+		key(bytes, "extra").appendByte((byte) 0x5F).appendByte((byte) 0x41).appendByte((byte) 0)
+				.appendByte((byte) 0xFF);
+		bytes.appendByte((byte) 0xFF).appendByte((byte) 0xFF);
+		Sensores[] list = SensorCbor.decode(bytes, Sensores[].class);
+		assertEquals(1, list.length);
+		assertEquals(Integer.valueOf(7), list[0].getId_sensor());
+		assertEquals("ON", list[0].getStatus());
+	}
+
+	@Test
+	public void rejectsMalformedIndefiniteLengths() {
+		// Trozo de otro tipo dentro de un texto indefinido
+		Buffer bytes = Buffer.buffer().appendByte((byte) 0xA1);
+		key(bytes, "status").appendByte((byte) 0x7F).appendByte((byte) 0x01).appendByte((byte) 0xFF);
+		assertInvalid(bytes, Sensores.class);
+		// Break donde se espera un valor
+		bytes = Buffer.buffer().appendByte((byte) 0xA1);
+		key(bytes, "id_sensor").appendByte((byte) 0xFF);
+		assertInvalid(bytes, Sensores.class);
+		// Mapa indefinido sin break
+		bytes = Buffer.buffer().appendByte((byte) 0xBF);
+		key(bytes, "id_sensor").appendByte((byte) 0x01);
+		assertInvalid(bytes, Sensores.class);
+	}
+
+	@Test
+	public void skipsUnknownNestedValues() {
+		assertEquals(Integer.valueOf(1), SensorCbor.decode(nested(30, (byte) 0x81), Sensores.class).getId_sensor());
+		assertEquals(Integer.valueOf(1), SensorCbor.decode(nested(30, (byte) 0x9F), Sensores.class).getId_sensor());
+	}
+
+	@Test
+	public void rejectsNestingPastMaxDepth() {
+		assertInvalid(nested(40, (byte) 0x81), Sensores.class);
+		assertInvalid(nested(40, (byte) 0x9F), Sensores.class);
+		// Etiquetas encadenadas
+		assertInvalid(nested(40, (byte) 0xC0), Sensores.class);
+		// Sin fin: solo la profundidad lo detiene antes de que falten bytes
+		Buffer bytes = Buffer.buffer().appendByte((byte) 0xA1);
+		key(bytes, "extra");
+		for (int i = 0; i < 100000; i++) {
+			bytes.appendByte((byte) 0x9F);
+		}
+		assertInvalid(bytes, Sensores.class);
+	}
+
+	@Test
+	public void rejectsTrailingBytes() {
+		assertInvalid(SensorCbor.encode(sensor(1), Buffer.buffer()).appendByte((byte) 0), Sensores.class);
+	}
+
+	/**
+	 * @param depth  Levels of nesting of the unknown field
+	 * @param opener Head of each level: array of one item, indefinite array or
+	 *               tag
+	 * @return Sensor 1 with an unknown field nested depth levels
+	 */
+	private static Buffer nested(int depth, byte opener) {
+		Buffer bytes = Buffer.buffer().appendByte((byte) 0xA2);
+		key(bytes, "extra");
+		for (int i = 0; i < depth; i++) {
+			bytes.appendByte(opener);
+		}
+		bytes.appendByte((byte) 0x00);
+		if (opener == (byte) 0x9F) {
+			for (int i = 0; i < depth; i++) {
+				bytes.appendByte((byte) 0xFF);
+			}
+		}
+		key(bytes, "id_sensor").appendByte((byte) 0x01);
+		return bytes;
+	}
+
+	private static Buffer key(Buffer bytes, String key) {
+		byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+		return bytes.appendByte((byte) (0x60 | utf8.length)).appendBytes(utf8);
+	}
+
+	private static Sensores sensor(int id) {
+		Sensores sensor = new Sensores(id, id % 10, -id, "ON");
+		sensor.setNombre("sensor" + id);
+		sensor.setTipo("temperatura");
+		return sensor;
+	}
+
+	private static void assertInvalid(Buffer bytes, Class<?> classType) {
+		try {
+			SensorCbor.decode(bytes, classType);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		fail("Decoded invalid CBOR " + bytes.length() + " bytes");
+	}
+
+}
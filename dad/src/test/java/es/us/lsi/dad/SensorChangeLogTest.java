@@ -0,0 +1,72 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the replay of a {@link SensorChangeLog} cuts a torn last record
+ * and fails on a corrupt one before the end.
+ */
+public class SensorChangeLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file;
+	private long size;
+
+	@Before
+	public void writeLog() throws IOException {
+		file = folder.getRoot().toPath().resolve("changes.log");
+		try (SensorChangeLog log = new SensorChangeLog(file)) {
+			log.put(new Sensores(1, 0, 1, "on"));
+			log.put(new Sensores(2, 0, 1, "off"));
+			log.delete(1);
+		}
+		size = Files.size(file);
+	}
+
+	@Test
+	public void replaysEveryRecord() throws IOException {
+		CompactSensorStore store = new CompactSensorStore();
+		assertEquals(3, SensorChangeLog.replay(file, store));
+		assertNull(store.get(1));
+		assertEquals("off", store.get(2).getStatus());
+	}
+
+	@Test
+	public void cutsTornTail() throws IOException {
+		// Cabecera de un registro de 100 bytes del que solo se escribieron 3
+		Files.write(file, new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 1, 0, 0 }, StandardOpenOption.APPEND);
+		assertEquals(3, SensorChangeLog.replay(file, new CompactSensorStore()));
+		assertEquals(size, Files.size(file));
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnCorruptRecord() throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		// Un byte del primer registro, que no es el final del fichero
+		bytes[10] ^= 1;
+		Files.write(file, bytes);
+		SensorChangeLog.replay(file, new CompactSensorStore());
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnBadLength() throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[0] = bytes[1] = bytes[2] = bytes[3] = 0;
+		Files.write(file, bytes);
+		SensorChangeLog.replay(file, new CompactSensorStore());
+	}
+
+}
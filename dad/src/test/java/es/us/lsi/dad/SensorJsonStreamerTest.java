@@ -0,0 +1,93 @@
+package es.us.lsi.dad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.web.Router;
+
+/**
+ * Checks how a {@link SensorJsonStreamer} ends a response when its iterator
+ * fails.
+ */
+public class SensorJsonStreamerTest {
+
+	private Vertx vertx;
+	private HttpServer server;
+	private HttpClient client;
+
+	@Before
+	public void start() throws Exception {
+		vertx = Vertx.vertx();
+		Router router = Router.router(vertx);
+		router.get("/fail/:after").handler(routingContext -> {
+			routingContext.response().putHeader("content-type", SensorCodec.CONTENT_TYPE).setStatusCode(200);
+			SensorJsonStreamer.stream(routingContext.response(),
+					failing(Integer.parseInt(routingContext.pathParam("after"))), SensorCodec.gson(), 10);
+		});
+		server = vertx.createHttpServer().requestHandler(router).listen(0).toCompletionStage().toCompletableFuture()
+				.get(10, TimeUnit.SECONDS);
+		client = vertx.createHttpClient();
+	}
+
+	@After
+	public void stop() throws Exception {
+		vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void failsBeforeAnythingIsSent() throws Exception {
+		assertEquals("500", get("/fail/0"));
+	}
+
+	@Test
+	public void resetsStartedResponse() throws Exception {
+		String result = get("/fail/100000");
+		assertTrue(result, result.startsWith("failed"));
+	}
+
+	/**
+	 * @return Status code if the whole body was read, or failed and the error
+	 */
+	private String get(String uri) throws Exception {
+		CompletableFuture<String> result = new CompletableFuture<String>();
+		client.request(HttpMethod.GET, server.actualPort(), "localhost", uri)
+				.compose(request -> request.send())
+				.compose(response -> response.body().map(body -> Integer.toString(response.statusCode())))
+				.onComplete(done -> result.complete(done.succeeded() ? done.result() : "failed " + done.cause()));
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+	private static Iterator<Sensores> failing(int after) {
+		return new Iterator<Sensores>() {
+
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				if (next == after) {
+					throw new IllegalStateException("Store failed");
+				}
+				return true;
+			}
+
+			@Override
+			public Sensores next() {
+				return new Sensores(next++, 0, 0, "ON");
+			}
+
+		};
+	}
+
+}